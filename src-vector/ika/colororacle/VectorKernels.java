@@ -0,0 +1,198 @@
+/*
+ * VectorKernels.java
+ *
+ */
+package ika.colororacle;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD kernels for the red-green, tritan and grayscale filters, built on the
+ * incubating Vector API of Java 16 and newer. This class is compiled separately from the rest of
+ * Color Oracle, and is loaded by Simulator if the JVM supports it.
+ *
+ * The kernels convert a whole vector of pixels at a time, including the table
+ * lookups, which are done with gather loads. A vector of pixels that are all
+ * identical to the last converted pixel is copied instead of converted. All
+ * kernels use the same integer arithmetic as the scalar kernels, so the
+ * results are identical.
+ */
+final class VectorKernels implements Simulator.Kernels {
+
+    /**
+     * Vectors of 8 ints. Wider vectors are not used even where the processor
+     * has them: the C2 compiler of Java 17 intermittently gathers with wrong
+     * indices from 512 bit vectors, which crashes the JVM.
+     */
+    private static final VectorSpecies<Integer> INT = IntVector.SPECIES_256;
+
+    /**
+     * Simulator.SRGB_TO_LINRGB and Simulator.LINRGB_TO_SRGB as int arrays for
+     * gather loads.
+     */
+    private static final int[] SRGB_TO_LINRGB = new int[256];
+    private static final int[] LINRGB_TO_SRGB = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            SRGB_TO_LINRGB[i] = Simulator.SRGB_TO_LINRGB[i];
+            LINRGB_TO_SRGB[i] = Simulator.LINRGB_TO_SRGB[i] & 0xff;
+        }
+    }
+
+    /**
+     * Creates the kernels.
+     *
+     * @throws UnsupportedOperationException If the processor has no vector
+     * registers of at least 256 bits. The Vector API then falls back to
+     * slow Java code.
+     */
+    VectorKernels() {
+        if (IntVector.SPECIES_PREFERRED.vectorBitSize() < INT.vectorBitSize()) {
+            throw new UnsupportedOperationException("No 256 bit vector registers");
+        }
+    }
+
+    /**
+     * Looks up the values of a vector in a table.
+     *
+     * @param table The table.
+     * @param v The indices into the table.
+     * @param index Scratch array for the indices. Every lookup in a loop
+     * needs its own array: when lookups share an array, the C2 compiler of
+     * Java 17 can gather with the indices of another lookup.
+     * @return The values in the table.
+     */
+    private static IntVector lookup(int[] table, IntVector v, int[] index) {
+        v.intoArray(index, 0);
+        return IntVector.fromArray(v.species(), table, 0, index, 0);
+    }
+
+    @Override
+    public int filterRedGreen(int[] inData, int[] outData, int from, int to,
+            int k1, int k2, int k3) {
+        final int[][] index = new int[5][INT.length()];
+        final int end = from + INT.loopBound(to - from);
+        int prevIn = ~inData[from];
+        int prevOut = 0;
+        for (int i = from; i < end; i += INT.length()) {
+            final IntVector in = IntVector.fromArray(INT, inData, i);
+            if (in.eq(prevIn).allTrue()) {
+                IntVector.broadcast(INT, prevOut).intoArray(outData, i);
+                continue;
+            }
+
+            // get linear rgb values in the range 0..2^15-1
+            final IntVector r_lin = lookup(SRGB_TO_LINRGB, in.lanewise(VectorOperators.LSHR, 16).and(0xff), index[0]);
+            final IntVector g_lin = lookup(SRGB_TO_LINRGB, in.lanewise(VectorOperators.LSHR, 8).and(0xff), index[1]);
+            final IntVector b_lin = lookup(SRGB_TO_LINRGB, in.and(0xff), index[2]);
+
+            // see Simulator.RedGreenFilter for the scaling
+            final IntVector r_blind = r_lin.mul(k1).add(g_lin.mul(k2))
+                    .lanewise(VectorOperators.ASHR, 22).max(0).min(255);
+            final IntVector b_blind = r_lin.mul(k3).sub(g_lin.mul(k3)).add(b_lin.mul(32768))
+                    .lanewise(VectorOperators.ASHR, 22).max(0).min(255);
+
+            // convert reduced linear rgb to gamma corrected rgb
+            final IntVector red = lookup(LINRGB_TO_SRGB, r_blind, index[3]);
+            final IntVector blue = lookup(LINRGB_TO_SRGB, b_blind, index[4]);
+            red.lanewise(VectorOperators.LSHL, 16)
+                    .or(red.lanewise(VectorOperators.LSHL, 8))
+                    .or(blue).or(0xff000000).intoArray(outData, i);
+
+            prevIn = inData[i + INT.length() - 1];
+            prevOut = outData[i + INT.length() - 1];
+        }
+        return end;
+    }
+
+    @Override
+    public int filterTritan(int[] inData, int[] outData, int from, int to,
+            int[] inflection, int[] set1, int[] set2) {
+        final int[][] index = new int[6][INT.length()];
+        final int end = from + INT.loopBound(to - from);
+        int prevIn = ~inData[from];
+        int prevOut = 0;
+        for (int i = from; i < end; i += INT.length()) {
+            final IntVector in = IntVector.fromArray(INT, inData, i);
+            if (in.eq(prevIn).allTrue()) {
+                IntVector.broadcast(INT, prevOut).intoArray(outData, i);
+                continue;
+            }
+
+            // get linear rgb values in the range 0..2^15-1
+            final IntVector r = lookup(SRGB_TO_LINRGB, in.lanewise(VectorOperators.LSHR, 16).and(0xff), index[0]);
+            final IntVector g = lookup(SRGB_TO_LINRGB, in.lanewise(VectorOperators.LSHR, 8).and(0xff), index[1]);
+            final IntVector b = lookup(SRGB_TO_LINRGB, in.and(0xff), index[2]);
+
+            // see Simulator.TritanFilter for the matrices
+            final VectorMask<Integer> isSet1 = r.mul(inflection[0])
+                    .add(g.mul(inflection[1])).add(b.mul(inflection[2])).lt(0);
+            final IntVector red = lookup(LINRGB_TO_SRGB, project(r, g, b, set1, set2, 0, isSet1), index[3]);
+            final IntVector green = lookup(LINRGB_TO_SRGB, project(r, g, b, set1, set2, 3, isSet1), index[4]);
+            final IntVector blue = lookup(LINRGB_TO_SRGB, project(r, g, b, set1, set2, 6, isSet1), index[5]);
+            red.lanewise(VectorOperators.LSHL, 16)
+                    .or(green.lanewise(VectorOperators.LSHL, 8))
+                    .or(blue).or(0xff000000).intoArray(outData, i);
+
+            prevIn = inData[i + INT.length() - 1];
+            prevOut = outData[i + INT.length() - 1];
+        }
+        return end;
+    }
+
+    @Override
+    public int filterGrayscale(int[] inData, int[] outData, int from, int to) {
+        final int[][] index = new int[4][INT.length()];
+        final int end = from + INT.loopBound(to - from);
+        int prevIn = ~inData[from];
+        int prevOut = 0;
+        for (int i = from; i < end; i += INT.length()) {
+            final IntVector in = IntVector.fromArray(INT, inData, i);
+            if (in.eq(prevIn).allTrue()) {
+                IntVector.broadcast(INT, prevOut).intoArray(outData, i);
+                continue;
+            }
+
+            // get linear rgb values in the range 0..2^15-1
+            final IntVector r = lookup(SRGB_TO_LINRGB, in.lanewise(VectorOperators.LSHR, 16).and(0xff), index[0]);
+            final IntVector g = lookup(SRGB_TO_LINRGB, in.lanewise(VectorOperators.LSHR, 8).and(0xff), index[1]);
+            final IntVector b = lookup(SRGB_TO_LINRGB, in.and(0xff), index[2]);
+
+            // see Simulator.GrayscaleFilter for the scaling. Divide by
+            // 2560000 = 2^12 * 625 without a division: after the shift the
+            // luminance is smaller than 80000, and the multiplication with
+            // 2^22 / 625 rounded up overestimates the quotient by at most
+            // one. The remainder is then negative, and its sign bit is
+            // subtracted.
+            final IntVector x = r.mul(2126).add(g.mul(7152)).add(b.mul(722))
+                    .lanewise(VectorOperators.ASHR, 12);
+            final IntVector q = x.mul(6711).lanewise(VectorOperators.ASHR, 22);
+            final IntVector lin = q.add(x.sub(q.mul(625)).lanewise(VectorOperators.ASHR, 31));
+            final IntVector gray = lookup(LINRGB_TO_SRGB, lin, index[3]);
+            gray.lanewise(VectorOperators.LSHL, 16)
+                    .or(gray.lanewise(VectorOperators.LSHL, 8))
+                    .or(gray).or(0xff000000).intoArray(outData, i);
+
+            prevIn = inData[i + INT.length() - 1];
+            prevOut = outData[i + INT.length() - 1];
+        }
+        return end;
+    }
+
+    /**
+     * Computes one channel of simulated linear rgb in 0..255 with the row of
+     * set1 or set2 selected by a mask.
+     */
+    private static IntVector project(IntVector r, IntVector g, IntVector b,
+            int[] set1, int[] set2, int row, VectorMask<Integer> isSet1) {
+        final IntVector kr = IntVector.broadcast(INT, set2[row]).blend(set1[row], isSet1);
+        final IntVector kg = IntVector.broadcast(INT, set2[row + 1]).blend(set1[row + 1], isSet1);
+        final IntVector kb = IntVector.broadcast(INT, set2[row + 2]).blend(set1[row + 2], isSet1);
+        return r.mul(kr).add(g.mul(kg)).add(b.mul(kb))
+                .lanewise(VectorOperators.ASHR, 22).max(0).min(255);
+    }
+}
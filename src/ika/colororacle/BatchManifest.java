@@ -0,0 +1,215 @@
+/*
+ * BatchManifest.java
+ *
+ */
+package ika.colororacle;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers which input produced each output file of the batch mode, so
+ * that inputs that did not change since the last run can be skipped.
+ *
+ * For each output file the manifest stores the input file it was produced
+ * from, and a key made of the content hash of the input and the simulation
+ * parameters. An output file is current if it exists, was produced from the
+ * same input file, and its key has not changed. An output file that was
+ * last written from another input is therefore never taken for the output
+ * of this input.
+ *
+ * The manifest is a text file in the output directory. Entries are appended
+ * and flushed as soon as an output file is complete, so that an interrupted
+ * run loses no finished work. Output files are written to a temporary file
+ * and then renamed, so that an interrupted run leaves no partial output
+ * file. When the manifest is opened, it is rewritten without outdated
+ * entries; a truncated last line is ignored.
+ */
+final class BatchManifest {
+
+    /**
+     * The name of the manifest file in the output directory.
+     */
+    static final String FILE_NAME = ".colororacle-manifest";
+
+    /**
+     * The first line of the manifest. Changing it discards the entries of
+     * older manifests, for example when the simulation changes.
+     */
+    private static final String HEADER = "# Color Oracle batch manifest 2";
+
+    private final File file;
+
+    /**
+     * For each output file, relative to the output directory with / as
+     * separator, the URI of its input file and its key separated by a space.
+     */
+    private final Map<String, String> entries = new HashMap<>();
+
+    /**
+     * Appends entries to the manifest file.
+     */
+    private Writer journal;
+
+    private BatchManifest(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens the manifest of an output directory, or creates a new manifest.
+     *
+     * @param outputDirectory The output directory.
+     * @return The manifest.
+     * @throws IOException If the manifest cannot be written.
+     */
+    static BatchManifest open(File outputDirectory) throws IOException {
+        Files.createDirectories(outputDirectory.toPath());
+        final BatchManifest manifest = new BatchManifest(
+                new File(outputDirectory, FILE_NAME));
+        manifest.load();
+
+        // rewrite without outdated entries
+        final File temp = new File(outputDirectory, FILE_NAME + ".part");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+            writer.write(HEADER + "\n");
+            for (Map.Entry<String, String> entry : manifest.entries.entrySet()) {
+                writer.write(entry.getValue() + "\t" + entry.getKey() + "\n");
+            }
+        }
+        install(temp, manifest.file);
+        manifest.journal = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(manifest.file, true), StandardCharsets.UTF_8));
+        return manifest;
+    }
+
+    private void load() throws IOException {
+        if (!file.isFile()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            if (!HEADER.equals(reader.readLine())) {
+                return;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int tab = line.indexOf('\t');
+                if (tab > 0 && tab < line.length() - 1) {
+                    entries.put(line.substring(tab + 1), line.substring(0, tab));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns whether an output file exists and was produced from an input
+     * file with a key.
+     *
+     * @param outputDirectory The output directory.
+     * @param input The input file.
+     * @param output The output file.
+     * @param key The content hash of the input and the simulation parameters.
+     */
+    synchronized boolean isCurrent(File outputDirectory, File input,
+            File output, String key) {
+        return entry(input, key).equals(entries.get(relativePath(outputDirectory, output)))
+                && output.isFile();
+    }
+
+    /**
+     * Records that an output file is complete.
+     *
+     * @param outputDirectory The output directory.
+     * @param input The input file the output file was produced from.
+     * @param output The output file.
+     * @param key The content hash of the input and the simulation parameters.
+     * @throws IOException If the manifest cannot be written.
+     */
+    synchronized void put(File outputDirectory, File input, File output,
+            String key) throws IOException {
+        final String path = relativePath(outputDirectory, output);
+        final String entry = entry(input, key);
+        entries.put(path, entry);
+        journal.write(entry + "\t" + path + "\n");
+        journal.flush();
+    }
+
+    /**
+     * Returns the entry of an output file: the URI of the input file, which
+     * contains neither spaces nor tabs, and the key.
+     */
+    private static String entry(File input, String key) {
+        return input.getAbsoluteFile().toPath().normalize().toUri() + " " + key;
+    }
+
+    /**
+     * Closes the manifest file.
+     */
+    synchronized void close() throws IOException {
+        journal.close();
+    }
+
+    private static String relativePath(File directory, File file) {
+        return directory.toPath().relativize(file.toPath()).toString()
+                .replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Returns the SHA-256 hash of the content of a file as a hexadecimal
+     * string.
+     */
+    static String hash(File file) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        final byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Replaces a file by a temporary file, atomically if the file system
+     * supports it.
+     *
+     * @param temp The temporary file.
+     * @param file The file to replace.
+     * @throws IOException If the file cannot be replaced.
+     */
+    static void install(File temp, File file) throws IOException {
+        try {
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,829 @@
+/*
+ * BatchProcessor.java
+ *
+ */
+package ika.colororacle;
+
+import ika.colororacle.engine.Simulation;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Simulates color-impaired vision for image files without user interface,
+ * for example on build servers. Neither the system tray nor the screen is
+ * accessed, and the batch mode works in headless mode.
+ *
+ * Files are processed in parallel by a fixed number of worker threads. Each
+ * file reserves the memory needed for its pixels from a memory budget
+ * before it is read, so that large images are not all held in memory at the
+ * same time. All simulations of a file are computed in one pass over its
+ * pixels. The simulated images are written as PNG files to the output
+ * directory. The files of an input directory are written to a directory of
+ * the same name in the output directory, and its directory structure is
+ * kept.
+ *
+ * An output file is named after its input file and the simulation, for
+ * example map-deutan.png for map.tif. If several input files in a directory
+ * have the same name without extension, their extensions are kept, for
+ * example map.tif-deutan.png and map.jpg-deutan.png. If two inputs still
+ * resolve to the same output file, the batch mode stops with an error
+ * before processing any file.
+ *
+ * PngEncoder compresses the rows of each PNG file in parallel on a separate
+ * pool of threads, with the compression level and row filter of the -level
+ * and -filter options. Images with 16 bits per channel are written by
+ * ImageIO to keep their precision.
+ *
+ * Images too large for memory are processed in tiles with the -tile option.
+ * The files are then processed one after the other, each in rows of tiles
+ * on the worker threads with TiledProcessor, and written as tiled TIFF
+ * files. Only TIFF inputs are read tile by tile; other formats must fit into
+ * the memory budget when decoded.
+ *
+ * Raw RGBA, PPM and PAM files are memory-mapped and simulated without
+ * decoding them with RawFile. The output files have the same format.
+ *
+ * The summary printed at the end reports the throughput, and how often the
+ * color caches of the simulator found a converted color (see ColorCache).
+ *
+ * A manifest in the output directory records the content hash of the input
+ * and the parameters of each output file (see BatchManifest). Inputs whose
+ * output files are current are skipped, unless the -force option is given.
+ *
+ * With the -sequence option, animated GIF files and directories given on
+ * the command line are processed as sequences of frames by
+ * SequenceProcessor, which simulates only the tiles that change from frame
+ * to frame. A sequence reserves the whole memory budget. Directories of
+ * frames are always processed; they are not recorded in the manifest.
+ *
+ * With the -pyramid option the input is a directory of map tiles stored as
+ * z/x/y.png, which is processed by PyramidProcessor.
+ *
+ * The -lut option replaces a simulation with a 3D lookup table read from a
+ * .cube file, for example an externally calibrated simulation. The content
+ * hash of the .cube file is part of the manifest key of the output files.
+ * The -lut-size option replaces the simulations with lookup tables sampled
+ * from them; the error of each table against the exact simulation is
+ * printed, and the tables are written as .cube files to the output
+ * directory.
+ */
+final class BatchProcessor {
+
+    /**
+     * The first command line argument starting the batch mode.
+     */
+    static final String OPTION = "-batch";
+
+    private static final String USAGE
+            = "Usage: java -jar ColorOracle.jar -batch [options] file|directory...\n"
+            + "Options:\n"
+            + "  -o directory   output directory (required)\n"
+            + "  -s types       comma separated simulations: normal, deutan, protan,\n"
+            + "                 tritan, grayscale (default: deutan,protan,tritan)\n"
+            + "  -t threads     number of files processed in parallel\n"
+            + "                 (default: number of processors)\n"
+            + "  -m megabytes   memory budget for images (default: half of the heap)\n"
+            + "  -tile size     process large images in tiles of size x size pixels\n"
+            + "                 and write tiled TIFF files (size a multiple of 16);\n"
+            + "                 other formats than TIFF must fit into the memory budget\n"
+            + "  -level n       PNG compression level from 0 (none) to 9 (best)\n"
+            + "                 (default: 4)\n"
+            + "  -filter type   PNG row filter: none, sub, up, average, paeth,\n"
+            + "                 adaptive (default: adaptive)\n"
+            + "  -sequence      process animated GIF files and directories of frames\n"
+            + "                 as sequences, simulating only changed tiles\n"
+            + "  -force         also process files whose output files are current\n"
+            + "  -pyramid       the input is a directory of map tiles z/x/y.png; a\n"
+            + "                 tile pyramid is written for each simulation\n"
+            + "  -lut type=file replace a simulation with a 3D lookup table read from\n"
+            + "                 a .cube file; the simulation is added to the types\n"
+            + "  -lut-size n    replace the simulations with lookup tables of n x n x n\n"
+            + "                 nodes; prints their error and writes them as .cube files\n"
+            + "  -interpolation type  interpolation of lookup tables: trilinear,\n"
+            + "                 tetrahedral (default: tetrahedral)";
+
+    /**
+     * Memory is reserved from the budget in blocks of this size in bytes.
+     */
+    private static final int BLOCK = 1024;
+
+    private final Simulator simulator = new Simulator();
+    private final Set<Simulation> simulations;
+    private final File outputDirectory;
+    private final int threads;
+
+    /**
+     * If true, files are processed even if their output files are current.
+     */
+    private final boolean force;
+
+    /**
+     * The manifest of the output directory.
+     */
+    private final BatchManifest manifest;
+
+    /**
+     * The content hash of the .cube file of each simulation replaced with a
+     * lookup table.
+     */
+    private final Map<Simulation, String> lutHashes;
+
+    /**
+     * Writes PNG files, and the threads compressing them.
+     */
+    private final PngEncoder pngEncoder;
+    private final ExecutorService pngExecutor;
+
+    /**
+     * The compression level and row filter of PNG files.
+     */
+    private final int pngLevel;
+    private final PngEncoder.Filter pngFilter;
+
+    /**
+     * Processes animated GIF files and directories of frames, or null.
+     */
+    private final SequenceProcessor sequenceProcessor;
+
+    /**
+     * The width and height of tiles, or 0.
+     */
+    private final int tileSize;
+
+    /**
+     * Processes images in tiles, or null.
+     */
+    private final TiledProcessor tiledProcessor;
+
+    /**
+     * Reads and simulates tiles for tiledProcessor, or null.
+     */
+    private final ExecutorService tileExecutor;
+
+    /**
+     * The memory budget, one permit per block.
+     */
+    private final Semaphore memory;
+    private final int memoryBlocks;
+
+    /**
+     * Counters for the summary.
+     */
+    private final AtomicInteger processedFiles = new AtomicInteger();
+    private final AtomicInteger failedFiles = new AtomicInteger();
+    private final AtomicInteger skippedFiles = new AtomicInteger();
+    private final AtomicLong processedPixels = new AtomicLong();
+
+    /**
+     * An input file and the directory of its output files relative to the
+     * output directory.
+     */
+    private static final class Job {
+
+        /**
+         * A file, or a directory of frames.
+         */
+        final File input;
+        final String relativeDirectory;
+
+        /**
+         * The name of the output files without simulation and extension. Set
+         * by nameOutputs.
+         */
+        String outputName;
+
+        Job(File input, String relativeDirectory) {
+            this.input = input;
+            this.relativeDirectory = relativeDirectory;
+        }
+    }
+
+    private BatchProcessor(Set<Simulation> simulations, File outputDirectory,
+            int threads, long memoryBudget, int tileSize, boolean force,
+            BatchManifest manifest, int pngLevel, PngEncoder.Filter pngFilter,
+            boolean sequence, Map<Simulation, ColorLut> luts,
+            Map<Simulation, String> lutHashes) {
+        this.simulations = simulations;
+        this.lutHashes = lutHashes;
+        for (Map.Entry<Simulation, ColorLut> entry : luts.entrySet()) {
+            simulator.setLut(entry.getKey(), entry.getValue());
+        }
+        this.outputDirectory = outputDirectory;
+        this.tileSize = tileSize;
+        this.force = force;
+        this.manifest = manifest;
+        if (tileSize > 0) {
+            this.threads = 1;
+            tileExecutor = Executors.newFixedThreadPool(threads);
+            tiledProcessor = new TiledProcessor(simulator, tileSize,
+                    memoryBudget, tileExecutor);
+        } else {
+            this.threads = threads;
+            tileExecutor = null;
+            tiledProcessor = null;
+        }
+        this.pngLevel = pngLevel;
+        this.pngFilter = pngFilter;
+        pngExecutor = Executors.newFixedThreadPool(threads);
+        pngEncoder = new PngEncoder(pngLevel, pngFilter, pngExecutor);
+        sequenceProcessor = sequence
+                ? new SequenceProcessor(simulator, simulations, pngEncoder) : null;
+        memoryBlocks = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / BLOCK));
+        memory = new Semaphore(memoryBlocks, true);
+    }
+
+    /**
+     * Runs the batch mode.
+     *
+     * @param args The command line arguments, starting with OPTION.
+     * @return The exit code: 0 on success, 1 if a file could not be
+     * processed, 2 if the arguments are invalid.
+     */
+    static int run(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+
+        Set<Simulation> simulations = EnumSet.of(Simulation.deutan,
+                Simulation.protan, Simulation.tritan);
+        File outputDirectory = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+        int tileSize = 0;
+        boolean pyramid = false;
+        boolean force = false;
+        boolean sequence = false;
+        int pngLevel = 4;
+        PngEncoder.Filter pngFilter = PngEncoder.Filter.adaptive;
+        ColorLut.Interpolation interpolation = ColorLut.Interpolation.tetrahedral;
+        int lutSize = 0;
+        final Map<Simulation, File> lutFiles = new EnumMap<>(Simulation.class);
+        final List<File> inputs = new ArrayList<>();
+        try {
+            for (int i = 1; i < args.length; i++) {
+                final String arg = args[i];
+                switch (arg) {
+                    case "-o":
+                        outputDirectory = new File(value(args, ++i));
+                        break;
+                    case "-s":
+                        simulations = EnumSet.noneOf(Simulation.class);
+                        for (String name : value(args, ++i).split(",")) {
+                            simulations.add(Simulation.valueOf(name.trim().toLowerCase(Locale.US)));
+                        }
+                        break;
+                    case "-t":
+                        threads = Integer.parseInt(value(args, ++i));
+                        break;
+                    case "-m":
+                        memoryBudget = Long.parseLong(value(args, ++i)) * 1024 * 1024;
+                        break;
+                    case "-tile":
+                        tileSize = Integer.parseInt(value(args, ++i));
+                        if (tileSize < 16 || tileSize % 16 != 0) {
+                            throw new IllegalArgumentException(
+                                    "The tile size must be a multiple of 16");
+                        }
+                        break;
+                    case "-level":
+                        pngLevel = Integer.parseInt(value(args, ++i));
+                        if (pngLevel < 0 || pngLevel > 9) {
+                            throw new IllegalArgumentException(
+                                    "The compression level must be between 0 and 9");
+                        }
+                        break;
+                    case "-filter":
+                        pngFilter = PngEncoder.Filter.valueOf(
+                                value(args, ++i).toLowerCase(Locale.US));
+                        break;
+                    case "-sequence":
+                        sequence = true;
+                        break;
+                    case "-force":
+                        force = true;
+                        break;
+                    case "-pyramid":
+                        pyramid = true;
+                        break;
+                    case "-lut": {
+                        final String lut = value(args, ++i);
+                        final int equals = lut.indexOf('=');
+                        if (equals < 0) {
+                            throw new IllegalArgumentException(
+                                    "-lut expects type=file, for example deutan=deutan.cube");
+                        }
+                        lutFiles.put(Simulation.valueOf(lut.substring(0, equals)
+                                .trim().toLowerCase(Locale.US)),
+                                new File(lut.substring(equals + 1)));
+                        break;
+                    }
+                    case "-lut-size":
+                        lutSize = Integer.parseInt(value(args, ++i));
+                        if (lutSize < 2 || lutSize > 256) {
+                            throw new IllegalArgumentException(
+                                    "The lookup table size must be between 2 and 256");
+                        }
+                        break;
+                    case "-interpolation":
+                        interpolation = ColorLut.Interpolation.valueOf(
+                                value(args, ++i).toLowerCase(Locale.US));
+                        break;
+                    case "-h":
+                    case "-help":
+                        System.out.println(USAGE);
+                        return 0;
+                    default:
+                        if (arg.startsWith("-")) {
+                            throw new IllegalArgumentException("Unknown option " + arg);
+                        }
+                        inputs.add(new File(arg));
+                }
+            }
+            if (outputDirectory == null) {
+                throw new IllegalArgumentException("No output directory");
+            }
+            if (inputs.isEmpty()) {
+                throw new IllegalArgumentException("No input files");
+            }
+            if (sequence && tileSize > 0) {
+                throw new IllegalArgumentException("-sequence cannot be combined with -tile");
+            }
+            if (threads < 1 || memoryBudget < 1) {
+                throw new IllegalArgumentException("Invalid number of threads or memory budget");
+            }
+            simulations.addAll(lutFiles.keySet());
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        final Map<Simulation, ColorLut> luts = new EnumMap<>(Simulation.class);
+        final Map<Simulation, String> lutHashes = new EnumMap<>(Simulation.class);
+        for (Map.Entry<Simulation, File> entry : lutFiles.entrySet()) {
+            try {
+                luts.put(entry.getKey(), ColorLut.read(entry.getValue(), interpolation));
+                lutHashes.put(entry.getKey(), BatchManifest.hash(entry.getValue())
+                        + " " + interpolation);
+            } catch (IOException ex) {
+                System.err.println("Cannot read the lookup table: " + ex.getMessage());
+                return 2;
+            }
+        }
+        if (lutSize > 0) {
+            outputDirectory.mkdirs();
+            final Simulator simulator = new Simulator(1);
+            for (Simulation simulation : simulations) {
+                if (simulation == Simulation.normal || luts.containsKey(simulation)) {
+                    continue;
+                }
+                final ColorLut lut = simulator.createLut(simulation, lutSize, interpolation);
+                final File file = new File(outputDirectory, simulation + "-" + lutSize + ".cube");
+                try {
+                    lut.write(file);
+                } catch (IOException ex) {
+                    System.err.println("Cannot write the lookup table: " + ex.getMessage());
+                    return 1;
+                }
+                System.out.println(simulator.measureLutError(simulation, lut));
+                luts.put(simulation, lut);
+                lutHashes.put(simulation, "size " + lutSize + " " + interpolation);
+            }
+        }
+
+        if (pyramid) {
+            if (inputs.size() != 1 || !inputs.get(0).isDirectory()) {
+                System.err.println("The tile pyramid must be a single directory");
+                return 2;
+            }
+            try {
+                final Simulator simulator = new Simulator();
+                for (Map.Entry<Simulation, ColorLut> entry : luts.entrySet()) {
+                    simulator.setLut(entry.getKey(), entry.getValue());
+                }
+                final PyramidProcessor processor = new PyramidProcessor(
+                        simulator, simulations, outputDirectory, threads,
+                        new PngEncoder(pngLevel, pngFilter, null));
+                return processor.process(inputs.get(0)) > 0 ? 1 : 0;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                System.err.println("Interrupted");
+                return 1;
+            }
+        }
+
+        final List<Job> jobs = new ArrayList<>();
+        for (File input : inputs) {
+            if (input.isDirectory() && sequence) {
+                jobs.add(new Job(input, ""));
+            } else if (input.isDirectory()) {
+                collect(input, directoryName(input), jobs);
+            } else if (input.isFile()) {
+                jobs.add(new Job(input, ""));
+            } else {
+                System.err.println("File not found: " + input);
+                return 2;
+            }
+        }
+
+        nameOutputs(jobs, sequence);
+        final String collision = findCollision(jobs, simulations, tileSize > 0, sequence);
+        if (collision != null) {
+            System.err.println(collision);
+            return 2;
+        }
+
+        final BatchManifest manifest;
+        try {
+            manifest = BatchManifest.open(outputDirectory);
+        } catch (IOException ex) {
+            System.err.println("Cannot write the manifest: " + ex.getMessage());
+            return 1;
+        }
+        final BatchProcessor processor = new BatchProcessor(simulations,
+                outputDirectory, threads, memoryBudget, tileSize, force, manifest,
+                pngLevel, pngFilter, sequence, luts, lutHashes);
+        try {
+            processor.process(jobs);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            System.err.println("Interrupted");
+            return 1;
+        } finally {
+            processor.pngExecutor.shutdownNow();
+            if (processor.tileExecutor != null) {
+                processor.tileExecutor.shutdownNow();
+            }
+            try {
+                manifest.close();
+            } catch (IOException ex) {
+                System.err.println("Cannot write the manifest: " + ex.getMessage());
+            }
+        }
+        return processor.failedFiles.get() > 0 ? 1 : 0;
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+        }
+        return args[i];
+    }
+
+    /**
+     * Adds the image files in a directory and its sub-directories.
+     */
+    private static void collect(File directory, String relativeDirectory,
+            List<Job> jobs) {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        final Set<String> suffixes = new HashSet<>(
+                Arrays.asList(ImageIO.getReaderFileSuffixes()));
+        for (File file : files) {
+            if (file.isDirectory()) {
+                collect(file, relativeDirectory + file.getName() + File.separator, jobs);
+            } else if (suffixes.contains(suffix(file.getName()))
+                    || RawFile.isRawFile(file)) {
+                jobs.add(new Job(file, relativeDirectory));
+            }
+        }
+    }
+
+    /**
+     * Returns the relative directory of the output files of an input
+     * directory: its name followed by a separator.
+     */
+    private static String directoryName(File directory) {
+        final Path name = directory.getAbsoluteFile().toPath()
+                .normalize().getFileName();
+        return name == null ? "" : name + File.separator;
+    }
+
+    /**
+     * Sets the names of the output files of the jobs. Output files are named
+     * after the input files without extension, unless several input files
+     * in the same directory have the same name without extension.
+     * Directories of frames keep their names.
+     */
+    private static void nameOutputs(List<Job> jobs, boolean sequence) {
+        final Map<String, Integer> counts = new HashMap<>();
+        for (Job job : jobs) {
+            final String key = baseNameKey(job, sequence);
+            final Integer count = counts.get(key);
+            counts.put(key, count == null ? 1 : count + 1);
+        }
+        for (Job job : jobs) {
+            final String name = job.input.getName();
+            final boolean frames = sequence && job.input.isDirectory();
+            job.outputName = frames || counts.get(baseNameKey(job, sequence)) > 1
+                    ? name : baseName(name);
+        }
+    }
+
+    /**
+     * Returns the output directory and name without extension of a job, in
+     * lower case, as file systems may ignore case.
+     */
+    private static String baseNameKey(Job job, boolean sequence) {
+        final String name = job.input.getName();
+        final boolean frames = sequence && job.input.isDirectory();
+        return (job.relativeDirectory + (frames ? name : baseName(name)))
+                .toLowerCase(Locale.US);
+    }
+
+    /**
+     * Returns the format of the output files of an input file: the suffix of
+     * raw files, tif for tiles, gif for animated GIF sequences, and png
+     * otherwise.
+     */
+    private static String format(File input, boolean tiled, boolean sequence) {
+        return RawFile.isRawFile(input) ? suffix(input.getName())
+                : tiled ? "tif" : sequence && SequenceProcessor.isGif(input) ? "gif" : "png";
+    }
+
+    /**
+     * Returns the path of the output file or directory of a job and a
+     * simulation, relative to the output directory.
+     */
+    private static String outputPath(Job job, Simulation simulation,
+            boolean tiled, boolean sequence) {
+        final String path = job.relativeDirectory + job.outputName + "-" + simulation;
+        if (sequence && job.input.isDirectory()) {
+            return path;
+        }
+        return path + "." + format(job.input, tiled, sequence);
+    }
+
+    /**
+     * Returns an error message if two jobs write the same output file, or
+     * null. Paths are compared in lower case, as file systems may ignore
+     * case.
+     */
+    private static String findCollision(List<Job> jobs,
+            Set<Simulation> simulations, boolean tiled, boolean sequence) {
+        final Map<String, File> inputs = new HashMap<>();
+        for (Job job : jobs) {
+            for (Simulation simulation : simulations) {
+                final String path = outputPath(job, simulation, tiled, sequence);
+                final File other = inputs.put(path.toLowerCase(Locale.US), job.input);
+                if (other != null && !other.equals(job.input)) {
+                    return other + " and " + job.input
+                            + " would both be written to " + path;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String suffix(String name) {
+        final int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.US);
+    }
+
+    private static String baseName(String name) {
+        final int dot = name.lastIndexOf('.');
+        return dot < 0 ? name : name.substring(0, dot);
+    }
+
+    /**
+     * Processes all files on the worker threads and prints a summary.
+     */
+    private void process(List<Job> jobs) throws InterruptedException {
+        final long start = System.nanoTime();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (final Job job : jobs) {
+                executor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            if (process(job)) {
+                                processedFiles.incrementAndGet();
+                            }
+                        } catch (Exception | OutOfMemoryError ex) {
+                            failedFiles.incrementAndGet();
+                            System.err.println("Cannot process " + job.input + ": " + ex);
+                        }
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+        }
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            // wait for all files
+        }
+
+        final double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+        final double megapixels = processedPixels.get() / 1e6;
+        final int files = processedFiles.get();
+        System.out.println(String.format(Locale.US,
+                "%d files (%d failed, %d unchanged skipped), %.1f megapixels in %.2f s: %.1f files/s, %.1f MP/s",
+                files, failedFiles.get(), skippedFiles.get(), megapixels, seconds,
+                files / seconds, megapixels / seconds));
+        if (sequenceProcessor != null && sequenceProcessor.getTiles() > 0) {
+            System.out.println(String.format(Locale.US,
+                    "%d of %d frame tiles changed and simulated (%.1f%%)",
+                    sequenceProcessor.getSimulatedTiles(), sequenceProcessor.getTiles(),
+                    100. * sequenceProcessor.getSimulatedTiles() / sequenceProcessor.getTiles()));
+        }
+        final ColorCache.Statistics cache = simulator.getCacheStatistics();
+        if (cache.getRunHits() + cache.getHits() + cache.getMisses() + cache.getUncached() > 0) {
+            System.out.println("Color cache: " + cache);
+        }
+    }
+
+    /**
+     * Reads a file, simulates it and writes the simulated images. The file
+     * is skipped if the manifest shows that all its output files are
+     * current.
+     *
+     * @return False if the file was skipped.
+     */
+    private boolean process(Job job) throws IOException, InterruptedException {
+        createOutputDirectory(job);
+        final Map<Simulation, File> outputs = new EnumMap<>(Simulation.class);
+        for (Simulation simulation : simulations) {
+            outputs.put(simulation, new File(outputDirectory, outputPath(job,
+                    simulation, tiledProcessor != null, sequenceProcessor != null)));
+        }
+        if (sequenceProcessor != null && job.input.isDirectory()) {
+            memory.acquire(memoryBlocks);
+            try {
+                processedPixels.addAndGet(sequenceProcessor.processFrames(job.input, outputs));
+            } finally {
+                memory.release(memoryBlocks);
+            }
+            return true;
+        }
+        final boolean gifSequence = sequenceProcessor != null
+                && SequenceProcessor.isGif(job.input);
+        final String format = format(job.input, tiledProcessor != null,
+                sequenceProcessor != null);
+
+        // the key of each output file: the input hash and the parameters
+        final Map<Simulation, String> keys = new EnumMap<>(Simulation.class);
+        final String hash = BatchManifest.hash(job.input);
+        boolean current = !force;
+        for (Simulation simulation : simulations) {
+            final String key = hash + " " + simulation + " " + format
+                    + (tiledProcessor != null ? " " + tileSize : "")
+                    + ("png".equals(format) ? " " + pngLevel + " " + pngFilter : "")
+                    + (lutHashes.containsKey(simulation) ? " lut " + lutHashes.get(simulation) : "");
+            keys.put(simulation, key);
+            current &= manifest.isCurrent(outputDirectory, job.input,
+                    outputs.get(simulation), key);
+        }
+        if (current) {
+            skippedFiles.incrementAndGet();
+            return false;
+        }
+
+        if (gifSequence) {
+            final Map<Simulation, File> temps = new EnumMap<>(Simulation.class);
+            for (Simulation simulation : simulations) {
+                temps.put(simulation, temporaryFile(outputs.get(simulation)));
+            }
+            memory.acquire(memoryBlocks);
+            try {
+                processedPixels.addAndGet(sequenceProcessor.processGif(job.input, temps));
+            } finally {
+                memory.release(memoryBlocks);
+            }
+            for (Simulation simulation : simulations) {
+                install(job.input, temps.get(simulation), outputs.get(simulation),
+                        keys.get(simulation));
+            }
+            return true;
+        }
+        if (RawFile.isRawFile(job.input) || tiledProcessor != null) {
+            long pixels = 0;
+            for (Simulation simulation : simulations) {
+                final File file = outputs.get(simulation);
+                final File temp = temporaryFile(file);
+                pixels += RawFile.isRawFile(job.input)
+                        ? RawFile.process(simulator, simulation, job.input, temp)
+                        : tiledProcessor.process(job.input, temp, simulation);
+                install(job.input, temp, file, keys.get(simulation));
+            }
+            processedPixels.addAndGet(pixels);
+            return true;
+        }
+        try (ImageInputStream stream = ImageIO.createImageInputStream(job.input)) {
+            if (stream == null) {
+                throw new IOException("Cannot open file");
+            }
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format");
+            }
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                final long pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+
+                // the source image and one image per simulation with 4 bytes
+                // per pixel, at most the whole budget
+                final long bytes = pixels * 4 * (1 + simulations.size());
+                final int blocks = (int) Math.min(memoryBlocks, bytes / BLOCK + 1);
+                memory.acquire(blocks);
+                try {
+                    final BufferedImage image = reader.read(0);
+                    for (Map.Entry<Simulation, BufferedImage> entry : filter(image).entrySet()) {
+                        final File file = outputs.get(entry.getKey());
+                        final File temp = temporaryFile(file);
+                        write(entry.getValue(), temp);
+                        install(job.input, temp, file, keys.get(entry.getKey()));
+                    }
+                    processedPixels.addAndGet(pixels);
+                } finally {
+                    memory.release(blocks);
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Simulates an image. Images with 16 bits per channel are filtered one
+     * simulation after the other to keep their precision, all others in one
+     * pass.
+     */
+    private Map<Simulation, BufferedImage> filter(BufferedImage image) {
+        if (!PixelLayout.of(image).is16Bit()) {
+            return simulator.filter(image, simulations);
+        }
+        final Map<Simulation, BufferedImage> images = new EnumMap<>(Simulation.class);
+        for (Simulation simulation : simulations) {
+            images.put(simulation, simulator.filter(simulation, image, null));
+        }
+        return images;
+    }
+
+    /**
+     * Writes a simulated image to a PNG file.
+     */
+    private void write(BufferedImage image, File file) throws IOException {
+        if (PixelLayout.of(image).is16Bit()) {
+            if (!ImageIO.write(image, "png", file)) {
+                throw new IOException("Cannot write " + file);
+            }
+        } else {
+            pngEncoder.write(image, file);
+        }
+    }
+
+    /**
+     * Creates the directory of the output files of a job if needed.
+     */
+    private void createOutputDirectory(Job job) throws IOException {
+        final File directory = new File(outputDirectory, job.relativeDirectory);
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+    }
+
+    /**
+     * Returns the temporary file an output file is written to before it is
+     * complete.
+     */
+    private static File temporaryFile(File file) {
+        return new File(file.getPath() + ".part");
+    }
+
+    /**
+     * Replaces an output file by its complete temporary file, and records it
+     * in the manifest.
+     */
+    private void install(File input, File temp, File file, String key)
+            throws IOException {
+        BatchManifest.install(temp, file);
+        manifest.put(outputDirectory, input, file, key);
+    }
+}
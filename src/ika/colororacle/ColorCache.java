@@ -0,0 +1,256 @@
+/*
+ * ColorCache.java
+ *
+ */
+package ika.colororacle;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small cache of converted colors. Maps and screenshots use a few hundred
+ * colors across the image, which rarely form long horizontal runs.
+ *
+ * The cache is 4-way set associative: a color can be stored in one of the
+ * four slots of the set selected by its hash. When all four slots are
+ * occupied by other colors, the slot that was filled first is replaced.
+ * Keys and values are stored in int arrays, without boxing. A cache is not
+ * thread-safe and is used by one thread for one range of pixels.
+ *
+ * Photographs and noise have few repeated colors, and looking them up only
+ * adds to the cost of converting them. The first PROBE_LENGTH pixels of a
+ * range are therefore filtered with the cache; if fewer than MIN_HIT_RATE of
+ * them did not need to be converted, the cache is bypassed for the rest of
+ * the range.
+ */
+final class ColorCache {
+
+    /**
+     * Counts cache hits and misses. Thread-safe.
+     */
+    static final class Statistics {
+
+        private final AtomicLong runHits = new AtomicLong();
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong uncached = new AtomicLong();
+
+        /**
+         * Returns the number of pixels identical to the preceding pixel.
+         */
+        long getRunHits() {
+            return runHits.get();
+        }
+
+        /**
+         * Returns the number of pixels found in the cache.
+         */
+        long getHits() {
+            return hits.get();
+        }
+
+        /**
+         * Returns the number of pixels that were converted.
+         */
+        long getMisses() {
+            return misses.get();
+        }
+
+        /**
+         * Returns the number of pixels filtered after the cache was
+         * bypassed.
+         */
+        long getUncached() {
+            return uncached.get();
+        }
+
+        /**
+         * Returns the share of pixels that did not need to be converted.
+         *
+         * @return A value between 0 and 1, or 0 if no pixels were counted.
+         */
+        double getHitRate() {
+            final long runHitCount = runHits.get();
+            final long hitCount = hits.get();
+            final long total = runHitCount + hitCount + misses.get() + uncached.get();
+            return total == 0 ? 0 : (double) (runHitCount + hitCount) / total;
+        }
+
+        /**
+         * Sets all counters to 0.
+         */
+        void reset() {
+            runHits.set(0);
+            hits.set(0);
+            misses.set(0);
+            uncached.set(0);
+        }
+
+        void add(long runHitCount, long hitCount, long missCount,
+                long uncachedCount) {
+            runHits.addAndGet(runHitCount);
+            hits.addAndGet(hitCount);
+            misses.addAndGet(missCount);
+            uncached.addAndGet(uncachedCount);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "run hits %d, cache hits %d, misses %d, uncached %d, hit rate %.1f%%",
+                    getRunHits(), getHits(), getMisses(), getUncached(),
+                    getHitRate() * 100);
+        }
+    }
+
+    /**
+     * Converts a single color.
+     */
+    interface Converter {
+
+        int convert(int rgb);
+    }
+
+    /**
+     * The number of slots in a set.
+     */
+    private static final int WAYS = 4;
+
+    /**
+     * The number of sets. 1024 sets with 4 slots cache 4096 colors in 32 KB.
+     */
+    private static final int SETS = 1024;
+
+    /**
+     * The number of pixels filtered with the cache before deciding whether
+     * to bypass it, and the minimum share of these pixels that must not
+     * need to be converted.
+     */
+    static final int PROBE_LENGTH = 4096;
+    private static final double MIN_HIT_RATE = 0.5;
+
+    private final int[] keys = new int[SETS * WAYS];
+    private final int[] values = new int[SETS * WAYS];
+
+    /**
+     * For each set, the slot to replace next.
+     */
+    private final byte[] next = new byte[SETS];
+
+    private final Converter converter;
+
+    /**
+     * Counters, which are added to the statistics by flush().
+     */
+    int runHits = 0;
+    int hits = 0;
+    int misses = 0;
+    int uncached = 0;
+
+    /**
+     * The number of pixels filtered with the cache, up to PROBE_LENGTH.
+     */
+    private int probed = 0;
+
+    /**
+     * True if the colors are converted without the cache.
+     */
+    private boolean bypassed = false;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param converter Converts colors that are not in the cache.
+     */
+    ColorCache(Converter converter) {
+        this.converter = converter;
+
+        // fill all slots with the converted value of color 0. There are no
+        // empty slots, so lookups need not test for them.
+        Arrays.fill(values, converter.convert(0));
+    }
+
+    /**
+     * Returns the converted color, either from the cache or by converting
+     * it.
+     *
+     * @param rgb The color to convert.
+     * @return The converted color.
+     */
+    int get(int rgb) {
+        final int set = ((rgb * 0x9E3779B1) >>> 22) * WAYS;
+        final int[] k = keys;
+        if (k[set] == rgb) {
+            hits++;
+            return values[set];
+        }
+        if (k[set + 1] == rgb) {
+            hits++;
+            return values[set + 1];
+        }
+        if (k[set + 2] == rgb) {
+            hits++;
+            return values[set + 2];
+        }
+        if (k[set + 3] == rgb) {
+            hits++;
+            return values[set + 3];
+        }
+        misses++;
+        final int value = converter.convert(rgb);
+        final int s = set / WAYS;
+        final int slot = set + next[s];
+        next[s] = (byte) ((next[s] + 1) & (WAYS - 1));
+        k[slot] = rgb;
+        values[slot] = value;
+        return value;
+    }
+
+    /**
+     * Returns the number of pixels that are still to be filtered with the
+     * cache before deciding whether to bypass it.
+     *
+     * @return The number of pixels, or 0 if the decision was made.
+     */
+    int getProbeLength() {
+        return PROBE_LENGTH - probed;
+    }
+
+    /**
+     * Counts pixels filtered with the cache while probing, and decides
+     * whether to bypass the cache after PROBE_LENGTH pixels.
+     *
+     * @param length The number of pixels, at most getProbeLength().
+     */
+    void probed(int length) {
+        probed += length;
+        if (probed == PROBE_LENGTH) {
+            final int found = runHits + hits;
+            bypassed = found < MIN_HIT_RATE * (found + misses);
+        }
+    }
+
+    /**
+     * Returns whether the colors are converted without the cache, because
+     * too few colors were found in it while probing.
+     *
+     * @return True if the cache is bypassed.
+     */
+    boolean isBypassed() {
+        return bypassed;
+    }
+
+    /**
+     * Adds the counters to statistics and sets them to 0.
+     *
+     * @param statistics The statistics to update.
+     */
+    void flush(Statistics statistics) {
+        statistics.add(runHits, hits, misses, uncached);
+        runHits = 0;
+        hits = 0;
+        misses = 0;
+        uncached = 0;
+    }
+}
@@ -0,0 +1,494 @@
+/*
+ * ColorLut.java
+ *
+ */
+package ika.colororacle;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A 3D color lookup table. The table stores the result of a color
+ * transformation for a regular grid of size x size x size sRGB colors. Colors
+ * between grid nodes are interpolated. The table can be read from and written
+ * to .cube files (Adobe/Resolve cube LUT format).
+ *
+ * A table is immutable and can convert colors on multiple threads at the
+ * same time.
+ */
+final class ColorLut {
+
+    /**
+     * Interpolation between the grid nodes.
+     */
+    enum Interpolation {
+
+        /**
+         * Weighted average of the 8 nodes of the cube containing a color.
+         */
+        trilinear,
+        /**
+         * Weighted average of the 4 nodes of the tetrahedron containing a
+         * color. Faster than trilinear, and more accurate along the gray axis.
+         */
+        tetrahedral
+    }
+
+    /**
+     * The accuracy of a lookup table compared to the exact transformation.
+     */
+    static final class Accuracy {
+
+        /**
+         * The largest difference of a channel in 0..255.
+         */
+        final int maxError;
+
+        /**
+         * The average difference of a channel in 0..255.
+         */
+        final double meanError;
+
+        private final String description;
+
+        Accuracy(int maxError, double meanError, String description) {
+            this.maxError = maxError;
+            this.meanError = meanError;
+            this.description = description;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: max error %d, mean error %.4f",
+                    description, maxError, meanError);
+        }
+    }
+
+    /**
+     * The number of grid nodes along each axis.
+     */
+    private final int size;
+
+    /**
+     * Red, green and blue values between 0 and 1 for each grid node. Red
+     * changes fastest, blue slowest, as in .cube files.
+     */
+    private final float[] table;
+
+    /**
+     * The title of the table, or null.
+     */
+    private final String title;
+
+    /**
+     * The input values mapped to 0 and 1.
+     */
+    private final float[] domainMin;
+    private final float[] domainMax;
+
+    private final Interpolation interpolation;
+
+    /**
+     * For each channel and sRGB value in 0..255, the table offset of the
+     * lower grid node and the fractional position between the lower and the
+     * upper node.
+     */
+    private final int[][] nodeOffset = new int[3][256];
+    private final float[][] nodeFraction = new float[3][256];
+
+    /**
+     * Creates a new lookup table with tetrahedral interpolation.
+     *
+     * @param size The number of grid nodes along each axis, at least 2.
+     * @param table Red, green and blue values between 0 and 1 for each of the
+     * size^3 grid nodes. Red changes fastest.
+     * @param title The title of the table, or null.
+     */
+    ColorLut(int size, float[] table, String title) {
+        this(size, table, title, new float[]{0, 0, 0}, new float[]{1, 1, 1},
+                Interpolation.tetrahedral);
+    }
+
+    private ColorLut(int size, float[] table, String title,
+            float[] domainMin, float[] domainMax, Interpolation interpolation) {
+        if (interpolation == null) {
+            throw new IllegalArgumentException("interpolation is null");
+        }
+        if (size < 2 || size > 256) {
+            throw new IllegalArgumentException("Invalid LUT size: " + size);
+        }
+        if (table.length != size * size * size * 3) {
+            throw new IllegalArgumentException("LUT table must have "
+                    + size * size * size * 3 + " values");
+        }
+        this.size = size;
+        this.table = table;
+        this.title = title;
+        this.domainMin = domainMin;
+        this.domainMax = domainMax;
+        this.interpolation = interpolation;
+
+        // the distance between two nodes in the table along each axis
+        final int[] stride = {3, 3 * size, 3 * size * size};
+        for (int c = 0; c < 3; c++) {
+            for (int v = 0; v < 256; v++) {
+                float x = (v / 255f - domainMin[c]) / (domainMax[c] - domainMin[c]);
+                x = Math.max(0f, Math.min(1f, x)) * (size - 1);
+                final int node = Math.min((int) x, size - 2);
+                nodeOffset[c][v] = node * stride[c];
+                nodeFraction[c][v] = x - node;
+            }
+        }
+    }
+
+    /**
+     * Samples a color transformation at the grid nodes. The grid nodes are
+     * rounded to the nearest 8-bit sRGB values.
+     *
+     * @param size The number of grid nodes along each axis, for example 33 or
+     * 65.
+     * @param filter Converts an array of sRGB colors.
+     * @param title The title of the table, or null.
+     * @param interpolation The interpolation between the grid nodes.
+     * @return The new lookup table.
+     */
+    static ColorLut sample(int size, Simulator.PixelFilter filter, String title,
+            Interpolation interpolation) {
+        final int nodes = size * size * size;
+        final int[] in = new int[nodes];
+        int i = 0;
+        for (int b = 0; b < size; b++) {
+            for (int g = 0; g < size; g++) {
+                for (int r = 0; r < size; r++) {
+                    in[i++] = 0xff000000 | nodeValue(r, size) << 16
+                            | nodeValue(g, size) << 8 | nodeValue(b, size);
+                }
+            }
+        }
+        final int[] out = new int[nodes];
+        filter.filter(in, out, 0, nodes);
+
+        final float[] table = new float[nodes * 3];
+        for (i = 0; i < nodes; i++) {
+            table[i * 3] = ((out[i] >> 16) & 0xff) / 255f;
+            table[i * 3 + 1] = ((out[i] >> 8) & 0xff) / 255f;
+            table[i * 3 + 2] = (out[i] & 0xff) / 255f;
+        }
+        return new ColorLut(size, table, title, new float[]{0, 0, 0},
+                new float[]{1, 1, 1}, interpolation);
+    }
+
+    /**
+     * Returns the sRGB value in 0..255 of a grid node.
+     */
+    private static int nodeValue(int node, int size) {
+        return Math.round(node * 255f / (size - 1));
+    }
+
+    /**
+     * Compares this table to the exact transformation for all 2^24 sRGB
+     * colors.
+     *
+     * @param filter The exact transformation.
+     * @return The accuracy of this table.
+     */
+    Accuracy measureError(Simulator.PixelFilter filter) {
+        final int chunk = 1 << 16;
+        final int[] in = new int[chunk];
+        final int[] out = new int[chunk];
+        int maxError = 0;
+        long sumError = 0;
+        for (int start = 0; start < 1 << 24; start += chunk) {
+            for (int i = 0; i < chunk; i++) {
+                in[i] = 0xff000000 | (start + i);
+            }
+            filter.filter(in, out, 0, chunk);
+            for (int i = 0; i < chunk; i++) {
+                final int lut = apply(in[i]);
+                final int exact = out[i];
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    final int d = Math.abs(((lut >> shift) & 0xff) - ((exact >> shift) & 0xff));
+                    maxError = Math.max(maxError, d);
+                    sumError += d;
+                }
+            }
+        }
+        final String description = size + "x" + size + "x" + size + " " + interpolation
+                + (title == null ? "" : " " + title);
+        return new Accuracy(maxError, sumError / (3. * (1 << 24)), description);
+    }
+
+    /**
+     * Returns the number of grid nodes along each axis.
+     */
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the title of the table, or null.
+     */
+    String getTitle() {
+        return title;
+    }
+
+    /**
+     * Returns the interpolation between the grid nodes.
+     */
+    Interpolation getInterpolation() {
+        return interpolation;
+    }
+
+    /**
+     * Converts a color.
+     *
+     * @param rgb The sRGB color. Alpha is ignored.
+     * @return The converted, opaque sRGB color.
+     */
+    int apply(int rgb) {
+        final int r = (rgb >> 16) & 0xff;
+        final int g = (rgb >> 8) & 0xff;
+        final int b = rgb & 0xff;
+        final int base = nodeOffset[0][r] + nodeOffset[1][g] + nodeOffset[2][b];
+        final float fr = nodeFraction[0][r];
+        final float fg = nodeFraction[1][g];
+        final float fb = nodeFraction[2][b];
+        if (interpolation == Interpolation.tetrahedral) {
+            return tetrahedral(base, fr, fg, fb);
+        } else {
+            return trilinear(base, fr, fg, fb);
+        }
+    }
+
+    private int tetrahedral(int base, float fr, float fg, float fb) {
+        // table offsets of the neighbors in red, green and blue direction
+        final int dr = 3;
+        final int dg = 3 * size;
+        final int db = 3 * size * size;
+
+        // the tetrahedron is selected by the order of the fractions. Each
+        // tetrahedron has the nodes c000 and c111, and two nodes between them.
+        final int n1, n2;
+        final float w0, w1, w2, w3;
+        if (fr > fg) {
+            if (fg > fb) {
+                n1 = dr;
+                n2 = dr + dg;
+                w0 = 1 - fr;
+                w1 = fr - fg;
+                w2 = fg - fb;
+                w3 = fb;
+            } else if (fr > fb) {
+                n1 = dr;
+                n2 = dr + db;
+                w0 = 1 - fr;
+                w1 = fr - fb;
+                w2 = fb - fg;
+                w3 = fg;
+            } else {
+                n1 = db;
+                n2 = dr + db;
+                w0 = 1 - fb;
+                w1 = fb - fr;
+                w2 = fr - fg;
+                w3 = fg;
+            }
+        } else {
+            if (fb > fg) {
+                n1 = db;
+                n2 = dg + db;
+                w0 = 1 - fb;
+                w1 = fb - fg;
+                w2 = fg - fr;
+                w3 = fr;
+            } else if (fb > fr) {
+                n1 = dg;
+                n2 = dg + db;
+                w0 = 1 - fg;
+                w1 = fg - fb;
+                w2 = fb - fr;
+                w3 = fr;
+            } else {
+                n1 = dg;
+                n2 = dr + dg;
+                w0 = 1 - fg;
+                w1 = fg - fr;
+                w2 = fr - fb;
+                w3 = fb;
+            }
+        }
+        final int n3 = dr + dg + db;
+        final float[] t = table;
+        int rgb = 0xff000000;
+        for (int c = 0; c < 3; c++) {
+            final int i = base + c;
+            final float v = w0 * t[i] + w1 * t[i + n1] + w2 * t[i + n2] + w3 * t[i + n3];
+            rgb |= toByte(v) << (16 - 8 * c);
+        }
+        return rgb;
+    }
+
+    private int trilinear(int base, float fr, float fg, float fb) {
+        final int dr = 3;
+        final int dg = 3 * size;
+        final int db = 3 * size * size;
+        final float[] t = table;
+        int rgb = 0xff000000;
+        for (int c = 0; c < 3; c++) {
+            final int i = base + c;
+            final float v00 = t[i] + fr * (t[i + dr] - t[i]);
+            final float v10 = t[i + dg] + fr * (t[i + dg + dr] - t[i + dg]);
+            final float v01 = t[i + db] + fr * (t[i + db + dr] - t[i + db]);
+            final float v11 = t[i + db + dg] + fr * (t[i + db + dg + dr] - t[i + db + dg]);
+            final float v0 = v00 + fg * (v10 - v00);
+            final float v1 = v01 + fg * (v11 - v01);
+            rgb |= toByte(v0 + fb * (v1 - v0)) << (16 - 8 * c);
+        }
+        return rgb;
+    }
+
+    /**
+     * Converts a value between 0 and 1 to 0..255.
+     */
+    private static int toByte(float v) {
+        final int i = (int) (v * 255f + 0.5f);
+        return i < 0 ? 0 : (i > 255 ? 255 : i);
+    }
+
+    /**
+     * Reads a 3D lookup table from a .cube file.
+     *
+     * @param file The file to read.
+     * @param interpolation The interpolation between the grid nodes.
+     * @return The new lookup table.
+     * @throws IOException If the file cannot be read or is not a valid 3D
+     * cube file.
+     */
+    static ColorLut read(File file, Interpolation interpolation)
+            throws IOException {
+        String title = null;
+        int size = 0;
+        float[] domainMin = {0, 0, 0};
+        float[] domainMax = {1, 1, 1};
+        float[] table = null;
+        int count = 0;
+        int lineNumber = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), Charset.forName("UTF-8")))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                final String[] tokens = line.split("\\s+");
+                final String keyword = tokens[0];
+                try {
+                    if (keyword.equals("TITLE")) {
+                        title = line.substring(5).trim().replaceAll("^\"|\"$", "");
+                    } else if (keyword.equals("LUT_3D_SIZE")) {
+                        size = Integer.parseInt(tokens[1]);
+                        if (size < 2 || size > 256) {
+                            throw new IOException("Invalid LUT_3D_SIZE " + size
+                                    + " in " + file.getName());
+                        }
+                        table = new float[size * size * size * 3];
+                    } else if (keyword.equals("DOMAIN_MIN")) {
+                        domainMin = parseTriple(tokens);
+                    } else if (keyword.equals("DOMAIN_MAX")) {
+                        domainMax = parseTriple(tokens);
+                    } else if (keyword.equals("LUT_1D_SIZE")) {
+                        throw new IOException("1D lookup tables are not supported: "
+                                + file.getName());
+                    } else if (Character.isLetter(keyword.charAt(0))) {
+                        // ignore unknown keywords, e.g. LUT_3D_INPUT_RANGE
+                    } else {
+                        if (table == null) {
+                            throw new IOException("LUT_3D_SIZE missing before data in "
+                                    + file.getName());
+                        }
+                        if (count == table.length) {
+                            throw new IOException("Too many values in " + file.getName());
+                        }
+                        final float[] rgb = parseTriple(tokens);
+                        table[count++] = rgb[0];
+                        table[count++] = rgb[1];
+                        table[count++] = rgb[2];
+                    }
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+                    throw new IOException("Invalid line " + lineNumber + " in "
+                            + file.getName() + ": " + line, ex);
+                }
+            }
+        }
+        if (table == null || count != table.length) {
+            throw new IOException("Incomplete lookup table in " + file.getName());
+        }
+        for (int c = 0; c < 3; c++) {
+            if (!(domainMax[c] > domainMin[c])) {
+                throw new IOException("Invalid domain in " + file.getName());
+            }
+        }
+        return new ColorLut(size, table, title, domainMin, domainMax,
+                interpolation);
+    }
+
+    private static float[] parseTriple(String[] tokens) {
+        final int first = tokens.length - 3;
+        if (first < 0) {
+            throw new ArrayIndexOutOfBoundsException("3 values expected");
+        }
+        return new float[]{
+            Float.parseFloat(tokens[first]),
+            Float.parseFloat(tokens[first + 1]),
+            Float.parseFloat(tokens[first + 2])
+        };
+    }
+
+    /**
+     * Writes this lookup table to a .cube file.
+     *
+     * @param file The file to write.
+     * @throws IOException If the file cannot be written.
+     */
+    void write(File file) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), Charset.forName("UTF-8")))) {
+            writer.write("# Created by Color Oracle\n");
+            if (title != null) {
+                writer.write("TITLE \"" + title + "\"\n");
+            }
+            writer.write("LUT_3D_SIZE " + size + "\n");
+            if (!Arrays.equals(domainMin, new float[]{0, 0, 0})
+                    || !Arrays.equals(domainMax, new float[]{1, 1, 1})) {
+                writer.write(String.format(Locale.US, "DOMAIN_MIN %.6f %.6f %.6f\n",
+                        domainMin[0], domainMin[1], domainMin[2]));
+                writer.write(String.format(Locale.US, "DOMAIN_MAX %.6f %.6f %.6f\n",
+                        domainMax[0], domainMax[1], domainMax[2]));
+            }
+            for (int i = 0; i < table.length; i += 3) {
+                writer.write(format(table[i]) + " " + format(table[i + 1]) + " "
+                        + format(table[i + 2]) + "\n");
+            }
+        }
+    }
+
+    /**
+     * Formats a value with the shortest decimals that are read back as the
+     * same float, and without exponent.
+     */
+    private static String format(float v) {
+        return new BigDecimal(Float.toString(v)).toPlainString();
+    }
+}
@@ -6,12 +6,21 @@
  */
 package ika.colororacle;
 
+import ika.colororacle.engine.Simulation;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.*;
@@ -57,14 +66,6 @@ public class ColorOracle extends WindowAdapter implements KeyListener, FocusList
      */
     private static final long SLEEP_BEFORE_SCREENSHOT_MILLISECONDS = 300;
 
-    /**
-     * Enumerate the four possible states of the current simulation.
-     */
-    protected enum Simulation {
-
-        normal, deutan, protan, tritan, grayscale
-    }
-
     /**
      * Keep track of the current type of color-impairment simulation.
      */
@@ -80,6 +81,27 @@ public class ColorOracle extends WindowAdapter implements KeyListener, FocusList
      */
     private final Simulator simulator = new Simulator();
 
+    /**
+     * Images reused for the simulated screens. Two per screen, one shown and
+     * one receiving the next simulation.
+     */
+    private final ImagePool imagePool = new ImagePool(4);
+
+    /**
+     * Captures and filters the screens at the same time if there are
+     * several screens.
+     */
+    private final ExecutorService screenExecutor = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "Color Oracle screen");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     /**
      * Menu items for different types of vision that will be added to the tray
      * menu.
@@ -90,6 +112,20 @@ public class ColorOracle extends WindowAdapter implements KeyListener, FocusList
     private final CheckboxMenuItem tritanMenuItem = new CheckboxMenuItem();
     private final CheckboxMenuItem grayscaleMenuItem = new CheckboxMenuItem();
 
+    /**
+     * Menu item that switches the live simulation on and off. The live
+     * simulation updates the shown simulation when the screen changes.
+     */
+    private final CheckboxMenuItem liveMenuItem = new CheckboxMenuItem();
+
+    /**
+     * The live simulations of the screens while a simulation is shown. While
+     * the simulation is live, key presses, the mouse wheel and the loss of
+     * the focus do not hide it, and clicks are passed to the windows below
+     * it; the menu returns to normal vision.
+     */
+    private final ArrayList<LiveSimulation> liveSimulations = new ArrayList<>();
+
     /**
      * The About menu item that will be added to the tray menu.
      */
@@ -102,10 +138,32 @@ public class ColorOracle extends WindowAdapter implements KeyListener, FocusList
     /**
      * Entry point for the Color Oracle application.
      *
-     * @param args The standard command line arguments, which are ignored.
+     * @param args The standard command line arguments. If the first argument
+     * is -batch, image files are simulated without user interface, see
+     * BatchProcessor. If it is -server, a local HTTP service simulating
+     * images is started, see SimulationServer. If it is -pipe, raw video
+     * frames are simulated from the standard input to the standard output,
+     * see PipeProcessor. Otherwise the arguments are ignored.
      */
     public static void main(String[] args) throws IOException {
 
+        // simulate image files, also in headless mode
+        if (args.length > 0 && BatchProcessor.OPTION.equals(args[0])) {
+            System.exit(BatchProcessor.run(args));
+            return;
+        }
+        if (args.length > 0 && PipeProcessor.OPTION.equals(args[0])) {
+            System.exit(PipeProcessor.run(args));
+            return;
+        }
+        if (args.length > 0 && SimulationServer.OPTION.equals(args[0])) {
+            final int status = SimulationServer.run(args);
+            if (status != 0) {
+                System.exit(status);
+            }
+            return;
+        }
+
         // don't run in headless mode
         if (GraphicsEnvironment.isHeadless()) {
             System.err.println("Headless mode not supported by Color Oracle.");
@@ -237,7 +295,9 @@ public class ColorOracle extends WindowAdapter implements KeyListener, FocusList
      */
     private void hideSimulation() {
 
+        stopLiveSimulations();
         for (Screen screen : Screen.getScreens()) {
+            imagePool.release(screen.simulationImage);
             screen.hideSimulation();
         }
         Screen.getScreens().clear();
@@ -263,7 +323,7 @@ public class ColorOracle extends WindowAdapter implements KeyListener, FocusList
 
             @Override
             public void actionPerformed(ActionEvent e) {
-                simulate(ColorOracle.Simulation.deutan);
+                simulate(Simulation.deutan);
             }
         };
 
@@ -348,7 +408,7 @@ public class ColorOracle extends WindowAdapter implements KeyListener, FocusList
             @Override
             public void itemStateChanged(ItemEvent evt) {
                 if (evt.getStateChange() == ItemEvent.SELECTED) {
-                    simulate(ColorOracle.Simulation.deutan);
+                    simulate(Simulation.deutan);
                 } else if (currentSimulation == Simulation.deutan) {
                     deutanMenuItem.setState(true); // this will not trigger another event
                 }
@@ -363,7 +423,7 @@ public class ColorOracle extends WindowAdapter implements KeyListener, FocusList
             @Override
             public void itemStateChanged(ItemEvent evt) {
                 if (evt.getStateChange() == ItemEvent.SELECTED) {
-                    simulate(ColorOracle.Simulation.protan);
+                    simulate(Simulation.protan);
                 } else if (currentSimulation == Simulation.protan) {
                     protanMenuItem.setState(true); // this will not trigger another event
                 }
@@ -378,7 +438,7 @@ public class ColorOracle extends WindowAdapter implements KeyListener, FocusList
             @Override
             public void itemStateChanged(ItemEvent evt) {
                 if (evt.getStateChange() == ItemEvent.SELECTED) {
-                    simulate(ColorOracle.Simulation.tritan);
+                    simulate(Simulation.tritan);
                 } else if (currentSimulation == Simulation.tritan) {
                     tritanMenuItem.setState(true); // this will not trigger another event
                 }
@@ -393,7 +453,7 @@ public class ColorOracle extends WindowAdapter implements KeyListener, FocusList
             @Override
             public void itemStateChanged(ItemEvent evt) {
                 if (evt.getStateChange() == ItemEvent.SELECTED) {
-                    simulate(ColorOracle.Simulation.grayscale);
+                    simulate(Simulation.grayscale);
                 } else if (currentSimulation == Simulation.grayscale) {
                     grayscaleMenuItem.setState(true); // this will not trigger another event
                 }
@@ -403,6 +463,21 @@ public class ColorOracle extends WindowAdapter implements KeyListener, FocusList
 
         menu.addSeparator();
 
+        // live simulation
+        liveMenuItem.setLabel("Live Simulation");
+        liveMenuItem.addItemListener(new java.awt.event.ItemListener() {
+
+            @Override
+            public void itemStateChanged(ItemEvent evt) {
+                if (evt.getStateChange() == ItemEvent.DESELECTED) {
+                    stopLiveSimulations();
+                }
+            }
+        });
+        menu.add(liveMenuItem);
+
+        menu.addSeparator();
+
         // about
         aboutMenuItem.setLabel("About...");
         aboutMenuItem.addActionListener(new java.awt.event.ActionListener() {
@@ -445,25 +520,58 @@ public class ColorOracle extends WindowAdapter implements KeyListener, FocusList
 
             final boolean simulationVisible = Screen.getScreens().size() > 0;
 
+            // the screenshots are not changed while they are simulated
+            stopLiveSimulations();
+
             // detect all attached screens
             if (!simulationVisible) {
                 Screen.detectScreens();
             }
 
-            // simulate color-impaired vision for all attached screens
-            for (Screen screen : Screen.getScreens()) {
-
-                // don't take a screenshot when a color-impaired simulation 
+            // simulate color-impaired vision for all attached screens. The
+            // screens are captured and filtered at the same time; only the
+            // windows are updated on the event dispatch thread.
+            final ArrayList<Screen> screens = Screen.getScreens();
+            final ArrayList<Future<BufferedImage>> images = new ArrayList<>();
+            for (Screen screen : screens) {
+                // don't take a screenshot when a color-impaired simulation
                 // is currently visible. Instead, use the same screenshot again.
-                if (!simulationVisible) {
-                    screen.takeScreenshot();
+                final Callable<BufferedImage> task
+                        = captureAndFilter(screen, !simulationVisible);
+                if (screens.size() == 1) {
+                    final FutureTask<BufferedImage> image = new FutureTask<>(task);
+                    image.run();
+                    images.add(image);
+                } else {
+                    images.add(screenExecutor.submit(task));
+                }
+            }
+            for (int i = 0; i < screens.size(); i++) {
+                final Screen screen = screens.get(i);
+                final BufferedImage img;
+                try {
+                    img = images.get(i).get();
+                } catch (ExecutionException ex) {
+                    // wait for the remaining screens and release their images
+                    for (int j = i + 1; j < images.size(); j++) {
+                        try {
+                            imagePool.release(images.get(j).get());
+                        } catch (ExecutionException exc) {
+                        }
+                    }
+                    throw ex.getCause() instanceof Exception
+                            ? (Exception) ex.getCause() : ex;
                 }
-
-                // apply a simulation filter to the screenshot
-                BufferedImage img = simulator.filter(screen.screenshotImage);
 
                 // show the result of the simulation in a window
+                BufferedImage previousImg = screen.simulationImage;
                 screen.showSimulationImage(img, this, panel);
+                imagePool.release(previousImg);
+            }
+
+            // keep the simulation up to date while it is shown
+            if (liveMenuItem.getState()) {
+                startLiveSimulations();
             }
         } catch (Exception ex) {
             try {
@@ -476,6 +584,60 @@ public class ColorOracle extends WindowAdapter implements KeyListener, FocusList
 
     }
 
+    /**
+     * Returns a task that takes a screenshot of a screen and simulates
+     * color-impaired vision on it. The task can run on any thread.
+     *
+     * @param screen The screen.
+     * @param takeScreenshot If false, the screenshot taken before is used.
+     * @return The task returning the simulated image.
+     */
+    private Callable<BufferedImage> captureAndFilter(final Screen screen,
+            final boolean takeScreenshot) {
+        final Simulation simulation = currentSimulation;
+        return new Callable<BufferedImage>() {
+
+            @Override
+            public BufferedImage call() throws AWTException {
+                if (takeScreenshot) {
+                    screen.takeScreenshot();
+                }
+
+                // apply a simulation filter to the screenshot. The image
+                // currently shown is not overwritten while it may be painted.
+                BufferedImage screenshot = screen.screenshotImage;
+                int type = screenshot.getType() == BufferedImage.TYPE_CUSTOM
+                        ? BufferedImage.TYPE_INT_RGB : screenshot.getType();
+                BufferedImage img = imagePool.acquire(screenshot.getWidth(),
+                        screenshot.getHeight(), type);
+                return simulator.filter(simulation, screenshot, img);
+            }
+        };
+    }
+
+    /**
+     * Starts updating the simulation of each screen that supports it.
+     */
+    private void startLiveSimulations() throws AWTException {
+        final int rate = LiveSimulation.getRate();
+        for (Screen screen : Screen.getScreens()) {
+            if (LiveSimulation.isSupported(screen)) {
+                liveSimulations.add(new LiveSimulation(screen, simulator,
+                        currentSimulation, rate));
+            }
+        }
+    }
+
+    /**
+     * Stops updating the simulations of the screens.
+     */
+    private void stopLiveSimulations() {
+        for (LiveSimulation liveSimulation : liveSimulations) {
+            liveSimulation.stop();
+        }
+        liveSimulations.clear();
+    }
+
     private static void showErrorMessage(String msg, boolean showExitButton) {
 
         if (msg == null || msg.trim().length() < 3) {
@@ -584,7 +746,9 @@ public class ColorOracle extends WindowAdapter implements KeyListener, FocusList
      */
     @Override
     public void keyTyped(KeyEvent e) {
-        switchToNormalVision();
+        if (liveSimulations.isEmpty()) {
+            switchToNormalVision();
+        }
     }
 
     /**
@@ -594,7 +758,9 @@ public class ColorOracle extends WindowAdapter implements KeyListener, FocusList
      */
     @Override
     public void keyPressed(KeyEvent e) {
-        switchToNormalVision();
+        if (liveSimulations.isEmpty()) {
+            switchToNormalVision();
+        }
     }
 
     /**
@@ -603,7 +769,9 @@ public class ColorOracle extends WindowAdapter implements KeyListener, FocusList
      */
     @Override
     public void keyReleased(KeyEvent e) {
-        switchToNormalVision();
+        if (liveSimulations.isEmpty()) {
+            switchToNormalVision();
+        }
     }
 
     /**
@@ -613,6 +781,12 @@ public class ColorOracle extends WindowAdapter implements KeyListener, FocusList
     @Override
     public void windowDeactivated(WindowEvent e) {
         try {
+            // a live simulation cannot be focused, and gives up the focus
+            // when it starts
+            if (!liveSimulations.isEmpty()) {
+                return;
+            }
+
 
             // e.getOppositeWindow() returns null when a window of another
             // application is activated. Don't hide the windows on a system
@@ -660,6 +834,38 @@ public class ColorOracle extends WindowAdapter implements KeyListener, FocusList
         }
     }
 
+    /**
+     * Event handler that is called when the mouse is pressed on the window
+     * displaying the simulated color blind image, outside of the panel. A
+     * live simulation passes the click to the window below it, otherwise
+     * the simulation is hidden.
+     *
+     * @param e The mouse event.
+     */
+    void simulationPressed(MouseEvent e) {
+        if (liveSimulations.isEmpty()) {
+            switchToNormalVision();
+            return;
+        }
+        final Window window = SwingUtilities.getWindowAncestor(e.getComponent());
+        for (LiveSimulation liveSimulation : liveSimulations) {
+            if (liveSimulation.isShownIn(window)) {
+                liveSimulation.passClick(e.getButton());
+            }
+        }
+    }
+
+    /**
+     * Event handler that is called when the mouse is released or clicked on
+     * the window displaying the simulated color blind image, outside of the
+     * panel. Hides the simulation unless it is live.
+     */
+    void simulationReleased() {
+        if (liveSimulations.isEmpty()) {
+            switchToNormalVision();
+        }
+    }
+
     private void startDeactivatingTimer() {
         int numberOfMillisecondsInTheFuture = 300;
         long execTime = System.currentTimeMillis() + numberOfMillisecondsInTheFuture;
@@ -724,13 +930,14 @@ public class ColorOracle extends WindowAdapter implements KeyListener, FocusList
     }
 
     /**
-     * Hide the simulation when the mouse wheel is scrolled.
+     * Hide the simulation when the mouse wheel is scrolled, unless the
+     * simulation is live.
      *
      * @param e
      */
     @Override
     public void mouseWheelMoved(MouseWheelEvent e) {
-        if (e.getWheelRotation() != 0) {
+        if (e.getWheelRotation() != 0 && liveSimulations.isEmpty()) {
             switchToNormalVision();
         }
     }
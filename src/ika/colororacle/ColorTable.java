@@ -0,0 +1,212 @@
+/*
+ * ColorTable.java
+ *
+ */
+package ika.colororacle;
+
+/**
+ * The unique colors of an image and their converted colors. Thematic maps
+ * and user interfaces often have a few thousand colors across millions of
+ * pixels. Each unique color is converted once, and the pixels are then
+ * replaced by looking them up in this table.
+ *
+ * The colors are stored in an open addressing hash table of int arrays,
+ * without boxing. After the table is converted it is not modified, and can
+ * be used by multiple threads.
+ */
+final class ColorTable implements Simulator.PixelFilter {
+
+    /**
+     * The unique colors in the order they were found, and their converted
+     * colors.
+     */
+    private int[] colors = new int[256];
+    private int[] converted;
+
+    /**
+     * The number of unique colors.
+     */
+    private int size = 0;
+
+    /**
+     * For each slot of the hash table the index in colors plus 1, or 0 for
+     * an empty slot.
+     */
+    private int[] slots = new int[1024];
+
+    private ColorTable() {
+    }
+
+    /**
+     * Collects the unique colors of a range of pixels.
+     *
+     * @param data The pixels.
+     * @param from The index of the first pixel.
+     * @param to The index after the last pixel.
+     * @param step The distance between two collected pixels, 1 to collect all
+     * pixels.
+     * @param maxColors The maximum number of unique colors.
+     * @return The table, or null if there are more than maxColors colors.
+     */
+    static ColorTable collect(int[] data, int from, int to, int step, int maxColors) {
+        final ColorTable table = new ColorTable();
+        if (from >= to) {
+            return table;
+        }
+        int prev = ~data[from];
+        for (int i = from; i < to; i += step) {
+            final int rgb = data[i];
+            if (rgb != prev) {
+                prev = rgb;
+                if (table.indexOf(rgb) < 0) {
+                    if (table.size == maxColors) {
+                        return null;
+                    }
+                    table.add(rgb);
+                }
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Collects the unique colors of a range of pixels, and stores the index of
+     * the color of each pixel.
+     *
+     * @param data The pixels.
+     * @param indices Receives the index of the color of each pixel. Must not
+     * be the pixel array.
+     * @param from The index of the first pixel.
+     * @param to The index after the last pixel.
+     * @param maxColors The maximum number of unique colors.
+     * @return The table, or null if there are more than maxColors colors.
+     */
+    static ColorTable index(int[] data, int[] indices, int from, int to,
+            int maxColors) {
+        final ColorTable table = new ColorTable();
+        if (from >= to) {
+            return table;
+        }
+        int prev = ~data[from];
+        int prevIndex = 0;
+        for (int i = from; i < to; i++) {
+            final int rgb = data[i];
+            if (rgb != prev) {
+                prev = rgb;
+                prevIndex = table.indexOf(rgb);
+                if (prevIndex < 0) {
+                    if (table.size == maxColors) {
+                        return null;
+                    }
+                    prevIndex = table.size;
+                    table.add(rgb);
+                }
+            }
+            indices[i] = prevIndex;
+        }
+        return table;
+    }
+
+    /**
+     * Returns the number of unique colors.
+     */
+    int size() {
+        return size;
+    }
+
+    private static int hash(int rgb) {
+        return rgb * 0x9E3779B1;
+    }
+
+    /**
+     * Returns the index of a color in colors, or -1.
+     */
+    private int indexOf(int rgb) {
+        final int mask = slots.length - 1;
+        int slot = (hash(rgb) >>> 8) & mask;
+        int index;
+        while ((index = slots[slot]) != 0) {
+            if (colors[index - 1] == rgb) {
+                return index - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void add(int rgb) {
+        if (size == colors.length) {
+            final int[] larger = new int[size * 2];
+            System.arraycopy(colors, 0, larger, 0, size);
+            colors = larger;
+        }
+        colors[size++] = rgb;
+
+        // keep the hash table at most half full
+        if (size * 2 > slots.length) {
+            slots = new int[slots.length * 2];
+            for (int i = 0; i < size; i++) {
+                insert(colors[i], i);
+            }
+        } else {
+            insert(rgb, size - 1);
+        }
+    }
+
+    private void insert(int rgb, int index) {
+        final int mask = slots.length - 1;
+        int slot = (hash(rgb) >>> 8) & mask;
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = index + 1;
+    }
+
+    /**
+     * Converts all unique colors.
+     *
+     * @param filter The filter converting the colors.
+     */
+    void convert(Simulator.PixelFilter filter) {
+        converted = new int[size];
+        filter.filter(colors, converted, 0, size);
+    }
+
+    /**
+     * Returns a filter that replaces color indices stored by index() with the
+     * converted colors. The table must be converted.
+     */
+    Simulator.PixelFilter indexFilter() {
+        final int[] values = converted;
+        return new Simulator.PixelFilter() {
+
+            @Override
+            public void filter(int[] inData, int[] outData, int from, int to) {
+                for (int i = from; i < to; i++) {
+                    outData[i] = values[inData[i]];
+                }
+            }
+        };
+    }
+
+    /**
+     * Replaces a range of pixels by their converted colors. All pixels must
+     * be in the table, and the table must be converted.
+     */
+    @Override
+    public void filter(int[] inData, int[] outData, int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        int prevIn = ~inData[from];
+        int prevOut = 0;
+        for (int i = from; i < to; i++) {
+            final int in = inData[i];
+            if (in != prevIn) {
+                prevIn = in;
+                prevOut = converted[indexOf(in)];
+            }
+            outData[i] = prevOut;
+        }
+    }
+}
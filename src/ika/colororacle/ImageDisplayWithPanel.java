@@ -117,7 +117,7 @@ public class ImageDisplayWithPanel extends ImageDisplay
 
     @Override
     public void mouseClicked(MouseEvent e) {
-        colorOracle.switchToNormalVision();
+        colorOracle.simulationReleased();
     }
 
     @Override
@@ -128,7 +128,7 @@ public class ImageDisplayWithPanel extends ImageDisplay
             dragging = true;
         } else {
             dragging = false;
-            colorOracle.switchToNormalVision();
+            colorOracle.simulationPressed(e);
         }
     }
 
@@ -137,7 +137,7 @@ public class ImageDisplayWithPanel extends ImageDisplay
         if (dragging) {
             dragging = false;
         } else {
-            colorOracle.switchToNormalVision();
+            colorOracle.simulationReleased();
         }
     }
 
@@ -0,0 +1,96 @@
+/*
+ * ImagePool.java
+ *
+ */
+package ika.colororacle;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A small pool of images that are reused as destinations of simulations.
+ * A screenshot of a 4K screen takes 33 MB, and allocating a new image for
+ * every simulation causes long garbage collections.
+ *
+ * Images are looked up by their width, height and type. The pool holds at
+ * most a fixed number of images; when it is full, the image that was
+ * released first is dropped. The pool is thread-safe.
+ */
+final class ImagePool {
+
+    /**
+     * The maximum number of images held by the pool.
+     */
+    private final int capacity;
+
+    /**
+     * The released images, the image released first at the head.
+     */
+    private final ArrayDeque<BufferedImage> images = new ArrayDeque<>();
+
+    /**
+     * Creates a new pool.
+     *
+     * @param capacity The maximum number of images held by the pool.
+     */
+    ImagePool(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must not be negative");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns an image from the pool or a new image. The pixels of an image
+     * from the pool are not cleared.
+     *
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @param type The type of the image, one of the predefined
+     * BufferedImage types.
+     * @return The image.
+     */
+    synchronized BufferedImage acquire(int width, int height, int type) {
+        // search from the tail, so that the image released last is reused
+        final Iterator<BufferedImage> iterator = images.descendingIterator();
+        while (iterator.hasNext()) {
+            final BufferedImage image = iterator.next();
+            if (image.getWidth() == width && image.getHeight() == height
+                    && image.getType() == type) {
+                iterator.remove();
+                return image;
+            }
+        }
+        return new BufferedImage(width, height, type);
+    }
+
+    /**
+     * Returns an image to the pool. The image must not be used after it is
+     * released.
+     *
+     * @param image The image, can be null.
+     */
+    synchronized void release(BufferedImage image) {
+        if (image == null || capacity == 0
+                || image.getType() == BufferedImage.TYPE_CUSTOM) {
+            return;
+        }
+        for (BufferedImage pooled : images) {
+            if (pooled == image) {
+                return;
+            }
+        }
+        if (images.size() == capacity) {
+            images.removeFirst();
+        }
+        images.addLast(image);
+    }
+
+    /**
+     * Drops all images.
+     */
+    synchronized void clear() {
+        images.clear();
+    }
+}
@@ -0,0 +1,484 @@
+/*
+ * LiveSimulation.java
+ *
+ */
+package ika.colororacle;
+
+import ika.colororacle.engine.Simulation;
+import java.awt.AWTException;
+import java.awt.GraphicsDevice;
+import java.awt.MouseInfo;
+import java.awt.Point;
+import java.awt.PointerInfo;
+import java.awt.Rectangle;
+import java.awt.Robot;
+import java.awt.Toolkit;
+import java.awt.Window;
+import java.awt.event.InputEvent;
+import java.awt.image.BufferedImage;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.SwingUtilities;
+
+/**
+ * Keeps the simulation of a screen up to date while it is shown. The screen
+ * is captured repeatedly; the capture is hashed in tiles, and only the tiles
+ * whose hash changed are simulated and repainted. Capturing and hashing
+ * read every pixel, but the simulation and the painting only cost as much
+ * as the screen changed.
+ *
+ * Java cannot exclude a window from a screen capture, so the simulation
+ * window is made transparent while the screen is captured. This requires
+ * translucent windows, see isSupported(). So that the window does not
+ * flicker, the screen is captured once after the pointer moved or clicked
+ * and then rested for IDLE_MILLISECONDS, and not again while the pointer
+ * rests. While the pointer moves, the simulation keeps showing the last
+ * capture. Changes made with the keyboard alone are shown once the pointer
+ * moves.
+ *
+ * While the simulation is live, the simulation window stays on top but
+ * cannot be focused, so that the keyboard focus stays with the window below
+ * it. Clicks on the simulation are passed to the window below: the
+ * simulation window is made transparent and the robot repeats the click.
+ * The window stays transparent until the pointer rested and the screen was
+ * captured again.
+ */
+final class LiveSimulation {
+
+    /**
+     * The system property with the number of captures per second.
+     */
+    static final String RATE_PROPERTY = "colororacle.liveRate";
+
+    /**
+     * The default and the maximum number of captures per second.
+     */
+    private static final int DEFAULT_RATE = 2;
+    private static final int MAX_RATE = 30;
+
+    /**
+     * The width and height of the tiles that are compared and simulated.
+     */
+    private static final int TILE_SIZE = 64;
+
+    /**
+     * The time in milliseconds the window manager needs to hide the
+     * transparent window before the screen can be captured.
+     */
+    private static final long HIDE_MILLISECONDS = 25;
+
+    /**
+     * The time in milliseconds the pointer must rest before the screen is
+     * captured.
+     */
+    private static final long IDLE_MILLISECONDS = 1000;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Screen screen;
+    private final Window window;
+    private final Simulator simulator;
+    private final Simulation simulation;
+    private final Robot robot;
+    private final Rectangle area;
+    private final int width;
+    private final int height;
+    private final int tilesX;
+
+    /**
+     * The hash of each tile of the last capture.
+     */
+    private final long[] hashes;
+
+    /**
+     * The screenshot hashed by the first update, which is shown when the
+     * live simulation starts.
+     */
+    private BufferedImage initialScreenshot;
+
+    /**
+     * The pixels of the capture if the capture is not stored as packed ints.
+     */
+    private int[] pixels;
+
+    /**
+     * The indices of the changed tiles, and their normal and simulated
+     * pixels, TILE_SIZE pixels per row. The pixel buffers grow with the
+     * number of changed tiles, and only hold the whole screen once the whole
+     * screen changed.
+     */
+    private final int[] changedTiles;
+    private int[] normalTiles = new int[0];
+    private int[] simulatedTiles = new int[0];
+
+    private final ScheduledExecutorService executor;
+
+    private volatile boolean stopped = false;
+
+    /**
+     * The location of the pointer at the last update, the time in
+     * milliseconds when the pointer was last seen moving or clicking, and
+     * whether the screen was captured since then. Only used by the thread
+     * of the executor.
+     */
+    private Point pointer;
+    private long pointerMoveTime;
+    private boolean captured = true;
+
+    /**
+     * Returns whether a screen can be simulated live.
+     *
+     * @param screen The screen.
+     * @return True if the simulation window can be made transparent.
+     */
+    static boolean isSupported(Screen screen) {
+        return screen.gc.getDevice().isWindowTranslucencySupported(
+                GraphicsDevice.WindowTranslucency.TRANSLUCENT);
+    }
+
+    /**
+     * Returns the number of captures per second, read from RATE_PROPERTY.
+     *
+     * @return The number of captures per second.
+     */
+    static int getRate() {
+        final int rate = Integer.getInteger(RATE_PROPERTY, DEFAULT_RATE);
+        return Math.max(1, Math.min(MAX_RATE, rate));
+    }
+
+    /**
+     * Starts updating the simulation shown on a screen. Must be called on
+     * the event dispatch thread after the simulation is shown.
+     *
+     * @param screen The screen with the screenshot and the simulation that
+     * are updated.
+     * @param simulator The simulator.
+     * @param simulation The type of simulation shown.
+     * @param rate The number of captures per second.
+     * @throws AWTException If the screen cannot be captured.
+     */
+    LiveSimulation(Screen screen, Simulator simulator, Simulation simulation,
+            int rate) throws AWTException {
+        this.screen = screen;
+        this.simulator = simulator;
+        this.simulation = simulation;
+        window = screen.simulationWindow;
+        robot = new Robot(screen.gc.getDevice());
+        area = screen.getScreenshotArea();
+        initialScreenshot = screen.screenshotImage;
+        width = initialScreenshot.getWidth();
+        height = initialScreenshot.getHeight();
+        tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        final int tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        hashes = new long[tilesX * tilesY];
+        changedTiles = new int[hashes.length];
+        pointer = pointerLocation();
+
+        window.setFocusableWindowState(false);
+        window.setAutoRequestFocus(false);
+        window.setAlwaysOnTop(true);
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "Color Oracle live simulation");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final long period = 1000 / rate;
+        executor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                update();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops updating. Does not wait for an update in progress, which does
+     * not change the screen after this returns. The window is restored at
+     * once on the event dispatch thread, so that a live simulation started
+     * next in the same window keeps its state.
+     */
+    void stop() {
+        stopped = true;
+        executor.shutdownNow();
+        final Runnable restoreWindow = new Runnable() {
+
+            @Override
+            public void run() {
+                window.setOpacity(1f);
+                window.setAlwaysOnTop(false);
+                window.setFocusableWindowState(true);
+                window.setAutoRequestFocus(true);
+            }
+        };
+        if (SwingUtilities.isEventDispatchThread()) {
+            restoreWindow.run();
+        } else {
+            SwingUtilities.invokeLater(restoreWindow);
+        }
+    }
+
+    /**
+     * Returns whether the simulation is shown in a window.
+     *
+     * @param window The window.
+     * @return True if the simulation is shown in the window.
+     */
+    boolean isShownIn(Window window) {
+        return this.window == window;
+    }
+
+    /**
+     * Passes a click on the simulation window to the window below it. The
+     * simulation window is made transparent, and the robot repeats the
+     * press and the release of the button. Called on the event dispatch
+     * thread.
+     *
+     * @param button The button of the mouse event, see
+     * MouseEvent.getButton().
+     */
+    void passClick(final int button) {
+        // a transparent window receives the repeated click on some platforms
+        if (stopped || window.getOpacity() == 0f) {
+            return;
+        }
+        window.setOpacity(0f);
+        try {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    pointerMoveTime = System.currentTimeMillis();
+                    captured = false;
+                    try {
+                        Toolkit.getDefaultToolkit().sync();
+                        Thread.sleep(HIDE_MILLISECONDS);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    final int mask = InputEvent.getMaskForButton(button);
+                    robot.mousePress(mask);
+                    robot.mouseRelease(mask);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // stopped
+            window.setOpacity(1f);
+        }
+    }
+
+    /**
+     * Captures the screen, and simulates and shows the changed tiles.
+     */
+    private void update() {
+        try {
+            if (initialScreenshot != null) {
+                hashTiles(screenshotPixels(initialScreenshot), true);
+                initialScreenshot = null;
+            }
+            if (!isPointerIdle() || captured) {
+                return;
+            }
+            captured = true;
+            final BufferedImage capture = capture();
+            if (capture == null) {
+                return;
+            }
+            if (capture.getWidth() != width || capture.getHeight() != height) {
+                // the screen was resized
+                stop();
+                return;
+            }
+            final int count = hashTiles(screenshotPixels(capture), false);
+            if (count == 0) {
+                return;
+            }
+            if (simulatedTiles.length < normalTiles.length) {
+                simulatedTiles = new int[normalTiles.length];
+            }
+            simulator.filterRows(simulation, normalTiles, 0, simulatedTiles, 0,
+                    TILE_SIZE, count * TILE_SIZE);
+            SwingUtilities.invokeAndWait(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (!stopped) {
+                        show(count);
+                    }
+                }
+            });
+        } catch (InterruptedException ex) {
+            // stopped
+        } catch (InvocationTargetException | RuntimeException ex) {
+            Logger.getLogger(LiveSimulation.class.getName()).log(Level.SEVERE, null, ex);
+            stop();
+        }
+    }
+
+    /**
+     * Returns the location of the pointer, or null if it is unknown.
+     */
+    private static Point pointerLocation() {
+        final PointerInfo pointerInfo = MouseInfo.getPointerInfo();
+        return pointerInfo == null ? null : pointerInfo.getLocation();
+    }
+
+    /**
+     * Returns whether the pointer rested for IDLE_MILLISECONDS. A moving
+     * pointer requires a new capture.
+     */
+    private boolean isPointerIdle() {
+        final Point location = pointerLocation();
+        final long time = System.currentTimeMillis();
+        if (location == null || !location.equals(pointer)) {
+            pointer = location;
+            pointerMoveTime = time;
+            captured = false;
+            return false;
+        }
+        return time - pointerMoveTime >= IDLE_MILLISECONDS;
+    }
+
+    /**
+     * Captures the screen without the simulation window.
+     *
+     * @return The capture, or null if stopped.
+     */
+    private BufferedImage capture() throws InterruptedException,
+            InvocationTargetException {
+        try {
+            SwingUtilities.invokeAndWait(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (!stopped) {
+                        window.setOpacity(0f);
+                    }
+                }
+            });
+            if (stopped) {
+                return null;
+            }
+            Toolkit.getDefaultToolkit().sync();
+            Thread.sleep(HIDE_MILLISECONDS);
+            return robot.createScreenCapture(area);
+        } finally {
+            SwingUtilities.invokeLater(new Runnable() {
+
+                @Override
+                public void run() {
+                    window.setOpacity(1f);
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the pixels of a screenshot as packed ints.
+     */
+    private int[] screenshotPixels(BufferedImage image) {
+        final int[] data = PixelLayout.of(image).getPackedData();
+        if (data != null) {
+            return data;
+        }
+        if (pixels == null) {
+            pixels = new int[width * height];
+        }
+        return image.getRGB(0, 0, width, height, pixels, 0, width);
+    }
+
+    /**
+     * Hashes the tiles of a capture and copies the tiles that changed since
+     * the last capture to normalTiles.
+     *
+     * @param data The pixels of the capture.
+     * @param initial If true, only the hashes are stored.
+     * @return The number of changed tiles.
+     */
+    private int hashTiles(int[] data, boolean initial) {
+        int count = 0;
+        for (int tile = 0; tile < hashes.length; tile++) {
+            final int x0 = (tile % tilesX) * TILE_SIZE;
+            final int y0 = (tile / tilesX) * TILE_SIZE;
+            final int w = Math.min(TILE_SIZE, width - x0);
+            final int h = Math.min(TILE_SIZE, height - y0);
+            long hash = FNV_OFFSET;
+            for (int r = 0; r < h; r++) {
+                final int start = (y0 + r) * width + x0;
+                for (int i = start; i < start + w; i++) {
+                    hash = (hash ^ data[i]) * FNV_PRIME;
+                }
+            }
+            if (hash == hashes[tile] && !initial) {
+                continue;
+            }
+            hashes[tile] = hash;
+            if (!initial) {
+                final int offset = count * TILE_SIZE * TILE_SIZE;
+                if (offset == normalTiles.length) {
+                    final int tiles = Math.min(hashes.length, Math.max(16, 2 * count));
+                    normalTiles = Arrays.copyOf(normalTiles, tiles * TILE_SIZE * TILE_SIZE);
+                }
+                for (int r = 0; r < h; r++) {
+                    System.arraycopy(data, (y0 + r) * width + x0,
+                            normalTiles, offset + r * TILE_SIZE, w);
+                }
+                changedTiles[count++] = tile;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Copies the changed tiles to the screenshot and the simulation of the
+     * screen and repaints them. Called on the event dispatch thread.
+     *
+     * @param count The number of changed tiles.
+     */
+    private void show(int count) {
+        final BufferedImage screenshot = screen.screenshotImage;
+        final BufferedImage simulated = screen.simulationImage;
+        if (screenshot == null || simulated == null
+                || simulated.getWidth() != width || simulated.getHeight() != height) {
+            return;
+        }
+        final int[] screenshotData = PixelLayout.of(screenshot).getPackedData();
+        final int[] simulatedData = PixelLayout.of(simulated).getPackedData();
+        for (int i = 0; i < count; i++) {
+            final int tile = changedTiles[i];
+            final int x0 = (tile % tilesX) * TILE_SIZE;
+            final int y0 = (tile / tilesX) * TILE_SIZE;
+            final int w = Math.min(TILE_SIZE, width - x0);
+            final int h = Math.min(TILE_SIZE, height - y0);
+            final int offset = i * TILE_SIZE * TILE_SIZE;
+            copyTile(normalTiles, offset, screenshot, screenshotData, x0, y0, w, h);
+            copyTile(simulatedTiles, offset, simulated, simulatedData, x0, y0, w, h);
+            screen.repaintSimulation(x0, y0, w, h);
+        }
+    }
+
+    private void copyTile(int[] tiles, int offset, BufferedImage image,
+            int[] data, int x0, int y0, int w, int h) {
+        if (data == null) {
+            image.setRGB(x0, y0, w, h, tiles, offset, TILE_SIZE);
+            return;
+        }
+        for (int r = 0; r < h; r++) {
+            System.arraycopy(tiles, offset + r * TILE_SIZE,
+                    data, (y0 + r) * width + x0, w);
+        }
+    }
+}
@@ -0,0 +1,369 @@
+/*
+ * PipeProcessor.java
+ *
+ */
+package ika.colororacle;
+
+import ika.colororacle.engine.Simulation;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Simulates a stream of raw video frames read from the standard input and
+ * writes the simulated frames to the standard output, for example between
+ * two ffmpeg processes:
+ *
+ * ffmpeg -i in.mp4 -f rawvideo -pix_fmt rgba - | java -jar ColorOracle.jar
+ * -pipe -size 3840x2160 -s deutan | ffmpeg -f rawvideo -pix_fmt rgba -s
+ * 3840x2160 -r 30 -i - out.mp4
+ *
+ * Reading, simulating and writing run on three threads, so that the next
+ * frame is read and the previous frame is written while a frame is
+ * simulated. Three frame buffers circulate between the threads; they are
+ * allocated once, and no memory is allocated per frame. The reading thread
+ * converts the bytes of a frame to ints, the writing thread converts them
+ * back, and the simulation of a frame runs in parallel on the simulator's
+ * pool.
+ */
+final class PipeProcessor {
+
+    /**
+     * The first command line argument starting the pipe mode.
+     */
+    static final String OPTION = "-pipe";
+
+    private static final String USAGE
+            = "Usage: java -jar ColorOracle.jar -pipe -size WIDTHxHEIGHT [options]\n"
+            + "Reads raw frames from the standard input and writes the simulated\n"
+            + "frames to the standard output.\n"
+            + "Options:\n"
+            + "  -size WxH      width and height of the frames in pixels (required)\n"
+            + "  -s type        simulation: normal, deutan, protan, tritan,\n"
+            + "                 grayscale (default: deutan)\n"
+            + "  -f format      order of the bytes of a pixel: rgba, bgra, argb,\n"
+            + "                 abgr, rgb24, bgr24 (default: rgba)";
+
+    /**
+     * The number of frame buffers: one read, one simulated and one written
+     * at the same time.
+     */
+    private static final int BUFFERS = 3;
+
+    private final Simulator simulator = new Simulator();
+    private final Simulation simulation;
+    private final int width;
+    private final int height;
+
+    /**
+     * The number of bytes of a pixel, 3 or 4, and the position of each
+     * component in a pixel, or -1 for no alpha.
+     */
+    private final int bytesPerPixel;
+    private final int red;
+    private final int green;
+    private final int blue;
+    private final int alpha;
+
+    /**
+     * True if the pixels are big-endian ints as used by the simulator.
+     */
+    private final boolean argb;
+
+    /**
+     * Marks the end of the stream in the queues.
+     */
+    private final Frame end = new Frame(null, null);
+
+    /**
+     * Frames that can be read, that were read, and that were simulated.
+     */
+    private final BlockingQueue<Frame> free = new ArrayBlockingQueue<>(BUFFERS + 1);
+    private final BlockingQueue<Frame> read = new ArrayBlockingQueue<>(BUFFERS + 1);
+    private final BlockingQueue<Frame> simulated = new ArrayBlockingQueue<>(BUFFERS + 1);
+
+    /**
+     * A frame as bytes of the stream and as ints for the simulator.
+     */
+    private static final class Frame {
+
+        final ByteBuffer bytes;
+        final IntBuffer ints;
+        final int[] pixels;
+
+        Frame(ByteBuffer bytes, int[] pixels) {
+            this.bytes = bytes;
+            this.pixels = pixels;
+            ints = bytes == null ? null : bytes.asIntBuffer();
+        }
+    }
+
+    /**
+     * Creates a processor for frames of a size and a format.
+     *
+     * @param format The order of the components of a pixel: rgba, bgra,
+     * argb, abgr, rgb or bgr.
+     */
+    PipeProcessor(Simulation simulation, int width, int height,
+            String format) {
+        this.simulation = simulation;
+        this.width = width;
+        this.height = height;
+        bytesPerPixel = format.length();
+        red = format.indexOf('r');
+        green = format.indexOf('g');
+        blue = format.indexOf('b');
+        alpha = format.indexOf('a');
+        argb = "argb".equals(format);
+        final long frameBytes = (long) width * height * bytesPerPixel;
+        if (frameBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The frames are too large");
+        }
+        for (int i = 0; i < BUFFERS; i++) {
+            free.add(new Frame(ByteBuffer.allocateDirect((int) frameBytes),
+                    new int[width * height]));
+        }
+    }
+
+    /**
+     * Runs the pipe mode until the end of the standard input.
+     *
+     * @param args The command line arguments, starting with OPTION.
+     * @return The exit code: 0 on success, 1 if the frames cannot be read or
+     * written, 2 if the arguments are invalid.
+     */
+    static int run(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+
+        Simulation simulation = Simulation.deutan;
+        String format = "rgba";
+        int width = -1;
+        int height = -1;
+        final PipeProcessor processor;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-size":
+                        final String[] size = value(args, ++i).toLowerCase(Locale.US).split("x");
+                        if (size.length != 2) {
+                            throw new IllegalArgumentException("Invalid frame size");
+                        }
+                        width = Integer.parseInt(size[0]);
+                        height = Integer.parseInt(size[1]);
+                        break;
+                    case "-s":
+                        simulation = Simulation.valueOf(value(args, ++i).toLowerCase(Locale.US));
+                        break;
+                    case "-f":
+                        format = value(args, ++i).toLowerCase(Locale.US).replace("24", "");
+                        if (!format.matches("rgba|bgra|argb|abgr|rgb|bgr")) {
+                            throw new IllegalArgumentException("Unsupported pixel format " + args[i]);
+                        }
+                        break;
+                    case "-h":
+                    case "-help":
+                        System.err.println(USAGE);
+                        return 0;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (width < 1 || height < 1) {
+                throw new IllegalArgumentException("No or invalid frame size");
+            }
+            processor = new PipeProcessor(simulation, width, height, format);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        try (FileInputStream in = new FileInputStream(FileDescriptor.in);
+                FileOutputStream out = new FileOutputStream(FileDescriptor.out)) {
+            final long start = System.nanoTime();
+            final long frames = processor.process(in.getChannel(), out.getChannel());
+            final double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+            System.err.println(String.format(Locale.US,
+                    "%d frames in %.2f s: %.1f frames/s", frames, seconds, frames / seconds));
+            return 0;
+        } catch (IOException ex) {
+            System.err.println("Cannot process frames: " + ex.getMessage());
+            return 1;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            System.err.println("Interrupted");
+            return 1;
+        }
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+        }
+        return args[i];
+    }
+
+    /**
+     * Simulates all frames of a stream.
+     *
+     * @return The number of frames.
+     */
+    long process(final ReadableByteChannel in,
+            final WritableByteChannel out) throws IOException, InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<Long> reader = executor.submit(new Callable<Long>() {
+
+                @Override
+                public Long call() throws IOException, InterruptedException {
+                    return readFrames(in);
+                }
+            });
+            final Future<?> writer = executor.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws IOException, InterruptedException {
+                    writeFrames(out);
+                    return null;
+                }
+            });
+
+            Frame frame;
+            while ((frame = read.take()) != end) {
+                simulator.filterRows(simulation, frame.pixels, 0, frame.pixels, 0,
+                        width, height);
+                simulated.put(frame);
+            }
+            simulated.put(end);
+            writer.get();
+            return reader.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads frames and converts them to ints until the end of the stream.
+     */
+    private long readFrames(ReadableByteChannel in) throws IOException,
+            InterruptedException {
+        long frames = 0;
+        try {
+            Frame frame;
+            while ((frame = free.take()) != end) {
+                final ByteBuffer bytes = frame.bytes;
+                bytes.clear();
+                while (bytes.hasRemaining() && in.read(bytes) >= 0) {
+                    // read the whole frame
+                }
+                if (bytes.position() == 0) {
+                    break;
+                }
+                if (bytes.hasRemaining()) {
+                    throw new IOException("The last frame is incomplete");
+                }
+                toPixels(frame);
+                read.put(frame);
+                frames++;
+            }
+        } finally {
+            read.put(end);
+        }
+        return frames;
+    }
+
+    /**
+     * Converts simulated frames to bytes and writes them until the end
+     * frame.
+     */
+    private void writeFrames(WritableByteChannel out) throws IOException,
+            InterruptedException {
+        try {
+            Frame frame;
+            while ((frame = simulated.take()) != end) {
+                toBytes(frame);
+                final ByteBuffer bytes = frame.bytes;
+                bytes.clear();
+                while (bytes.hasRemaining()) {
+                    out.write(bytes);
+                }
+                free.put(frame);
+            }
+        } catch (IOException | RuntimeException ex) {
+            // stop the reader
+            free.put(end);
+            throw ex;
+        }
+    }
+
+    private void toPixels(Frame frame) {
+        final ByteBuffer bytes = frame.bytes;
+        final int[] pixels = frame.pixels;
+        if (bytesPerPixel == 4) {
+            // bulk copy of whole pixels as big-endian ints, then reorder
+            frame.ints.clear();
+            frame.ints.get(pixels);
+            if (!argb) {
+                final int r = 24 - 8 * red;
+                final int g = 24 - 8 * green;
+                final int b = 24 - 8 * blue;
+                final int a = 24 - 8 * alpha;
+                for (int i = 0; i < pixels.length; i++) {
+                    final int c = pixels[i];
+                    pixels[i] = (c >>> a) << 24 | (c >>> r & 0xff) << 16
+                            | (c >>> g & 0xff) << 8 | (c >>> b & 0xff);
+                }
+            }
+        } else {
+            for (int i = 0, j = 0; i < pixels.length; i++, j += 3) {
+                pixels[i] = 0xff000000 | (bytes.get(j + red) & 0xff) << 16
+                        | (bytes.get(j + green) & 0xff) << 8 | (bytes.get(j + blue) & 0xff);
+            }
+        }
+    }
+
+    private void toBytes(Frame frame) {
+        final ByteBuffer bytes = frame.bytes;
+        final int[] pixels = frame.pixels;
+        if (bytesPerPixel == 4) {
+            if (!argb) {
+                final int r = 24 - 8 * red;
+                final int g = 24 - 8 * green;
+                final int b = 24 - 8 * blue;
+                final int a = 24 - 8 * alpha;
+                for (int i = 0; i < pixels.length; i++) {
+                    final int c = pixels[i];
+                    pixels[i] = (c >>> 24) << a | (c >> 16 & 0xff) << r
+                            | (c >> 8 & 0xff) << g | (c & 0xff) << b;
+                }
+            }
+            frame.ints.clear();
+            frame.ints.put(pixels);
+        } else {
+            for (int i = 0, j = 0; i < pixels.length; i++, j += 3) {
+                final int c = pixels[i];
+                bytes.put(j + red, (byte) (c >> 16));
+                bytes.put(j + green, (byte) (c >> 8));
+                bytes.put(j + blue, (byte) c);
+            }
+        }
+    }
+}
@@ -0,0 +1,634 @@
+/*
+ * PixelLayout.java
+ *
+ */
+package ika.colororacle;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Reads and writes rows of an image as packed sRGB ints (0xAARRGGBB). Rows
+ * are read from and written to the data buffer of the image, so that images
+ * of any type can be filtered without converting the whole image first.
+ *
+ * There are layouts for packed pixels in ints, shorts or bytes (for example
+ * TYPE_INT_BGR or TYPE_USHORT_565_RGB), for interleaved bytes (for example
+ * TYPE_3BYTE_BGR and TYPE_4BYTE_ABGR), for interleaved 16 bit channels (for
+ * example 16 bit PNG and TIFF files), and for 8 and 16 bit gray images. All
+ * other images are read and written with BufferedImage.getRGB and setRGB.
+ *
+ * Rows of images with 16 bits per channel can also be read and written as
+ * longs with 16 bits per channel (0xAAAARRRRGGGGBBBB), so that they can be
+ * filtered without reducing them to 8 bits.
+ *
+ * Colors of images with premultiplied alpha are divided by alpha when read,
+ * and multiplied by alpha when written, so that rows always contain colors
+ * that are not premultiplied.
+ */
+abstract class PixelLayout {
+
+    /**
+     * The size of the image in pixels.
+     */
+    final int width;
+    final int height;
+
+    /**
+     * True if the image has an alpha channel.
+     */
+    final boolean hasAlpha;
+
+    /**
+     * True if the colors in the image are premultiplied by alpha.
+     */
+    final boolean premultiplied;
+
+    PixelLayout(int width, int height, boolean hasAlpha, boolean premultiplied) {
+        this.width = width;
+        this.height = height;
+        this.hasAlpha = hasAlpha;
+        this.premultiplied = hasAlpha && premultiplied;
+    }
+
+    /**
+     * Reads a row of pixels.
+     *
+     * @param y The row.
+     * @param argb Receives width sRGB colors.
+     */
+    abstract void readRow(int y, int[] argb);
+
+    /**
+     * Writes a row of pixels.
+     *
+     * @param y The row.
+     * @param argb Width sRGB colors.
+     */
+    abstract void writeRow(int y, int[] argb);
+
+    /**
+     * Returns whether the image has 16 bits per channel. Rows of these images
+     * can also be read and written with readRow16 and writeRow16.
+     */
+    boolean is16Bit() {
+        return false;
+    }
+
+    /**
+     * Reads a row of pixels with 16 bits per channel. Only supported if
+     * is16Bit returns true.
+     *
+     * @param y The row.
+     * @param argb Receives width sRGB colors, 0xAAAARRRRGGGGBBBB.
+     */
+    void readRow16(int y, long[] argb) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Writes a row of pixels with 16 bits per channel. Only supported if
+     * is16Bit returns true.
+     *
+     * @param y The row.
+     * @param argb Width sRGB colors, 0xAAAARRRRGGGGBBBB.
+     */
+    void writeRow16(int y, long[] argb) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns whether different rows can be read and written by different
+     * threads at the same time.
+     */
+    boolean isConcurrent() {
+        return true;
+    }
+
+    /**
+     * Returns the pixels if they are sRGB ints in 0xAARRGGBB order stored row
+     * after row without gaps. The pixels can then be filtered without reading
+     * and writing rows.
+     *
+     * @return The pixels, or null.
+     */
+    int[] getPackedData() {
+        return null;
+    }
+
+    /**
+     * Returns the layout of an image.
+     *
+     * @param image The image.
+     * @return The layout for reading and writing the pixels of the image.
+     */
+    static PixelLayout of(BufferedImage image) {
+        final WritableRaster raster = image.getRaster();
+        final ColorModel cm = image.getColorModel();
+        final SampleModel sm = raster.getSampleModel();
+        final DataBuffer buffer = raster.getDataBuffer();
+        final int colorSpaceType = cm.getColorSpace().getType();
+        if (buffer.getNumBanks() != 1 || cm instanceof IndexColorModel) {
+            return new GenericLayout(image);
+        }
+
+        // the offset of the first pixel in the data buffer
+        final int x0 = -raster.getSampleModelTranslateX();
+        final int y0 = -raster.getSampleModelTranslateY();
+
+        if (sm instanceof SinglePixelPackedSampleModel
+                && cm instanceof DirectColorModel
+                && colorSpaceType == ColorSpace.TYPE_RGB) {
+            final SinglePixelPackedSampleModel psm = (SinglePixelPackedSampleModel) sm;
+            final int offset = buffer.getOffset() + psm.getOffset(x0, y0);
+            return new PackedLayout(raster.getWidth(), raster.getHeight(),
+                    cm.isAlphaPremultiplied(), buffer, offset,
+                    psm.getScanlineStride(), psm.getBitMasks());
+        }
+
+        if (sm instanceof ComponentSampleModel) {
+            final ComponentSampleModel csm = (ComponentSampleModel) sm;
+            final int offset = buffer.getOffset()
+                    + y0 * csm.getScanlineStride() + x0 * csm.getPixelStride();
+            final int bands = csm.getNumBands();
+            if (buffer instanceof DataBufferByte
+                    && colorSpaceType == ColorSpace.TYPE_RGB
+                    && (bands == 3 || (bands == 4 && cm.hasAlpha()))
+                    && allSamplesHaveBits(csm, 8)) {
+                return new InterleavedLayout(raster.getWidth(), raster.getHeight(),
+                        cm.isAlphaPremultiplied(), ((DataBufferByte) buffer).getData(), offset,
+                        csm.getScanlineStride(), csm.getPixelStride(),
+                        csm.getBandOffsets());
+            }
+            if (buffer instanceof DataBufferUShort
+                    && colorSpaceType == ColorSpace.TYPE_RGB
+                    && (bands == 3 || (bands == 4 && cm.hasAlpha()))
+                    && !cm.isAlphaPremultiplied()
+                    && allSamplesHaveBits(csm, 16)) {
+                return new Interleaved16Layout(raster.getWidth(), raster.getHeight(),
+                        ((DataBufferUShort) buffer).getData(), offset,
+                        csm.getScanlineStride(), csm.getPixelStride(),
+                        csm.getBandOffsets());
+            }
+            if (colorSpaceType == ColorSpace.TYPE_GRAY && bands == 1) {
+                if (buffer instanceof DataBufferByte && allSamplesHaveBits(csm, 8)) {
+                    return new GrayLayout(raster.getWidth(), raster.getHeight(),
+                            ((DataBufferByte) buffer).getData(), null, offset,
+                            csm.getScanlineStride(), csm.getPixelStride());
+                }
+                if (buffer instanceof DataBufferUShort && allSamplesHaveBits(csm, 16)) {
+                    return new GrayLayout(raster.getWidth(), raster.getHeight(),
+                            null, ((DataBufferUShort) buffer).getData(), offset,
+                            csm.getScanlineStride(), csm.getPixelStride());
+                }
+            }
+        }
+        return new GenericLayout(image);
+    }
+
+    /**
+     * Divides the color channels of a premultiplied color by alpha.
+     */
+    static int unpremultiply(int argb) {
+        final int a = argb >>> 24;
+        if (a == 0xff) {
+            return argb;
+        }
+        if (a == 0) {
+            return 0;
+        }
+        final int half = a / 2;
+        final int r = Math.min(255, (((argb >> 16) & 0xff) * 255 + half) / a);
+        final int g = Math.min(255, (((argb >> 8) & 0xff) * 255 + half) / a);
+        final int b = Math.min(255, ((argb & 0xff) * 255 + half) / a);
+        return a << 24 | r << 16 | g << 8 | b;
+    }
+
+    /**
+     * Multiplies the color channels of a color by alpha.
+     */
+    static int premultiply(int argb) {
+        final int a = argb >>> 24;
+        if (a == 0xff) {
+            return argb;
+        }
+        final int r = (((argb >> 16) & 0xff) * a + 127) / 255;
+        final int g = (((argb >> 8) & 0xff) * a + 127) / 255;
+        final int b = ((argb & 0xff) * a + 127) / 255;
+        return a << 24 | r << 16 | g << 8 | b;
+    }
+
+    private static boolean allSamplesHaveBits(SampleModel sm, int bits) {
+        for (int b = 0; b < sm.getNumBands(); b++) {
+            if (sm.getSampleSize(b) != bits) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Pixels packed into an int, a short or a byte, with a bit mask for each
+     * channel.
+     */
+    private static final class PackedLayout extends PixelLayout {
+
+        private final int[] ints;
+        private final short[] shorts;
+        private final byte[] bytes;
+        private final int offset;
+        private final int scanlineStride;
+
+        /**
+         * For red, green, blue and alpha the bit mask, the position of the
+         * lowest bit, and the largest value. The alpha mask is 0 if there is
+         * no alpha channel.
+         */
+        private final int[] masks = new int[4];
+        private final int[] shifts = new int[4];
+        private final int[] max = new int[4];
+
+        /**
+         * True if the pixels are ints with 8 bit red, green and blue in
+         * 0x00RRGGBB order.
+         */
+        private final boolean rgb8;
+
+        PackedLayout(int width, int height, boolean premultiplied,
+                DataBuffer buffer, int offset, int scanlineStride, int[] bitMasks) {
+            super(width, height, bitMasks.length > 3 && bitMasks[3] != 0, premultiplied);
+            ints = buffer instanceof DataBufferInt ? ((DataBufferInt) buffer).getData() : null;
+            shorts = buffer instanceof DataBufferUShort ? ((DataBufferUShort) buffer).getData() : null;
+            bytes = buffer instanceof DataBufferByte ? ((DataBufferByte) buffer).getData() : null;
+            if (ints == null && shorts == null && bytes == null) {
+                throw new IllegalArgumentException("Unsupported data buffer");
+            }
+            this.offset = offset;
+            this.scanlineStride = scanlineStride;
+            for (int c = 0; c < bitMasks.length && c < 4; c++) {
+                masks[c] = bitMasks[c];
+                shifts[c] = Integer.numberOfTrailingZeros(bitMasks[c]);
+                max[c] = bitMasks[c] == 0 ? 0 : bitMasks[c] >>> shifts[c];
+            }
+            rgb8 = ints != null && masks[0] == 0xff0000 && masks[1] == 0xff00
+                    && masks[2] == 0xff && (masks[3] == 0 || masks[3] == 0xff000000);
+        }
+
+        @Override
+        int[] getPackedData() {
+            if (rgb8 && !premultiplied && offset == 0 && scanlineStride == width
+                    && ints.length >= width * height) {
+                return ints;
+            }
+            return null;
+        }
+
+        private int element(int i) {
+            if (ints != null) {
+                return ints[i];
+            }
+            return shorts != null ? shorts[i] & 0xffff : bytes[i] & 0xff;
+        }
+
+        private void setElement(int i, int v) {
+            if (ints != null) {
+                ints[i] = v;
+            } else if (shorts != null) {
+                shorts[i] = (short) v;
+            } else {
+                bytes[i] = (byte) v;
+            }
+        }
+
+        /**
+         * Scales a channel value from 0..max to 0..255.
+         */
+        private int toByte(int v, int c) {
+            return (((v & masks[c]) >>> shifts[c]) * 255 + max[c] / 2) / max[c];
+        }
+
+        /**
+         * Scales a channel value from 0..255 to 0..max.
+         */
+        private int fromByte(int v, int c) {
+            return ((v * max[c] + 127) / 255) << shifts[c];
+        }
+
+        @Override
+        void readRow(int y, int[] argb) {
+            final int start = offset + y * scanlineStride;
+            if (rgb8) {
+                final int alpha = masks[3] == 0 ? 0xff000000 : 0;
+                for (int x = 0; x < width; x++) {
+                    argb[x] = ints[start + x] | alpha;
+                }
+            } else {
+                for (int x = 0; x < width; x++) {
+                    final int v = element(start + x);
+                    final int a = masks[3] == 0 ? 0xff : toByte(v, 3);
+                    argb[x] = a << 24 | toByte(v, 0) << 16 | toByte(v, 1) << 8 | toByte(v, 2);
+                }
+            }
+            if (premultiplied) {
+                for (int x = 0; x < width; x++) {
+                    argb[x] = unpremultiply(argb[x]);
+                }
+            }
+        }
+
+        @Override
+        void writeRow(int y, int[] argb) {
+            final int start = offset + y * scanlineStride;
+            if (rgb8) {
+                final int mask = masks[3] == 0 ? 0xffffff : 0xffffffff;
+                for (int x = 0; x < width; x++) {
+                    final int c = premultiplied ? premultiply(argb[x]) : argb[x];
+                    ints[start + x] = c & mask;
+                }
+                return;
+            }
+            for (int x = 0; x < width; x++) {
+                final int c = premultiplied ? premultiply(argb[x]) : argb[x];
+                int v = fromByte((c >> 16) & 0xff, 0)
+                        | fromByte((c >> 8) & 0xff, 1)
+                        | fromByte(c & 0xff, 2);
+                if (masks[3] != 0) {
+                    v |= fromByte(c >>> 24, 3);
+                }
+                setElement(start + x, v);
+            }
+        }
+    }
+
+    /**
+     * Pixels with one byte per channel, for example TYPE_3BYTE_BGR and
+     * TYPE_4BYTE_ABGR.
+     */
+    private static final class InterleavedLayout extends PixelLayout {
+
+        private final byte[] data;
+        private final int offset;
+        private final int scanlineStride;
+        private final int pixelStride;
+        private final int r, g, b;
+
+        /**
+         * The offset of the alpha byte, or -1 if there is no alpha channel.
+         */
+        private final int a;
+
+        InterleavedLayout(int width, int height, boolean premultiplied,
+                byte[] data, int offset, int scanlineStride, int pixelStride,
+                int[] bandOffsets) {
+            super(width, height, bandOffsets.length > 3, premultiplied);
+            this.data = data;
+            this.offset = offset;
+            this.scanlineStride = scanlineStride;
+            this.pixelStride = pixelStride;
+            r = bandOffsets[0];
+            g = bandOffsets[1];
+            b = bandOffsets[2];
+            a = bandOffsets.length > 3 ? bandOffsets[3] : -1;
+        }
+
+        @Override
+        void readRow(int y, int[] argb) {
+            final byte[] d = data;
+            int i = offset + y * scanlineStride;
+            for (int x = 0; x < width; x++, i += pixelStride) {
+                final int alpha = a < 0 ? 0xff : d[i + a] & 0xff;
+                final int c = alpha << 24 | (d[i + r] & 0xff) << 16
+                        | (d[i + g] & 0xff) << 8 | (d[i + b] & 0xff);
+                argb[x] = premultiplied ? unpremultiply(c) : c;
+            }
+        }
+
+        @Override
+        void writeRow(int y, int[] argb) {
+            final byte[] d = data;
+            int i = offset + y * scanlineStride;
+            for (int x = 0; x < width; x++, i += pixelStride) {
+                final int c = premultiplied ? premultiply(argb[x]) : argb[x];
+                d[i + r] = (byte) (c >> 16);
+                d[i + g] = (byte) (c >> 8);
+                d[i + b] = (byte) c;
+                if (a >= 0) {
+                    d[i + a] = (byte) (c >>> 24);
+                }
+            }
+        }
+    }
+
+    /**
+     * Pixels with 16 bits per channel that are not premultiplied, for example
+     * 16 bit RGB and RGBA PNG files read by ImageIO.
+     */
+    private static final class Interleaved16Layout extends PixelLayout {
+
+        private final short[] data;
+        private final int offset;
+        private final int scanlineStride;
+        private final int pixelStride;
+        private final int r, g, b;
+
+        /**
+         * The offset of the alpha sample, or -1 if there is no alpha channel.
+         */
+        private final int a;
+
+        Interleaved16Layout(int width, int height, short[] data, int offset,
+                int scanlineStride, int pixelStride, int[] bandOffsets) {
+            super(width, height, bandOffsets.length > 3, false);
+            this.data = data;
+            this.offset = offset;
+            this.scanlineStride = scanlineStride;
+            this.pixelStride = pixelStride;
+            r = bandOffsets[0];
+            g = bandOffsets[1];
+            b = bandOffsets[2];
+            a = bandOffsets.length > 3 ? bandOffsets[3] : -1;
+        }
+
+        @Override
+        boolean is16Bit() {
+            return true;
+        }
+
+        /**
+         * Scales a sample from 0..65535 to 0..255.
+         */
+        private static int toByte(short v) {
+            return ((v & 0xffff) * 255 + 32767) / 65535;
+        }
+
+        @Override
+        void readRow(int y, int[] argb) {
+            final short[] d = data;
+            int i = offset + y * scanlineStride;
+            for (int x = 0; x < width; x++, i += pixelStride) {
+                final int alpha = a < 0 ? 0xff : toByte(d[i + a]);
+                argb[x] = alpha << 24 | toByte(d[i + r]) << 16
+                        | toByte(d[i + g]) << 8 | toByte(d[i + b]);
+            }
+        }
+
+        @Override
+        void writeRow(int y, int[] argb) {
+            final short[] d = data;
+            int i = offset + y * scanlineStride;
+            for (int x = 0; x < width; x++, i += pixelStride) {
+                final int c = argb[x];
+                d[i + r] = (short) (((c >> 16) & 0xff) * 257);
+                d[i + g] = (short) (((c >> 8) & 0xff) * 257);
+                d[i + b] = (short) ((c & 0xff) * 257);
+                if (a >= 0) {
+                    d[i + a] = (short) ((c >>> 24) * 257);
+                }
+            }
+        }
+
+        @Override
+        void readRow16(int y, long[] argb) {
+            final short[] d = data;
+            int i = offset + y * scanlineStride;
+            for (int x = 0; x < width; x++, i += pixelStride) {
+                final long alpha = a < 0 ? 0xffff : d[i + a] & 0xffff;
+                argb[x] = alpha << 48 | (d[i + r] & 0xffffL) << 32
+                        | (d[i + g] & 0xffffL) << 16 | (d[i + b] & 0xffffL);
+            }
+        }
+
+        @Override
+        void writeRow16(int y, long[] argb) {
+            final short[] d = data;
+            int i = offset + y * scanlineStride;
+            for (int x = 0; x < width; x++, i += pixelStride) {
+                final long c = argb[x];
+                d[i + r] = (short) (c >> 32);
+                d[i + g] = (short) (c >> 16);
+                d[i + b] = (short) c;
+                if (a >= 0) {
+                    d[i + a] = (short) (c >>> 48);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gray pixels with 8 or 16 bits. Gray values are treated as gamma
+     * corrected like sRGB, as they are in gray PNG and JPEG files. Written
+     * colors are reduced to their luma.
+     */
+    private static final class GrayLayout extends PixelLayout {
+
+        private final byte[] bytes;
+        private final short[] shorts;
+        private final int offset;
+        private final int scanlineStride;
+        private final int pixelStride;
+
+        GrayLayout(int width, int height, byte[] bytes, short[] shorts,
+                int offset, int scanlineStride, int pixelStride) {
+            super(width, height, false, false);
+            this.bytes = bytes;
+            this.shorts = shorts;
+            this.offset = offset;
+            this.scanlineStride = scanlineStride;
+            this.pixelStride = pixelStride;
+        }
+
+        @Override
+        void readRow(int y, int[] argb) {
+            int i = offset + y * scanlineStride;
+            for (int x = 0; x < width; x++, i += pixelStride) {
+                final int v = bytes != null
+                        ? bytes[i] & 0xff
+                        : ((shorts[i] & 0xffff) * 255 + 32767) / 65535;
+                argb[x] = 0xff000000 | v << 16 | v << 8 | v;
+            }
+        }
+
+        @Override
+        void writeRow(int y, int[] argb) {
+            int i = offset + y * scanlineStride;
+            for (int x = 0; x < width; x++, i += pixelStride) {
+                final int c = argb[x];
+                final int v = (77 * ((c >> 16) & 0xff) + 150 * ((c >> 8) & 0xff)
+                        + 29 * (c & 0xff) + 128) >> 8;
+                if (bytes != null) {
+                    bytes[i] = (byte) v;
+                } else {
+                    shorts[i] = (short) (v * 257);
+                }
+            }
+        }
+
+        @Override
+        boolean is16Bit() {
+            return shorts != null;
+        }
+
+        @Override
+        void readRow16(int y, long[] argb) {
+            int i = offset + y * scanlineStride;
+            for (int x = 0; x < width; x++, i += pixelStride) {
+                final long v = shorts[i] & 0xffff;
+                argb[x] = 0xffffL << 48 | v << 32 | v << 16 | v;
+            }
+        }
+
+        @Override
+        void writeRow16(int y, long[] argb) {
+            int i = offset + y * scanlineStride;
+            for (int x = 0; x < width; x++, i += pixelStride) {
+                final long c = argb[x];
+                final int v = (77 * (int) ((c >> 32) & 0xffff)
+                        + 150 * (int) ((c >> 16) & 0xffff)
+                        + 29 * (int) (c & 0xffff) + 128) >> 8;
+                shorts[i] = (short) v;
+            }
+        }
+    }
+
+    /**
+     * Any other image, read and written with getRGB and setRGB, which
+     * convert from and to premultiplied alpha. Setting colors of indexed
+     * images searches the palette, which is not thread-safe.
+     */
+    private static final class GenericLayout extends PixelLayout {
+
+        private final BufferedImage image;
+
+        GenericLayout(BufferedImage image) {
+            super(image.getWidth(), image.getHeight(),
+                    image.getColorModel().hasAlpha(), false);
+            this.image = image;
+        }
+
+        @Override
+        boolean isConcurrent() {
+            return false;
+        }
+
+        @Override
+        void readRow(int y, int[] argb) {
+            image.getRGB(0, y, width, 1, argb, 0, width);
+        }
+
+        @Override
+        void writeRow(int y, int[] argb) {
+            image.setRGB(0, y, width, 1, argb, 0, width);
+        }
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * PngEncoder.java
+ *
+ */
+package ika.colororacle;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes 8 bit RGB and RGBA PNG files, compressing the rows in parallel.
+ *
+ * The rows are split into chunks that are filtered and compressed
+ * independently on an executor. Each chunk is compressed to raw deflate
+ * data that ends on a byte boundary, so that the compressed chunks can be
+ * joined into a single zlib stream. Each chunk uses the last 32 KB of
+ * filtered data before it as preset dictionary, so that the compression
+ * ratio is close to that of compressing all rows at once. The Adler-32
+ * checksums of the chunks are combined into the checksum of the stream.
+ *
+ * Images with a single chunk, and images that cannot be read by several
+ * threads, are compressed by the calling thread.
+ */
+final class PngEncoder {
+
+    /**
+     * The PNG row filters. adaptive selects for each row the filter with the
+     * smallest sum of absolute differences, as suggested by the PNG
+     * specification.
+     */
+    enum Filter {
+
+        none, sub, up, average, paeth, adaptive
+    }
+
+    private static final byte[] SIGNATURE = {
+        (byte) 137, 80, 78, 71, 13, 10, 26, 10
+    };
+
+    /**
+     * The minimum number of uncompressed bytes in a chunk. Smaller chunks
+     * compress worse and cost more to schedule.
+     */
+    private static final int MIN_CHUNK_SIZE = 1 << 18;
+
+    /**
+     * The size of the deflate window and of the preset dictionaries.
+     */
+    private static final int DICTIONARY_SIZE = 1 << 15;
+
+    private final int level;
+    private final Filter filter;
+    private final ExecutorService executor;
+
+    /**
+     * Creates a new encoder.
+     *
+     * @param level The compression level between 0 (no compression) and 9
+     * (best compression).
+     * @param filter The row filter.
+     * @param executor Compresses the chunks, or null to compress on the
+     * calling thread.
+     */
+    PngEncoder(int level, Filter filter, ExecutorService executor) {
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("The compression level must be between 0 and 9");
+        }
+        this.level = level;
+        this.filter = filter;
+        this.executor = executor;
+    }
+
+    /**
+     * Writes an image to a PNG file.
+     *
+     * @param image The image. Colors are reduced to 8 bits per channel.
+     * @param file The file.
+     * @throws IOException If the file cannot be written.
+     */
+    void write(BufferedImage image, File file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            write(image, out);
+        }
+    }
+
+    /**
+     * Writes an image as PNG to a stream.
+     *
+     * @param image The image. Colors are reduced to 8 bits per channel.
+     * @param out The stream, which is not closed.
+     * @throws IOException If the stream cannot be written.
+     */
+    void write(BufferedImage image, OutputStream out) throws IOException {
+        final PixelLayout layout = PixelLayout.of(image);
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int channels = layout.hasAlpha ? 4 : 3;
+        final int rowSize = width * channels + 1;
+
+        // split the rows into chunks
+        final int rowsPerChunk = Math.max(1, MIN_CHUNK_SIZE / rowSize);
+        final List<Callable<Chunk>> tasks = new ArrayList<>();
+        for (int y = 0; y < height; y += rowsPerChunk) {
+            tasks.add(new ChunkTask(layout, channels, y,
+                    Math.min(height, y + rowsPerChunk), y + rowsPerChunk >= height));
+        }
+        final List<Future<Chunk>> futures = new ArrayList<>();
+        if (executor != null && tasks.size() > 1 && layout.isConcurrent()) {
+            for (Callable<Chunk> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+        }
+
+        final DataOutputStream data = new DataOutputStream(out);
+        data.write(SIGNATURE);
+        final ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        final DataOutputStream h = new DataOutputStream(header);
+        h.writeInt(width);
+        h.writeInt(height);
+        h.writeByte(8);
+        h.writeByte(channels == 4 ? 6 : 2);
+        h.writeByte(0); // deflate
+        h.writeByte(0); // adaptive filtering
+        h.writeByte(0); // no interlace
+        writeChunk(data, "IHDR", header.toByteArray(), 0, header.size());
+
+        // zlib header with 32 KB window and the compression level
+        final int levelBits = level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3;
+        final int cmf = 0x78;
+        final int flg = levelBits << 6;
+        final byte[] zlibHeader = {(byte) cmf, (byte) (flg + 31 - (cmf * 256 + flg) % 31)};
+        writeChunk(data, "IDAT", zlibHeader, 0, zlibHeader.length);
+
+        long adler = 1;
+        try {
+            for (int i = 0; i < tasks.size(); i++) {
+                final Chunk chunk = futures.isEmpty() ? tasks.get(i).call() : futures.get(i).get();
+                writeChunk(data, "IDAT", chunk.data, 0, chunk.data.length);
+                adler = combineAdler32(adler, chunk.adler, chunk.length);
+            }
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", ex);
+        } catch (IOException | RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException(ex);
+        } finally {
+            for (Future<Chunk> future : futures) {
+                future.cancel(false);
+            }
+        }
+        final byte[] checksum = {(byte) (adler >>> 24), (byte) (adler >>> 16),
+            (byte) (adler >>> 8), (byte) adler};
+        writeChunk(data, "IDAT", checksum, 0, checksum.length);
+        writeChunk(data, "IEND", new byte[0], 0, 0);
+        data.flush();
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] b,
+            int off, int len) throws IOException {
+        final byte[] typeBytes = type.getBytes("US-ASCII");
+        final CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(b, off, len);
+        out.writeInt(len);
+        out.write(typeBytes);
+        out.write(b, off, len);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Combines the Adler-32 checksums of two sequences into the checksum of
+     * the joined sequence, as adler32_combine of zlib.
+     *
+     * @param adler1 The checksum of the first sequence.
+     * @param adler2 The checksum of the second sequence.
+     * @param length2 The length of the second sequence.
+     */
+    static long combineAdler32(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        final long rem = length2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + base - rem;
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum2 >= base << 1) {
+            sum2 -= base << 1;
+        }
+        if (sum2 >= base) {
+            sum2 -= base;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * A compressed chunk of rows.
+     */
+    private static final class Chunk {
+
+        /**
+         * The raw deflate data.
+         */
+        final byte[] data;
+
+        /**
+         * The Adler-32 checksum and length of the filtered rows.
+         */
+        final long adler;
+        final long length;
+
+        Chunk(byte[] data, long adler, long length) {
+            this.data = data;
+            this.adler = adler;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Filters and compresses a range of rows.
+     */
+    private final class ChunkTask implements Callable<Chunk> {
+
+        private final PixelLayout layout;
+        private final int channels;
+        private final int fromRow;
+        private final int toRow;
+        private final boolean last;
+
+        ChunkTask(PixelLayout layout, int channels, int fromRow, int toRow,
+                boolean last) {
+            this.layout = layout;
+            this.channels = channels;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.last = last;
+        }
+
+        @Override
+        public Chunk call() {
+            final int width = layout.width;
+            final int rowSize = width * channels + 1;
+
+            // the rows before fromRow are filtered again for the dictionary
+            final int dictionaryRows = fromRow == 0 ? 0
+                    : Math.min(fromRow, (DICTIONARY_SIZE + rowSize - 1) / rowSize);
+            final int firstRow = fromRow - dictionaryRows;
+            final byte[] filtered = new byte[(toRow - firstRow) * rowSize];
+            final int[] argb = new int[width];
+            byte[] prev = new byte[width * channels];
+            byte[] cur = new byte[width * channels];
+            final byte[][] candidates = filter == Filter.adaptive
+                    ? new byte[5][width * channels] : null;
+            if (firstRow > 0) {
+                readRow(firstRow - 1, argb, prev);
+            }
+            for (int y = firstRow; y < toRow; y++) {
+                readRow(y, argb, cur);
+                filterRow(prev, cur, filtered, (y - firstRow) * rowSize, candidates);
+                final byte[] t = prev;
+                prev = cur;
+                cur = t;
+            }
+
+            final int start = dictionaryRows * rowSize;
+            final int length = filtered.length - start;
+            final Adler32 adler = new Adler32();
+            adler.update(filtered, start, length);
+
+            final Deflater deflater = new Deflater(level, true);
+            try {
+                if (start > 0) {
+                    final int dictionaryLength = Math.min(DICTIONARY_SIZE, start);
+                    deflater.setDictionary(filtered, start - dictionaryLength, dictionaryLength);
+                }
+                deflater.setInput(filtered, start, length);
+                final ByteArrayOutputStream out = new ByteArrayOutputStream(length / 4 + 64);
+                final byte[] buffer = new byte[1 << 16];
+                if (last) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        final int n = deflater.deflate(buffer);
+                        out.write(buffer, 0, n);
+                    }
+                } else {
+                    // end on a byte boundary without final block
+                    int n;
+                    do {
+                        n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                        out.write(buffer, 0, n);
+                    } while (n == buffer.length);
+                }
+                return new Chunk(out.toByteArray(), adler.getValue(), length);
+            } finally {
+                deflater.end();
+            }
+        }
+
+        private void readRow(int y, int[] argb, byte[] row) {
+            layout.readRow(y, argb);
+            final int width = layout.width;
+            for (int x = 0, i = 0; x < width; x++, i += channels) {
+                final int c = argb[x];
+                row[i] = (byte) (c >> 16);
+                row[i + 1] = (byte) (c >> 8);
+                row[i + 2] = (byte) c;
+                if (channels == 4) {
+                    row[i + 3] = (byte) (c >>> 24);
+                }
+            }
+        }
+
+        /**
+         * Filters a row and stores the filter type and the filtered bytes.
+         */
+        private void filterRow(byte[] prev, byte[] cur, byte[] out, int off,
+                byte[][] candidates) {
+            if (candidates == null) {
+                out[off] = (byte) filter.ordinal();
+                filterRow(filter, prev, cur, out, off + 1);
+                return;
+            }
+            // adaptive: the filter with the smallest sum of absolute values
+            int best = 0;
+            long bestSum = Long.MAX_VALUE;
+            for (int f = 0; f < 5; f++) {
+                final byte[] c = candidates[f];
+                filterRow(Filter.values()[f], prev, cur, c, 0);
+                long sum = 0;
+                for (byte b : c) {
+                    sum += Math.abs(b);
+                }
+                if (sum < bestSum) {
+                    bestSum = sum;
+                    best = f;
+                }
+            }
+            out[off] = (byte) best;
+            System.arraycopy(candidates[best], 0, out, off + 1, cur.length);
+        }
+
+        private void filterRow(Filter type, byte[] prev, byte[] cur, byte[] out,
+                int off) {
+            final int bpp = channels;
+            final int n = cur.length;
+            switch (type) {
+                case none:
+                    System.arraycopy(cur, 0, out, off, n);
+                    break;
+                case sub:
+                    for (int i = 0; i < n; i++) {
+                        final int a = i < bpp ? 0 : cur[i - bpp] & 0xff;
+                        out[off + i] = (byte) (cur[i] - a);
+                    }
+                    break;
+                case up:
+                    for (int i = 0; i < n; i++) {
+                        out[off + i] = (byte) (cur[i] - prev[i]);
+                    }
+                    break;
+                case average:
+                    for (int i = 0; i < n; i++) {
+                        final int a = i < bpp ? 0 : cur[i - bpp] & 0xff;
+                        out[off + i] = (byte) (cur[i] - ((a + (prev[i] & 0xff)) >> 1));
+                    }
+                    break;
+                default:
+                    for (int i = 0; i < n; i++) {
+                        final int a = i < bpp ? 0 : cur[i - bpp] & 0xff;
+                        final int b = prev[i] & 0xff;
+                        final int c = i < bpp ? 0 : prev[i - bpp] & 0xff;
+                        final int p = a + b - c;
+                        final int pa = Math.abs(p - a);
+                        final int pb = Math.abs(p - b);
+                        final int pc = Math.abs(p - c);
+                        final int predictor = pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+                        out[off + i] = (byte) (cur[i] - predictor);
+                    }
+            }
+        }
+    }
+}
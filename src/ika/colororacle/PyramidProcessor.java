@@ -0,0 +1,253 @@
+/*
+ * PyramidProcessor.java
+ *
+ */
+package ika.colororacle;
+
+import ika.colororacle.engine.Simulation;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+
+/**
+ * Simulates a pyramid of map tiles stored as z/x/y.png, as used by slippy
+ * maps. For each simulation a mirrored pyramid is written to a directory
+ * named after the simulation.
+ *
+ * The x directories are listed and their tiles processed in parallel. Many
+ * tiles of a pyramid are identical, for example ocean or empty tiles. Tiles
+ * are identified by a 64 bit hash of their file content; each unique tile is
+ * simulated and encoded once, and the output files of identical tiles are
+ * hard links to (or, where links are not supported, copies of) the output
+ * files of the first tile.
+ */
+final class PyramidProcessor {
+
+    private final Simulator simulator;
+    private final Set<Simulation> simulations;
+    private final File outputDirectory;
+    private final int threads;
+    private final PngEncoder pngEncoder;
+
+    /**
+     * For each hash of tile content, the path of the first tile with this
+     * content relative to the pyramid root. The future is done when the
+     * output files of the tile are written.
+     */
+    private final ConcurrentHashMap<Long, Future<String>> uniqueTiles
+            = new ConcurrentHashMap<>();
+
+    /**
+     * Counters for the summary.
+     */
+    private final AtomicInteger tiles = new AtomicInteger();
+    private final AtomicInteger failedTiles = new AtomicInteger();
+
+    /**
+     * Creates a new processor.
+     *
+     * @param simulator The simulator.
+     * @param simulations The simulations.
+     * @param outputDirectory The directory receiving a pyramid for each
+     * simulation.
+     * @param threads The number of tiles processed in parallel.
+     * @param pngEncoder Writes PNG tiles. Tiles are small, so it should
+     * compress on the calling thread.
+     */
+    PyramidProcessor(Simulator simulator, Set<Simulation> simulations,
+            File outputDirectory, int threads, PngEncoder pngEncoder) {
+        this.simulator = simulator;
+        this.simulations = simulations;
+        this.outputDirectory = outputDirectory;
+        this.threads = threads;
+        this.pngEncoder = pngEncoder;
+    }
+
+    /**
+     * Simulates all tiles of a pyramid and prints a summary.
+     *
+     * @param root The directory containing the z directories.
+     * @return The number of tiles that could not be processed.
+     * @throws InterruptedException If interrupted while waiting for the
+     * tiles.
+     */
+    int process(File root) throws InterruptedException {
+        final long start = System.nanoTime();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (File z : numberedFiles(root, true)) {
+                for (final File x : numberedFiles(z, true)) {
+                    final String relativeDirectory = z.getName() + File.separator
+                            + x.getName() + File.separator;
+                    futures.add(executor.submit(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            processDirectory(x, relativeDirectory);
+                        }
+                    }));
+                }
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    System.err.println("Cannot process tiles: " + ex.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        final double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+        System.out.println(String.format(Locale.US,
+                "%d tiles (%d unique, %d failed) in %.2f s: %.1f tiles/s",
+                tiles.get(), uniqueTiles.size(), failedTiles.get(), seconds,
+                tiles.get() / seconds));
+        return failedTiles.get();
+    }
+
+    /**
+     * Returns the files or directories of a directory that are named by a
+     * number, ignoring file extensions.
+     */
+    private static List<File> numberedFiles(File directory, boolean directories) {
+        final List<File> result = new ArrayList<>();
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return result;
+        }
+        for (File file : files) {
+            if (file.isDirectory() == directories
+                    && baseName(file.getName()).matches("\\d+")) {
+                result.add(file);
+            }
+        }
+        return result;
+    }
+
+    private static String baseName(String name) {
+        final int dot = name.lastIndexOf('.');
+        return dot < 0 ? name : name.substring(0, dot);
+    }
+
+    /**
+     * Processes the tiles of an x directory.
+     */
+    private void processDirectory(File directory, String relativeDirectory) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        for (File tile : numberedFiles(directory, false)) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            tiles.incrementAndGet();
+            try {
+                processTile(tile, relativeDirectory + tile.getName(), digest);
+            } catch (Exception ex) {
+                failedTiles.incrementAndGet();
+                System.err.println("Cannot process " + tile + ": " + ex);
+            }
+        }
+    }
+
+    /**
+     * Processes a tile, or links its output files to the output files of an
+     * identical tile.
+     */
+    private void processTile(File tile, final String relativePath,
+            MessageDigest digest) throws IOException, InterruptedException {
+        final byte[] data = Files.readAllBytes(tile.toPath());
+        final long hash = ByteBuffer.wrap(digest.digest(data)).getLong();
+        final FutureTask<String> task = new FutureTask<>(new Callable<String>() {
+
+            @Override
+            public String call() throws IOException {
+                simulate(data, relativePath);
+                return relativePath;
+            }
+        });
+        final Future<String> first = uniqueTiles.putIfAbsent(hash, task);
+        if (first == null) {
+            task.run();
+        }
+        final String firstPath;
+        try {
+            firstPath = (first == null ? task : first).get();
+        } catch (ExecutionException ex) {
+            throw new IOException("Cannot simulate tile", ex.getCause());
+        }
+        if (first != null) {
+            for (Simulation simulation : simulations) {
+                link(output(simulation, firstPath), output(simulation, relativePath));
+            }
+        }
+    }
+
+    /**
+     * Decodes, simulates and encodes a tile.
+     */
+    private void simulate(byte[] data, String relativePath) throws IOException {
+        final BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+        if (image == null) {
+            throw new IOException("Unsupported image format");
+        }
+        final String name = relativePath.toLowerCase(Locale.US);
+        final String format = name.endsWith(".jpg") || name.endsWith(".jpeg") ? "jpeg" : "png";
+        final Map<Simulation, BufferedImage> images = simulator.filter(image, simulations);
+        for (Map.Entry<Simulation, BufferedImage> entry : images.entrySet()) {
+            final Path path = output(entry.getKey(), relativePath);
+            Files.createDirectories(path.getParent());
+            if ("png".equals(format) && !PixelLayout.of(entry.getValue()).is16Bit()) {
+                pngEncoder.write(entry.getValue(), path.toFile());
+            } else if (!ImageIO.write(entry.getValue(), format, path.toFile())) {
+                throw new IOException("Cannot write " + path);
+            }
+        }
+    }
+
+    private Path output(Simulation simulation, String relativePath) {
+        return new File(new File(outputDirectory, simulation.toString()),
+                relativePath).toPath();
+    }
+
+    /**
+     * Links a file to an existing file, or copies it if links are not
+     * supported.
+     */
+    private static void link(Path existing, Path link) throws IOException {
+        Files.createDirectories(link.getParent());
+        Files.deleteIfExists(link);
+        try {
+            Files.createLink(link, existing);
+        } catch (IOException | UnsupportedOperationException ex) {
+            Files.copy(existing, link, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
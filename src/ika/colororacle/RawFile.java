@@ -0,0 +1,308 @@
+/*
+ * RawFile.java
+ *
+ */
+package ika.colororacle;
+
+import ika.colororacle.engine.Simulation;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Simulates uncompressed image files by memory-mapping them: raw RGBA
+ * frames, binary PPM files (P6) and PAM files (P7) with RGB or RGB_ALPHA
+ * tuples. The pixels are filtered directly from the mapped input into the
+ * mapped output, without passing through arrays.
+ *
+ * Raw RGBA files can contain any number of frames of any size, because the
+ * pixels are filtered independently of each other. PPM and PAM files have
+ * 8 bits per channel and contain a single image. Files are mapped in
+ * windows, so that files larger than 2 GB can be processed. The mapping of
+ * a window is released as soon as it is filtered, so that at most one
+ * window of the input and one of the output are mapped, however large the
+ * file is, and the output file can be renamed or deleted right away, which
+ * Windows does not allow for mapped files.
+ */
+final class RawFile {
+
+    /**
+     * The maximum size of a mapped window in bytes, a multiple of 3 and 4.
+     */
+    private static final int WINDOW_SIZE = 3 << 26;
+
+    /**
+     * sun.misc.Unsafe and its invokeCleaner method of Java 9 and newer,
+     * which releases the mapping of a buffer. Java has no public method for
+     * this. Null if not available; mappings are then released when their
+     * buffers are garbage collected.
+     */
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            final Class<?> c = Class.forName("sun.misc.Unsafe");
+            final Field field = c.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    /**
+     * The maximum size of a PPM or PAM header in bytes.
+     */
+    private static final int MAX_HEADER_SIZE = 4096;
+
+    /**
+     * The number of header bytes before the pixels.
+     */
+    private final int headerSize;
+
+    /**
+     * 3 for RGB pixels, 4 for RGBA pixels.
+     */
+    private final int channels;
+
+    /**
+     * The number of bytes of pixels.
+     */
+    private final long dataSize;
+
+    private RawFile(int headerSize, int channels, long dataSize) {
+        this.headerSize = headerSize;
+        this.channels = channels;
+        this.dataSize = dataSize;
+    }
+
+    /**
+     * Returns whether a file is a raw file by its file extension: rgba, ppm
+     * or pam.
+     */
+    static boolean isRawFile(File file) {
+        final String name = file.getName().toLowerCase(Locale.US);
+        return name.endsWith(".rgba") || name.endsWith(".ppm") || name.endsWith(".pam");
+    }
+
+    /**
+     * Simulates a raw file. The output has the same format and header as the
+     * input.
+     *
+     * @param simulator The simulator.
+     * @param simulation The simulation.
+     * @param input The raw file.
+     * @param output The file to write. Can be the input file, which is then
+     * simulated in place.
+     * @return The number of pixels.
+     * @throws IOException If the file cannot be read or written, or is not a
+     * supported raw file.
+     */
+    static long process(Simulator simulator, Simulation simulation,
+            File input, File output) throws IOException {
+        return process(simulator, simulation, input, output, WINDOW_SIZE);
+    }
+
+    /**
+     * Simulates a raw file in windows of a given size.
+     *
+     * @param windowSize The maximum size of a mapped window in bytes, a
+     * multiple of 3 and 4.
+     */
+    static long process(Simulator simulator, Simulation simulation,
+            File input, File output, int windowSize) throws IOException {
+        if (windowSize <= 0 || windowSize % 12 != 0) {
+            throw new IllegalArgumentException("The window size must be a multiple of 12");
+        }
+        final boolean inPlace = input.getCanonicalFile().equals(output.getCanonicalFile());
+        try (RandomAccessFile inFile = new RandomAccessFile(input, inPlace ? "rw" : "r")) {
+            final FileChannel in = inFile.getChannel();
+            final RawFile raw = readHeader(input, in);
+            if (inPlace) {
+                raw.filter(simulator, simulation, in, in, windowSize);
+            } else {
+                try (RandomAccessFile outFile = new RandomAccessFile(output, "rw")) {
+                    final FileChannel out = outFile.getChannel();
+                    outFile.setLength(raw.headerSize + raw.dataSize);
+                    final ByteBuffer header = ByteBuffer.allocate(raw.headerSize);
+                    while (header.hasRemaining()
+                            && in.read(header, header.position()) > 0) {
+                        // read the whole header
+                    }
+                    header.flip();
+                    while (header.hasRemaining()) {
+                        out.write(header, header.position());
+                    }
+                    raw.filter(simulator, simulation, in, out, windowSize);
+                }
+            }
+            return raw.dataSize / raw.channels;
+        }
+    }
+
+    /**
+     * Filters the pixels window by window.
+     */
+    private void filter(Simulator simulator, Simulation simulation,
+            FileChannel in, FileChannel out, int windowSize) throws IOException {
+        for (long offset = 0; offset < dataSize; offset += windowSize) {
+            final long size = Math.min(windowSize, dataSize - offset);
+            final long position = headerSize + offset;
+            final MappedByteBuffer dst = out.map(FileChannel.MapMode.READ_WRITE, position, size);
+            final MappedByteBuffer src = in == out ? dst
+                    : in.map(FileChannel.MapMode.READ_ONLY, position, size);
+            try {
+                simulator.filter(simulation, src, dst, channels);
+            } finally {
+                // the buffers must not be used after this
+                unmap(dst);
+                if (src != dst) {
+                    unmap(src);
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases the mapping of a buffer if possible. Accessing the buffer
+     * afterwards crashes the virtual machine.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            // released when the buffer is garbage collected
+        }
+    }
+
+    /**
+     * Reads the header of a raw file.
+     */
+    private static RawFile readHeader(File file, FileChannel channel)
+            throws IOException {
+        final long length = channel.size();
+        final String name = file.getName().toLowerCase(Locale.US);
+        if (name.endsWith(".rgba")) {
+            if (length % 4 != 0) {
+                throw new IOException("The size of a raw RGBA file must be a multiple of 4");
+            }
+            return new RawFile(0, 4, length);
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(MAX_HEADER_SIZE, length));
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {
+            // read the whole header
+        }
+        final String header = new String(buffer.array(), 0, buffer.position(),
+                StandardCharsets.ISO_8859_1);
+        final RawFile raw;
+        if (header.startsWith("P6")) {
+            raw = readPPMHeader(header);
+        } else if (header.startsWith("P7")) {
+            raw = readPAMHeader(header);
+        } else {
+            throw new IOException("Not a binary PPM or PAM file");
+        }
+        if (raw.headerSize + raw.dataSize > length) {
+            throw new IOException("The file is truncated");
+        }
+        return raw;
+    }
+
+    /**
+     * Reads a PPM header: P6, width, height and maximum value separated by
+     * white space and comments, followed by a single white space character.
+     */
+    private static RawFile readPPMHeader(String header) throws IOException {
+        final long[] values = new long[3];
+        int i = 2;
+        for (int v = 0; v < 3; v++) {
+            // skip white space and comments
+            while (i < header.length()) {
+                final char c = header.charAt(i);
+                if (c == '#') {
+                    while (i < header.length() && header.charAt(i) != '\n') {
+                        i++;
+                    }
+                } else if (Character.isWhitespace(c)) {
+                    i++;
+                } else {
+                    break;
+                }
+            }
+            final int start = i;
+            while (i < header.length() && Character.isDigit(header.charAt(i))) {
+                i++;
+            }
+            if (i == start || i >= header.length()) {
+                throw new IOException("Invalid PPM header");
+            }
+            values[v] = Long.parseLong(header.substring(start, i));
+        }
+        if (values[2] != 255) {
+            throw new IOException("Only PPM files with 8 bits per channel are supported");
+        }
+        // a single white space character follows the maximum value
+        return new RawFile(i + 1, 3, values[0] * values[1] * 3);
+    }
+
+    /**
+     * Reads a PAM header: lines of names and values from P7 to ENDHDR.
+     */
+    private static RawFile readPAMHeader(String header) throws IOException {
+        final int end = header.indexOf("\nENDHDR\n");
+        if (end < 0) {
+            throw new IOException("Invalid PAM header");
+        }
+        long width = -1, height = -1, depth = -1, maxValue = -1;
+        for (String line : header.substring(0, end).split("\n")) {
+            final String[] tokens = line.trim().split("\\s+");
+            if (tokens.length < 2 || tokens[0].startsWith("#")) {
+                continue;
+            }
+            try {
+                switch (tokens[0]) {
+                    case "WIDTH":
+                        width = Long.parseLong(tokens[1]);
+                        break;
+                    case "HEIGHT":
+                        height = Long.parseLong(tokens[1]);
+                        break;
+                    case "DEPTH":
+                        depth = Long.parseLong(tokens[1]);
+                        break;
+                    case "MAXVAL":
+                        maxValue = Long.parseLong(tokens[1]);
+                        break;
+                }
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid PAM header", ex);
+            }
+        }
+        if (width < 0 || height < 0 || (depth != 3 && depth != 4)) {
+            throw new IOException("Only PAM files with RGB or RGB_ALPHA tuples are supported");
+        }
+        if (maxValue != 255) {
+            throw new IOException("Only PAM files with 8 bits per channel are supported");
+        }
+        return new RawFile(end + "\nENDHDR\n".length(), (int) depth,
+                width * height * depth);
+    }
+}
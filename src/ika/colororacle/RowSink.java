@@ -0,0 +1,25 @@
+/*
+ * RowSink.java
+ *
+ */
+package ika.colororacle;
+
+import java.io.IOException;
+
+/**
+ * Receives the rows of a filtered image strip by strip, for example to
+ * encode them. Used by Simulator.filter(RowSource, RowSink, int).
+ */
+interface RowSink {
+
+    /**
+     * Writes the next rows of the image.
+     *
+     * @param argb The rows, sRGB ints in 0xAARRGGBB order stored row after
+     * row without gaps, starting at index 0. The array is reused after this
+     * method returns.
+     * @param rows The number of rows.
+     * @throws IOException If the rows cannot be written.
+     */
+    void writeRows(int[] argb, int rows) throws IOException;
+}
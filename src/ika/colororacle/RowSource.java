@@ -0,0 +1,31 @@
+/*
+ * RowSource.java
+ *
+ */
+package ika.colororacle;
+
+import java.io.IOException;
+
+/**
+ * Supplies the rows of an image strip by strip, for example while the image
+ * is decoded or generated. Used by Simulator.filter(RowSource, RowSink, int).
+ */
+interface RowSource {
+
+    /**
+     * Returns the number of pixels in a row.
+     */
+    int getWidth();
+
+    /**
+     * Reads the next rows of the image.
+     *
+     * @param argb Receives the rows, sRGB ints in 0xAARRGGBB order stored row
+     * after row without gaps, starting at index 0.
+     * @param maxRows The maximum number of rows to read.
+     * @return The number of rows read, between 1 and maxRows, or 0 if all
+     * rows have been read.
+     * @throws IOException If the rows cannot be read.
+     */
+    int readRows(int[] argb, int maxRows) throws IOException;
+}
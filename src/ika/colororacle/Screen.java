@@ -48,6 +48,7 @@ final class Screen {
 
     public MainWindow simulationWindow = null;
     public BufferedImage screenshotImage = null;
+    public BufferedImage simulationImage = null;
     public GraphicsConfiguration gc = null;
 
     private Screen(GraphicsConfiguration gc) {
@@ -66,7 +67,10 @@ final class Screen {
         simulationWindow = new MainWindow(null, false, colorOracle);
 
         // add event listeners that will hide the window when a key is pressed,
-        // or when the window looses focus.
+        // or when the window looses focus. While the simulation is live, the
+        // window cannot be focused, key presses and the mouse wheel are
+        // ignored, and clicks are passed to the window below, see
+        // ColorOracle and LiveSimulation.
         // Note: There is a bug in Java 6 with listeners for mouse wheel events:
         // http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6480024
         // Therefore the mouse wheel event listener is attached to a child of
@@ -100,9 +104,21 @@ final class Screen {
     }
 
     public void takeScreenshot() throws AWTException {
+        Rectangle screenRect = getScreenshotArea();
+        if (screenRect == null) {
+            return;
+        }
+        Robot robot = new Robot(gc.getDevice());
+        screenshotImage = robot.createScreenCapture(screenRect);
+    }
+
+    /**
+     * Returns the area of the screen captured by takeScreenshot().
+     */
+    Rectangle getScreenshotArea() {
         Toolkit toolkit = Toolkit.getDefaultToolkit();
         if (toolkit == null) {
-            return;
+            return null;
         }
         Rectangle screenRect = gc.getBounds();
 
@@ -111,9 +127,7 @@ final class Screen {
         screenRect.y = screenInsets.top;
         screenRect.width -= screenInsets.left + screenInsets.right;
         screenRect.height -= screenInsets.top + screenInsets.bottom;
-
-        Robot robot = new Robot(gc.getDevice());
-        screenshotImage = robot.createScreenCapture(screenRect);
+        return screenRect;
     }
 
     public void showSimulationImage(BufferedImage simulationImage,
@@ -123,6 +137,7 @@ final class Screen {
         if (simulationWindow == null) {
             createSimulationWindow(colorOracle);
         }
+        this.simulationImage = simulationImage;
         simulationWindow.setImage(simulationImage);
         simulationWindow.setPanel(panel);
 
@@ -135,8 +150,17 @@ final class Screen {
     }
 
     /**
-     * Hides the simulation window and deallocates the window and the screenshot
-     * image.
+     * Repaints a rectangle of the simulation image after its pixels changed.
+     */
+    void repaintSimulation(int x, int y, int width, int height) {
+        if (simulationWindow != null) {
+            simulationWindow.getContentPane().repaint(x, y, width, height);
+        }
+    }
+
+    /**
+     * Hides the simulation window and deallocates the window, the screenshot
+     * image and the simulation image.
      */
     public void hideSimulation() {
 
@@ -146,5 +170,6 @@ final class Screen {
             simulationWindow = null;
         }
         screenshotImage = null;
+        simulationImage = null;
     }
 }
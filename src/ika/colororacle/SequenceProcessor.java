@@ -0,0 +1,561 @@
+/*
+ * SequenceProcessor.java
+ *
+ */
+package ika.colororacle;
+
+import ika.colororacle.engine.Simulation;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import org.w3c.dom.Node;
+
+/**
+ * Simulates sequences of frames, such as animated map legends and screen
+ * recordings: animated GIF files, and directories of frames stored as image
+ * files.
+ *
+ * Consecutive frames are mostly identical. Each frame is compared with the
+ * previous frame in tiles of TILE_SIZE x TILE_SIZE pixels, and only the
+ * tiles that changed are simulated; the other tiles keep the simulated
+ * pixels of the previous frame. The changed tiles of a frame are simulated
+ * together in a single pass for all simulations.
+ *
+ * The frames of GIF files are composed as a viewer would show them, taking
+ * the position and disposal method of each frame into account. The output
+ * GIF files contain full frames with the delays and the loop count of the
+ * input. Frames of directories are written as PNG files.
+ */
+final class SequenceProcessor {
+
+    /**
+     * The width and height of the tiles compared between frames.
+     */
+    static final int TILE_SIZE = 64;
+
+    private static final String GIF_IMAGE_FORMAT = "javax_imageio_gif_image_1.0";
+    private static final String GIF_STREAM_FORMAT = "javax_imageio_gif_stream_1.0";
+
+    private final Simulator simulator;
+    private final Set<Simulation> simulations;
+    private final PngEncoder pngEncoder;
+
+    /**
+     * Counters for the summary: all tiles of all frames, and the simulated
+     * tiles.
+     */
+    private final AtomicLong tiles = new AtomicLong();
+    private final AtomicLong simulatedTiles = new AtomicLong();
+
+    /**
+     * Creates a new processor.
+     *
+     * @param simulator The simulator.
+     * @param simulations The simulations.
+     * @param pngEncoder Writes the frames of directories.
+     */
+    SequenceProcessor(Simulator simulator, Set<Simulation> simulations,
+            PngEncoder pngEncoder) {
+        this.simulator = simulator;
+        this.simulations = simulations;
+        this.pngEncoder = pngEncoder;
+    }
+
+    /**
+     * Returns whether a file is a GIF file by its file extension.
+     */
+    static boolean isGif(File file) {
+        return file.getName().toLowerCase(Locale.US).endsWith(".gif");
+    }
+
+    /**
+     * Returns the number of tiles of all frames processed so far.
+     */
+    long getTiles() {
+        return tiles.get();
+    }
+
+    /**
+     * Returns the number of tiles that were simulated because they changed.
+     */
+    long getSimulatedTiles() {
+        return simulatedTiles.get();
+    }
+
+    /**
+     * Simulates an animated GIF file.
+     *
+     * @param input The GIF file.
+     * @param outputs For each simulation the GIF file to write.
+     * @return The number of pixels of all frames.
+     * @throws IOException If the file cannot be read or written.
+     */
+    long processGif(File input, Map<Simulation, File> outputs) throws IOException {
+        final Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("gif");
+        final Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("gif");
+        if (!readers.hasNext() || !writers.hasNext()) {
+            throw new IOException("No GIF reader or writer");
+        }
+        final ImageReader reader = readers.next();
+        final Map<Simulation, ImageWriter> gifWriters = new EnumMap<>(Simulation.class);
+        final List<ImageOutputStream> streams = new ArrayList<>();
+        try (ImageInputStream in = ImageIO.createImageInputStream(input)) {
+            if (in == null) {
+                throw new IOException("Cannot open file");
+            }
+            reader.setInput(in, false, false);
+            final int frameCount = reader.getNumImages(true);
+            if (frameCount < 1) {
+                throw new IOException("No frames");
+            }
+
+            // the size of the logical screen the frames are placed on
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+            final IIOMetadata streamMetadata = reader.getStreamMetadata();
+            if (streamMetadata != null) {
+                final IIOMetadataNode screen = child((IIOMetadataNode) streamMetadata
+                        .getAsTree(GIF_STREAM_FORMAT), "LogicalScreenDescriptor");
+                if (screen != null) {
+                    width = Integer.parseInt(screen.getAttribute("logicalScreenWidth"));
+                    height = Integer.parseInt(screen.getAttribute("logicalScreenHeight"));
+                }
+            }
+
+            for (Map.Entry<Simulation, File> entry : outputs.entrySet()) {
+                final ImageWriter writer = ImageIO.getImageWritersByFormatName("gif").next();
+                gifWriters.put(entry.getKey(), writer);
+                entry.getValue().delete();
+                final ImageOutputStream out = ImageIO.createImageOutputStream(entry.getValue());
+                if (out == null) {
+                    throw new IOException("Cannot create " + entry.getValue());
+                }
+                streams.add(out);
+                writer.setOutput(out);
+                writer.prepareWriteSequence(null);
+            }
+
+            final Frames frames = new Frames(width, height, true);
+            final int[] canvas = frames.normal;
+            final Graphics2D g = frames.normalImage.createGraphics();
+            byte[] loop = null;
+            try {
+                for (int i = 0; i < frameCount; i++) {
+                    final BufferedImage frame = reader.read(i);
+                    final IIOMetadataNode root = (IIOMetadataNode) reader
+                            .getImageMetadata(i).getAsTree(GIF_IMAGE_FORMAT);
+                    final IIOMetadataNode descriptor = child(root, "ImageDescriptor");
+                    final IIOMetadataNode control = child(root, "GraphicControlExtension");
+                    final int left = Integer.parseInt(descriptor.getAttribute("imageLeftPosition"));
+                    final int top = Integer.parseInt(descriptor.getAttribute("imageTopPosition"));
+                    final String disposal = control == null ? "none"
+                            : control.getAttribute("disposalMethod");
+                    final int delay = control == null ? 0
+                            : Integer.parseInt(control.getAttribute("delayTime"));
+                    if (i == 0) {
+                        loop = loopCount(root);
+                    }
+
+                    // compose the frame
+                    final int[] previous = "restoreToPrevious".equals(disposal)
+                            ? canvas.clone() : null;
+                    g.drawImage(frame, left, top, null);
+                    frames.filter();
+                    for (Map.Entry<Simulation, ImageWriter> entry : gifWriters.entrySet()) {
+                        final ImageWriter writer = entry.getValue();
+                        final BufferedImage image = toIndexed(frames.images.get(entry.getKey()));
+                        writer.writeToSequence(new IIOImage(image, null,
+                                frameMetadata(writer, image, delay, i == 0 ? loop : null)), null);
+                    }
+
+                    // dispose of the frame before the next frame
+                    if (previous != null) {
+                        System.arraycopy(previous, 0, canvas, 0, canvas.length);
+                    } else if ("restoreToBackgroundColor".equals(disposal)) {
+                        final int x0 = Math.max(0, left);
+                        final int x1 = Math.min(width, left + frame.getWidth());
+                        for (int y = Math.max(0, top); y < Math.min(height, top + frame.getHeight()); y++) {
+                            if (x0 < x1) {
+                                Arrays.fill(canvas, y * width + x0, y * width + x1, 0);
+                            }
+                        }
+                    }
+                }
+            } finally {
+                g.dispose();
+            }
+            for (ImageWriter writer : gifWriters.values()) {
+                writer.endWriteSequence();
+            }
+            return (long) frameCount * width * height;
+        } finally {
+            reader.dispose();
+            for (ImageWriter writer : gifWriters.values()) {
+                writer.dispose();
+            }
+            for (ImageOutputStream out : streams) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Simulates a directory of frames. The image files of the directory are
+     * the frames in the order of their names. The simulated frames are
+     * written as PNG files with the names of the frames. Frames whose names
+     * differ only by the file extension are rejected, because they would be
+     * written to the same file.
+     *
+     * @param directory The directory of frames.
+     * @param outputDirectories For each simulation the directory receiving
+     * the simulated frames.
+     * @return The number of pixels of all frames.
+     * @throws IOException If a frame cannot be read or written, or two frames
+     * have the same name.
+     */
+    long processFrames(File directory, Map<Simulation, File> outputDirectories)
+            throws IOException {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list " + directory);
+        }
+        Arrays.sort(files);
+        final Set<String> suffixes = new HashSet<>(
+                Arrays.asList(ImageIO.getReaderFileSuffixes()));
+        for (File outputDirectory : outputDirectories.values()) {
+            if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+                throw new IOException("Cannot create directory " + outputDirectory);
+            }
+        }
+
+        // frames with the same name but different file extensions would be
+        // written to the same PNG file
+        final Map<String, File> frameFiles = new LinkedHashMap<>();
+        for (File file : files) {
+            final String name = file.getName();
+            final int dot = name.lastIndexOf('.');
+            if (!file.isFile() || dot < 0
+                    || !suffixes.contains(name.substring(dot + 1).toLowerCase(Locale.US))) {
+                continue;
+            }
+            final String baseName = name.substring(0, dot);
+            final File other = frameFiles.put(baseName.toLowerCase(Locale.US), file);
+            if (other != null) {
+                throw new IOException(other.getName() + " and " + name
+                        + " would both be written to " + baseName + ".png");
+            }
+        }
+
+        long pixels = 0;
+        Frames frames = null;
+        for (File file : frameFiles.values()) {
+            final String name = file.getName();
+            final BufferedImage image = ImageIO.read(file);
+            if (image == null) {
+                throw new IOException("Unsupported image format: " + file);
+            }
+            final PixelLayout layout = PixelLayout.of(image);
+            if (frames == null || frames.width != layout.width
+                    || frames.height != layout.height || frames.alpha != layout.hasAlpha) {
+                // a frame of another size or type starts over
+                frames = new Frames(layout.width, layout.height, layout.hasAlpha);
+            }
+            final int[] row = new int[layout.width];
+            for (int y = 0; y < layout.height; y++) {
+                layout.readRow(y, row);
+                System.arraycopy(row, 0, frames.normal, y * layout.width, layout.width);
+            }
+            frames.filter();
+            for (Map.Entry<Simulation, File> entry : outputDirectories.entrySet()) {
+                pngEncoder.write(frames.images.get(entry.getKey()),
+                        new File(entry.getValue(), name.substring(0, name.lastIndexOf('.')) + ".png"));
+            }
+            pixels += (long) layout.width * layout.height;
+        }
+        return pixels;
+    }
+
+    /**
+     * The current frame with normal vision and the simulated frames, and the
+     * previous frame to compare with.
+     */
+    private final class Frames {
+
+        final int width;
+        final int height;
+        final boolean alpha;
+
+        /**
+         * The current frame with normal vision.
+         */
+        final BufferedImage normalImage;
+        final int[] normal;
+
+        /**
+         * The previous frame with normal vision, or null before the first
+         * frame.
+         */
+        private int[] previous;
+
+        /**
+         * The simulated frames.
+         */
+        final Map<Simulation, BufferedImage> images = new EnumMap<>(Simulation.class);
+        private final Map<Simulation, int[]> simulated = new EnumMap<>(Simulation.class);
+
+        /**
+         * The pixels of the changed tiles, TILE_SIZE pixels per row, and the
+         * simulated pixels of the changed tiles. The buffers are sized to
+         * the largest number of changed tiles of a frame so far that did not
+         * change completely; frames that change completely are simulated
+         * directly into the simulated frames.
+         */
+        private int[] changed = new int[0];
+        private final Map<Simulation, int[]> changedSimulated = new EnumMap<>(Simulation.class);
+
+        /**
+         * The indices of the changed tiles.
+         */
+        private final int[] changedTiles;
+
+        private final int tilesX;
+        private final int tilesY;
+
+        Frames(int width, int height, boolean alpha) {
+            this.width = width;
+            this.height = height;
+            this.alpha = alpha;
+            final int type = alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+            normalImage = new BufferedImage(width, height, type);
+            normal = ((DataBufferInt) normalImage.getRaster().getDataBuffer()).getData();
+            tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+            tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+            changedTiles = new int[tilesX * tilesY];
+            for (Simulation simulation : simulations) {
+                final BufferedImage image = new BufferedImage(width, height, type);
+                images.put(simulation, image);
+                simulated.put(simulation,
+                        ((DataBufferInt) image.getRaster().getDataBuffer()).getData());
+            }
+        }
+
+        /**
+         * Simulates the tiles of the current frame that differ from the
+         * previous frame.
+         */
+        void filter() {
+            // find the changed tiles
+            int count = 0;
+            for (int tile = 0; tile < changedTiles.length; tile++) {
+                final int x0 = (tile % tilesX) * TILE_SIZE;
+                final int y0 = (tile / tilesX) * TILE_SIZE;
+                if (previous == null || changed(x0, y0,
+                        Math.min(TILE_SIZE, width - x0), Math.min(TILE_SIZE, height - y0))) {
+                    changedTiles[count++] = tile;
+                }
+            }
+            tiles.addAndGet(changedTiles.length);
+            simulatedTiles.addAndGet(count);
+
+            if (count == changedTiles.length) {
+                simulator.filterRows(normal, simulated, width, height);
+            } else if (count > 0) {
+                filterTiles(count);
+            }
+
+            if (previous == null) {
+                previous = normal.clone();
+            } else {
+                System.arraycopy(normal, 0, previous, 0, normal.length);
+            }
+        }
+
+        /**
+         * Copies the changed tiles, simulates them together and copies them
+         * to the simulated frames.
+         */
+        private void filterTiles(int count) {
+            final int length = count * TILE_SIZE * TILE_SIZE;
+            if (changed.length < length) {
+                changed = new int[length];
+                for (Simulation simulation : simulations) {
+                    changedSimulated.put(simulation, new int[length]);
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                final int tile = changedTiles[i];
+                final int x0 = (tile % tilesX) * TILE_SIZE;
+                final int y0 = (tile / tilesX) * TILE_SIZE;
+                final int w = Math.min(TILE_SIZE, width - x0);
+                final int h = Math.min(TILE_SIZE, height - y0);
+                final int offset = i * TILE_SIZE * TILE_SIZE;
+                for (int r = 0; r < h; r++) {
+                    System.arraycopy(normal, (y0 + r) * width + x0,
+                            changed, offset + r * TILE_SIZE, w);
+                }
+            }
+
+            simulator.filterRows(changed, changedSimulated, TILE_SIZE, count * TILE_SIZE);
+            for (Simulation simulation : simulations) {
+                final int[] src = changedSimulated.get(simulation);
+                final int[] dst = simulated.get(simulation);
+                for (int i = 0; i < count; i++) {
+                    final int tile = changedTiles[i];
+                    final int x0 = (tile % tilesX) * TILE_SIZE;
+                    final int y0 = (tile / tilesX) * TILE_SIZE;
+                    final int w = Math.min(TILE_SIZE, width - x0);
+                    final int h = Math.min(TILE_SIZE, height - y0);
+                    final int offset = i * TILE_SIZE * TILE_SIZE;
+                    for (int r = 0; r < h; r++) {
+                        System.arraycopy(src, offset + r * TILE_SIZE,
+                                dst, (y0 + r) * width + x0, w);
+                    }
+                }
+            }
+        }
+
+        private boolean changed(int x0, int y0, int w, int h) {
+            for (int r = 0; r < h; r++) {
+                final int start = (y0 + r) * width + x0;
+                for (int i = start; i < start + w; i++) {
+                    if (normal[i] != previous[i]) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Converts an image to an indexed image with an exact palette if it has
+     * at most 256 colors, counting all transparent pixels as one color.
+     * Otherwise the image is returned and reduced by the GIF writer.
+     */
+    private static BufferedImage toIndexed(BufferedImage image) {
+        final int[] argb = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        final boolean alpha = image.getColorModel().hasAlpha();
+        final Map<Integer, Integer> indices = new HashMap<>();
+        final int[] palette = new int[256];
+        final byte[] pixels = new byte[argb.length];
+        int transparent = -1;
+        int lastColor = 0;
+        int lastIndex = -1;
+        for (int i = 0; i < argb.length; i++) {
+            // GIF pixels are either transparent or opaque
+            final int c = alpha && argb[i] >>> 24 < 128 ? 0 : argb[i] | 0xff000000;
+            if (c != lastColor || lastIndex < 0) {
+                Integer index = indices.get(c);
+                if (index == null) {
+                    if (indices.size() == palette.length) {
+                        return image;
+                    }
+                    index = indices.size();
+                    palette[index] = c;
+                    indices.put(c, index);
+                    if (c == 0) {
+                        transparent = index;
+                    }
+                }
+                lastColor = c;
+                lastIndex = index;
+            }
+            pixels[i] = (byte) lastIndex;
+        }
+        final IndexColorModel colorModel = new IndexColorModel(8,
+                Math.max(2, indices.size()), palette, 0, false, transparent,
+                DataBuffer.TYPE_BYTE);
+        final BufferedImage indexed = new BufferedImage(image.getWidth(),
+                image.getHeight(), BufferedImage.TYPE_BYTE_INDEXED, colorModel);
+        final byte[] data = ((DataBufferByte) indexed.getRaster().getDataBuffer()).getData();
+        System.arraycopy(pixels, 0, data, 0, pixels.length);
+        return indexed;
+    }
+
+    /**
+     * Returns the metadata of an output frame: a full frame replacing the
+     * previous frame after a delay in hundredths of a second.
+     *
+     * @param loop The NETSCAPE loop extension of the first frame, or null.
+     */
+    private static IIOMetadata frameMetadata(ImageWriter writer,
+            BufferedImage image, int delay, byte[] loop) throws IOException {
+        final IIOMetadata metadata = writer.getDefaultImageMetadata(
+                new ImageTypeSpecifier(image), null);
+        final IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(GIF_IMAGE_FORMAT);
+        IIOMetadataNode control = child(root, "GraphicControlExtension");
+        if (control == null) {
+            control = new IIOMetadataNode("GraphicControlExtension");
+            control.setAttribute("transparentColorFlag", "FALSE");
+            control.setAttribute("transparentColorIndex", "0");
+            root.appendChild(control);
+        }
+        control.setAttribute("disposalMethod", "restoreToBackgroundColor");
+        control.setAttribute("userInputFlag", "FALSE");
+        control.setAttribute("delayTime", Integer.toString(delay));
+        if (loop != null) {
+            final IIOMetadataNode extensions = new IIOMetadataNode("ApplicationExtensions");
+            final IIOMetadataNode extension = new IIOMetadataNode("ApplicationExtension");
+            extension.setAttribute("applicationID", "NETSCAPE");
+            extension.setAttribute("authenticationCode", "2.0");
+            extension.setUserObject(loop);
+            extensions.appendChild(extension);
+            root.appendChild(extensions);
+        }
+        metadata.setFromTree(GIF_IMAGE_FORMAT, root);
+        return metadata;
+    }
+
+    /**
+     * Returns the data of the NETSCAPE loop extension of a frame, or null.
+     */
+    private static byte[] loopCount(IIOMetadataNode root) {
+        final IIOMetadataNode extensions = child(root, "ApplicationExtensions");
+        if (extensions == null) {
+            return null;
+        }
+        for (Node node = extensions.getFirstChild(); node != null; node = node.getNextSibling()) {
+            final IIOMetadataNode extension = (IIOMetadataNode) node;
+            if ("NETSCAPE".equals(extension.getAttribute("applicationID"))
+                    && extension.getUserObject() instanceof byte[]) {
+                return (byte[]) extension.getUserObject();
+            }
+        }
+        return null;
+    }
+
+    private static IIOMetadataNode child(IIOMetadataNode parent, String name) {
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (name.equals(node.getNodeName())) {
+                return (IIOMetadataNode) node;
+            }
+        }
+        return null;
+    }
+}
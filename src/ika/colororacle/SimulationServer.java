@@ -0,0 +1,650 @@
+/*
+ * SimulationServer.java
+ *
+ */
+package ika.colororacle;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import ika.colororacle.engine.Simulation;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * A local HTTP service simulating images for other programs, such as
+ * documentation builders and screenshot regression tests, without starting
+ * a Java virtual machine per image. The server only listens on the loopback
+ * interface and works in headless mode.
+ *
+ * POST /simulate?type=deutan with a PNG or JPEG image as body returns the
+ * simulated image in the same format. GET /stats returns counters as JSON.
+ *
+ * Requests are decoded and encoded on the threads of the HTTP server. The
+ * decoded pixels are queued and simulated by a fixed number of worker
+ * threads. A worker takes all queued requests up to BATCH_PIXELS pixels
+ * from the queue at once, and then simulates them one after the other with
+ * one filterRows call per request, in place in the image of the request.
+ * The requests of a batch are not joined into a single pass: batching only
+ * saves waiting for the queue between many small concurrent requests. When
+ * the queue is full, requests are rejected with status 503.
+ *
+ * The memory of the requests is bounded by a budget. Memory for the body is
+ * reserved from the budget before the body is read, and memory for the
+ * pixels before the image is decoded. Requests for which the budget has no
+ * room left are rejected with status 503, before they hold any memory.
+ */
+final class SimulationServer {
+
+    /**
+     * The first command line argument starting the server.
+     */
+    static final String OPTION = "-server";
+
+    private static final String USAGE
+            = "Usage: java -jar ColorOracle.jar -server [options]\n"
+            + "Options:\n"
+            + "  -p port        port on the loopback interface (default: 8080)\n"
+            + "  -t threads     number of worker threads simulating images\n"
+            + "                 (default: number of processors)\n"
+            + "  -q requests    maximum number of queued requests\n"
+            + "                 (default: 16 per worker thread)\n"
+            + "  -m megabytes   memory budget for requests (default: half of the heap)\n"
+            + "Requests:\n"
+            + "  POST /simulate?type=deutan|protan|tritan|grayscale|normal\n"
+            + "                 with a PNG or JPEG image as body\n"
+            + "  GET /stats     counters as JSON";
+
+    /**
+     * The maximum size of an uploaded image in bytes.
+     */
+    private static final int MAX_UPLOAD_SIZE = 64 << 20;
+
+    /**
+     * The maximum number of pixels of an image.
+     */
+    private static final long MAX_PIXELS = 1L << 26;
+
+    /**
+     * A worker simulates queued requests together until their number of
+     * pixels reaches this limit.
+     */
+    private static final int BATCH_PIXELS = 1 << 20;
+
+    /**
+     * Memory is reserved from the budget in blocks of this size in bytes.
+     */
+    private static final int BLOCK = 1024;
+
+    /**
+     * The memory reserved for a pixel: the decoded image, the packed pixels
+     * with normal vision and the simulated image, with 4 bytes each.
+     */
+    private static final int BYTES_PER_PIXEL = 3 * 4;
+
+    private final Simulator simulator = new Simulator();
+    private final PngEncoder pngEncoder = new PngEncoder(4, PngEncoder.Filter.adaptive, null);
+    private final HttpServer server;
+
+    /**
+     * Decodes and encodes requests. These threads wait for the workers;
+     * their memory is bounded by the memory budget.
+     */
+    private final ExecutorService handlers;
+    private final BlockingQueue<Request> queue;
+    private final ExecutorService workers;
+    private final int threads;
+    private final Semaphore memory;
+    private final int memoryBlocks;
+    private final long startTime = System.nanoTime();
+
+    /**
+     * Counters for the stats.
+     */
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong completedRequests = new AtomicLong();
+    private final AtomicLong failedRequests = new AtomicLong();
+    private final AtomicLong rejectedRequests = new AtomicLong();
+    private final AtomicLong simulatedRequests = new AtomicLong();
+
+    /**
+     * The number of times a worker took requests from the queue.
+     */
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong pixels = new AtomicLong();
+    private final AtomicLong requestNanos = new AtomicLong();
+
+    /**
+     * Decoded pixels waiting for a worker.
+     */
+    private static final class Request {
+
+        final Simulation simulation;
+
+        /**
+         * The pixels with normal vision.
+         */
+        final int[] normal;
+
+        /**
+         * The image receiving the simulated pixels.
+         */
+        final BufferedImage image;
+        final int[] simulated;
+
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile RuntimeException error;
+
+        Request(Simulation simulation, int[] normal, BufferedImage image) {
+            this.simulation = simulation;
+            this.normal = normal;
+            this.image = image;
+            simulated = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        }
+    }
+
+    private SimulationServer(int port, int threads, int queueCapacity,
+            long memoryBudget) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), port), queueCapacity);
+        server.createContext("/simulate", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                simulate(exchange);
+            }
+        });
+        server.createContext("/stats", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                stats(exchange);
+            }
+        });
+        handlers = Executors.newFixedThreadPool(threads + queueCapacity);
+        server.setExecutor(handlers);
+        this.threads = threads;
+        memoryBlocks = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / BLOCK));
+        memory = new Semaphore(memoryBlocks);
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        workers = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            workers.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    work();
+                }
+            });
+        }
+    }
+
+    /**
+     * Starts the server. The server runs until the virtual machine exits.
+     *
+     * @param args The command line arguments, starting with OPTION.
+     * @return 0 if the server was started, 1 if it cannot be started, 2 if
+     * the arguments are invalid.
+     */
+    static int run(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+
+        int port = 8080;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int queueCapacity = -1;
+        long memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-p":
+                        port = Integer.parseInt(value(args, ++i));
+                        break;
+                    case "-t":
+                        threads = Integer.parseInt(value(args, ++i));
+                        break;
+                    case "-q":
+                        queueCapacity = Integer.parseInt(value(args, ++i));
+                        break;
+                    case "-m":
+                        memoryBudget = Long.parseLong(value(args, ++i)) * 1024 * 1024;
+                        break;
+                    case "-h":
+                    case "-help":
+                        System.out.println(USAGE);
+                        return 0;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (queueCapacity < 0) {
+                queueCapacity = 16 * threads;
+            }
+            if (port < 0 || port > 65535 || threads < 1 || queueCapacity < 1
+                    || memoryBudget < 1) {
+                throw new IllegalArgumentException(
+                        "Invalid port, number of threads, queue size or memory budget");
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        final SimulationServer server;
+        try {
+            server = start(port, threads, queueCapacity, memoryBudget);
+        } catch (IOException ex) {
+            System.err.println("Cannot start the server: " + ex.getMessage());
+            return 1;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+
+            @Override
+            public void run() {
+                server.stop();
+            }
+        });
+        System.out.println("Color Oracle server listening on http://"
+                + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort() + "/");
+        return 0;
+    }
+
+    /**
+     * Starts a server on the loopback interface.
+     *
+     * @param port The port, or 0 for any free port.
+     * @param threads The number of worker threads simulating images.
+     * @param queueCapacity The maximum number of queued requests.
+     * @param memoryBudget The memory budget for requests in bytes.
+     * @return The running server.
+     * @throws IOException If the server cannot listen on the port.
+     */
+    static SimulationServer start(int port, int threads, int queueCapacity,
+            long memoryBudget) throws IOException {
+        final SimulationServer server = new SimulationServer(port, threads,
+                queueCapacity, memoryBudget);
+        server.server.start();
+        return server;
+    }
+
+    /**
+     * Returns the address the server listens on.
+     */
+    InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Stops the server and its threads.
+     */
+    void stop() {
+        server.stop(0);
+        handlers.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+        }
+        return args[i];
+    }
+
+    /**
+     * Handles POST /simulate.
+     */
+    private void simulate(HttpExchange exchange) throws IOException {
+        final long start = System.nanoTime();
+        requests.incrementAndGet();
+        int reservedBlocks = 0;
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                fail(exchange, 405, "Use POST with an image as body");
+                return;
+            }
+            final Simulation simulation = simulation(exchange.getRequestURI());
+            if (simulation == null) {
+                fail(exchange, 400, "Missing or unknown type, use type=deutan, "
+                        + "protan, tritan, grayscale or normal");
+                return;
+            }
+
+            // reserve memory for the body and the encoded response before
+            // reading the body; bodies of unknown length may use the
+            // maximum size, but at most the whole budget
+            final long bodySize = contentLength(exchange);
+            if (bodySize > MAX_UPLOAD_SIZE) {
+                fail(exchange, 413, "Images must be smaller than "
+                        + (MAX_UPLOAD_SIZE >> 20) + " MB");
+                return;
+            }
+            final int maxBodySize = (int) (bodySize >= 0 ? bodySize
+                    : Math.min(MAX_UPLOAD_SIZE,
+                            Math.max(0, (long) memoryBlocks * BLOCK / 2 - BLOCK)));
+            int blocks = blocks(2L * maxBodySize);
+            if (!reserve(exchange, blocks)) {
+                return;
+            }
+            reservedBlocks = blocks;
+            final byte[] body = readBody(exchange.getRequestBody(), maxBodySize);
+            if (body == null) {
+                fail(exchange, 413, "Images must be smaller than "
+                        + maxBodySize + " bytes");
+                return;
+            }
+
+            // return the memory reserved beyond the size of the body
+            blocks = blocks(2L * body.length);
+            memory.release(reservedBlocks - blocks);
+            reservedBlocks = blocks;
+
+            // decode PNG and JPEG images
+            final BufferedImage normal;
+            final String format;
+            try (ImageInputStream in = ImageIO.createImageInputStream(
+                    new ByteArrayInputStream(body))) {
+                final Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+                if (!readers.hasNext()) {
+                    fail(exchange, 415, "Images must be PNG or JPEG");
+                    return;
+                }
+                final ImageReader reader = readers.next();
+                try {
+                    format = reader.getFormatName().toLowerCase(Locale.US);
+                    if (!"png".equals(format) && !"jpeg".equals(format)) {
+                        fail(exchange, 415, "Images must be PNG or JPEG");
+                        return;
+                    }
+                    reader.setInput(in, true, true);
+                    final long imagePixels = (long) reader.getWidth(0) * reader.getHeight(0);
+                    if (imagePixels > MAX_PIXELS) {
+                        fail(exchange, 413, "Images must have fewer than "
+                                + MAX_PIXELS + " pixels");
+                        return;
+                    }
+
+                    // reserve memory for the pixels before decoding
+                    blocks = blocks(imagePixels * BYTES_PER_PIXEL);
+                    if (!reserve(exchange, blocks)) {
+                        return;
+                    }
+                    reservedBlocks += blocks;
+                    normal = reader.read(0);
+                } finally {
+                    reader.dispose();
+                }
+            }
+
+            // queue the pixels for the workers
+            final Request request = request(simulation, normal);
+            if (!queue.offer(request)) {
+                rejectedRequests.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                send(exchange, 503, "text/plain; charset=utf-8", "Too many requests\n");
+                return;
+            }
+            request.done.await();
+            if (request.error != null) {
+                throw request.error;
+            }
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(body.length + 1024);
+            if ("png".equals(format)) {
+                pngEncoder.write(request.image, out);
+            } else if (!ImageIO.write(request.image, "jpeg", out)) {
+                throw new IOException("Cannot encode JPEG image");
+            }
+            exchange.getResponseHeaders().set("Content-Type",
+                    "png".equals(format) ? "image/png" : "image/jpeg");
+            exchange.sendResponseHeaders(200, out.size());
+            try (OutputStream response = exchange.getResponseBody()) {
+                out.writeTo(response);
+            }
+            completedRequests.incrementAndGet();
+            pixels.addAndGet(request.normal.length);
+            requestNanos.addAndGet(System.nanoTime() - start);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            failedRequests.incrementAndGet();
+            exchange.close();
+        } catch (IOException | RuntimeException ex) {
+            try {
+                fail(exchange, 500, "Cannot simulate image: " + ex);
+            } catch (IOException | IllegalStateException ex2) {
+                // the response was started already
+                failedRequests.incrementAndGet();
+                exchange.close();
+            }
+        } finally {
+            memory.release(reservedBlocks);
+        }
+    }
+
+    /**
+     * Returns the number of blocks of the budget needed for a number of
+     * bytes.
+     */
+    private static int blocks(long bytes) {
+        return (int) Math.min(Integer.MAX_VALUE, bytes / BLOCK + 1);
+    }
+
+    /**
+     * Reserves blocks of the memory budget without waiting. If the blocks
+     * cannot be reserved, the request is rejected: with status 413 if it
+     * needs more than the whole budget, otherwise with status 503.
+     *
+     * @return True if the blocks were reserved.
+     */
+    private boolean reserve(HttpExchange exchange, int blocks) throws IOException {
+        if (blocks > memoryBlocks) {
+            fail(exchange, 413, "The image needs more than the memory budget of "
+                    + ((long) memoryBlocks * BLOCK >> 20) + " MB");
+            return false;
+        }
+        if (!memory.tryAcquire(blocks)) {
+            rejectedRequests.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            send(exchange, 503, "text/plain; charset=utf-8", "Too many requests\n");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the Content-Length of a request, or -1 if it is unknown.
+     */
+    private static long contentLength(HttpExchange exchange) {
+        final String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (length == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(length.trim());
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the simulation of the type parameter of a request, or null.
+     */
+    private static Simulation simulation(URI uri) {
+        final String query = uri.getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String parameter : query.split("&")) {
+            if (parameter.startsWith("type=")) {
+                try {
+                    return Simulation.valueOf(parameter.substring(5).toLowerCase(Locale.US));
+                } catch (IllegalArgumentException ex) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the body of a request, or returns null if it is larger than a
+     * maximum size.
+     */
+    private static byte[] readBody(InputStream in, int maxSize) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream(
+                Math.min(maxSize, 1 << 16));
+        final byte[] buffer = new byte[1 << 16];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            if (body.size() + n > maxSize) {
+                return null;
+            }
+            body.write(buffer, 0, n);
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Creates a request with the pixels of an image.
+     */
+    private static Request request(Simulation simulation, BufferedImage normal) {
+        final PixelLayout layout = PixelLayout.of(normal);
+        final int width = normal.getWidth();
+        final int height = normal.getHeight();
+        int[] pixels = layout.getPackedData();
+        if (pixels == null) {
+            pixels = new int[width * height];
+            final int[] row = new int[width];
+            for (int y = 0; y < height; y++) {
+                layout.readRow(y, row);
+                System.arraycopy(row, 0, pixels, y * width, width);
+            }
+        }
+        final BufferedImage image = new BufferedImage(width, height, layout.hasAlpha
+                ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        return new Request(simulation, pixels, image);
+    }
+
+    /**
+     * Simulates queued requests until the worker is interrupted.
+     */
+    private void work() {
+        final List<Request> batch = new ArrayList<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            batch.clear();
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException ex) {
+                return;
+            }
+            long batchPixels = batch.get(0).normal.length;
+            Request next;
+            while (batchPixels < BATCH_PIXELS && (next = queue.poll()) != null) {
+                batch.add(next);
+                batchPixels += next.normal.length;
+            }
+            try {
+                simulate(batch);
+            } catch (RuntimeException ex) {
+                for (Request request : batch) {
+                    request.error = ex;
+                }
+            } finally {
+                for (Request request : batch) {
+                    request.done.countDown();
+                }
+            }
+        }
+    }
+
+    /**
+     * Simulates a batch of requests one after the other, each with its own
+     * filterRows call in place in the image of the request.
+     */
+    private void simulate(List<Request> batch) {
+        for (Request request : batch) {
+            simulator.filterRows(request.simulation, request.normal, 0,
+                    request.simulated, 0, 1, request.normal.length);
+        }
+        batches.incrementAndGet();
+        simulatedRequests.addAndGet(batch.size());
+    }
+
+    /**
+     * Handles GET /stats. batches counts how often a worker took requests
+     * from the queue, and requestsPerBatch is the mean number of requests
+     * taken at once; each request is still simulated with its own filterRows
+     * call. reservedMegabytes is the part of the memory budget held by the
+     * requests being served.
+     */
+    private void stats(HttpExchange exchange) throws IOException {
+        final long completed = completedRequests.get();
+        final String json = String.format(Locale.US, "{\n"
+                + "  \"uptimeSeconds\": %.1f,\n"
+                + "  \"workers\": %d,\n"
+                + "  \"queued\": %d,\n"
+                + "  \"requests\": %d,\n"
+                + "  \"completed\": %d,\n"
+                + "  \"failed\": %d,\n"
+                + "  \"rejected\": %d,\n"
+                + "  \"batches\": %d,\n"
+                + "  \"requestsPerBatch\": %.2f,\n"
+                + "  \"reservedMegabytes\": %.3f,\n"
+                + "  \"megapixels\": %.3f,\n"
+                + "  \"averageMilliseconds\": %.2f,\n"
+                + "  \"cacheHitRate\": %.4f\n"
+                + "}\n",
+                (System.nanoTime() - startTime) / 1e9, threads, queue.size(),
+                requests.get(), completed, failedRequests.get(), rejectedRequests.get(),
+                batches.get(),
+                batches.get() == 0 ? 0. : (double) simulatedRequests.get() / batches.get(),
+                (double) (memoryBlocks - memory.availablePermits()) * BLOCK / (1 << 20),
+                pixels.get() / 1e6,
+                completed <= 0 ? 0. : requestNanos.get() / 1e6 / completed,
+                simulator.getCacheStatistics().getHitRate());
+        send(exchange, 200, "application/json", json);
+    }
+
+    /**
+     * Counts a failed request and sends an error message.
+     */
+    private void fail(HttpExchange exchange, int status, String message)
+            throws IOException {
+        failedRequests.incrementAndGet();
+        send(exchange, status, "text/plain; charset=utf-8", message + "\n");
+    }
+
+    private static void send(HttpExchange exchange, int status, String type,
+            String text) throws IOException {
+        final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream response = exchange.getResponseBody()) {
+            response.write(bytes);
+        }
+    }
+}
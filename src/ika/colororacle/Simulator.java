@@ -6,11 +6,18 @@
  */
 package ika.colororacle;
 
-import ika.colororacle.ColorOracle.Simulation;
+import ika.colororacle.engine.Simulation;
 import java.awt.RenderingHints;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * A simulator for color-impaired vision (deuteranopia, protanopia and
@@ -20,6 +27,10 @@ import java.awt.image.*;
  * J.D., (1999). Digital video colourmaps for checking the legibility of
  * displays by dichromats. Color Research and Application 24, 243-252.
  *
+ * The filters are created once and have no mutable state. An image can be
+ * filtered by multiple threads at the same time with filter(Simulation,
+ * BufferedImage, BufferedImage).
+ *
  * @author Bernhard Jenny, Institute of Cartography, ETH Zurich.
  */
 public class Simulator {
@@ -34,7 +45,7 @@ public class Simulator {
      * A lookup table for the conversion from gamma-corrected sRGB values
      * [0..255] to linear RGB values [0..32767].
      */
-    private static final short[] SRGB_TO_LINRGB;
+    static final short[] SRGB_TO_LINRGB;
 
     static {
         // initialize SRGB_TO_LINRGB
@@ -51,7 +62,7 @@ public class Simulator {
      * A lookup table for the conversion of linear RGB values [0..255] to
      * gamma-corrected sRGB values [0..255].
      */
-    private static final byte[] LINRGB_TO_SRGB;
+    static final byte[] LINRGB_TO_SRGB;
 
     static {
         // initialize LINRGB_TO_SRGB
@@ -60,15 +71,238 @@ public class Simulator {
             LINRGB_TO_SRGB[i] = (byte) (255. * Math.pow(i / 255., GAMMA_INV));
         }
     }
+
+    /**
+     * Lookup tables for colors with 16 bits per channel. Linear rgb needs
+     * more than 16 bits to keep dark colors apart, so gamma-corrected values
+     * are converted to linear rgb in 0..2^20-1. The simulated linear rgb is
+     * rounded to 0..65535 before it is gamma-corrected. The tables take
+     * 384 KB and are initialized when the first 16 bit image is filtered.
+     */
+    private static final class Transfer16 {
+
+        /**
+         * Gamma-corrected sRGB values [0..65535] to linear RGB values
+         * [0..2^20-1].
+         */
+        static final int[] SRGB_TO_LINRGB = new int[65536];
+
+        /**
+         * Linear RGB values [0..65535] to gamma-corrected sRGB values
+         * [0..65535].
+         */
+        static final char[] LINRGB_TO_SRGB = new char[65536];
+
+        static {
+            for (int i = 0; i < 65536; i++) {
+                final double lin = 0.992052 * Math.pow(i / 65535., GAMMA) + 0.003974;
+                SRGB_TO_LINRGB[i] = (int) Math.round(lin * ((1 << 20) - 1));
+                LINRGB_TO_SRGB[i] = (char) Math.round(65535. * Math.pow(i / 65535., GAMMA_INV));
+            }
+        }
+
+        /**
+         * Converts linear rgb to gamma-corrected sRGB.
+         *
+         * @param lin Linear rgb in 0..65535, clamped if outside.
+         * @return Gamma-corrected sRGB in 0..65535.
+         */
+        static long toSRGB(long lin) {
+            if (lin <= 0) {
+                return 0;
+            }
+            return lin >= 65535 ? 65535 : LINRGB_TO_SRGB[(int) lin];
+        }
+    }
+    /**
+     * Images with fewer pixels than this are not split into bands, and bands
+     * are never smaller than this. Smaller bands cost more to schedule than
+     * they gain from running in parallel.
+     */
+    private static final int MIN_PIXELS_PER_BAND = 1 << 16;
+
+    /**
+     * The number of pixels in a chunk that stays in the processor cache while
+     * it is filtered in several steps: when the alpha of images is kept, and
+     * when filtering with several simulations.
+     */
+    private static final int CHUNK_LENGTH = 4096;
+
+    /**
+     * The red, green and blue bits of a color with 16 bits per channel,
+     * 0xAAAARRRRGGGGBBBB.
+     */
+    private static final long RGB16_MASK = 0xffffffffffffL;
+
+    /**
+     * The number of pixels sampled to decide whether an image has few colors,
+     * and the maximum number of colors in the sample.
+     */
+    private static final int COMPACTION_SAMPLE_SIZE = 4096;
+    private static final int COMPACTION_SAMPLE_COLORS = 3072;
+
+    /**
+     * The maximum number of unique colors of a band of rows that is filtered
+     * by converting each unique color once. A band may also have at most a
+     * quarter as many colors as pixels.
+     */
+    private static final int MAX_COMPACTION_COLORS = 1 << 16;
+
+    /**
+     * When the unique colors of an image are collected and converted once,
+     * before the pixels are replaced by the converted colors. This only
+     * applies to images with packed int pixels.
+     */
+    protected enum ColorCompaction {
+
+        /**
+         * If a sample of pixels has few colors.
+         */
+        auto,
+        /**
+         * Always, except for bands of rows with too many colors.
+         */
+        always,
+        /**
+         * Never.
+         */
+        never
+    }
+
+    /**
+     * The SIMD kernels, or null if the scalar kernels are to be used.
+     */
+    private static final Kernels VECTOR_KERNELS = loadVectorKernels();
+
     /**
      * Use this BufferedImageOp for the simulation.
      */
-    private BufferedImageOp op;
+    private volatile SimulationFilter op;
 
     /**
-     * Creates a new instance of Simulator
+     * The exact filters, one for each Simulation in the order of declaration.
+     * Filters have no mutable state and can filter images on multiple
+     * threads at the same time.
+     */
+    private final SimulationFilter[] filters;
+
+    /**
+     * Filters with lookup tables replacing simulations, for example tables
+     * read from .cube files, one for each Simulation in the order of
+     * declaration. An entry is null if the simulation is not replaced. The
+     * array is replaced and not modified when a table is set.
+     */
+    private volatile SimulationFilter[] customFilters;
+
+    /**
+     * Counts the hits and misses of the color caches.
+     */
+    private final ColorCache.Statistics cacheStatistics = new ColorCache.Statistics();
+
+    /**
+     * Whether the unique colors of an image are collected and converted once
+     * before the pixels are filtered.
+     */
+    private volatile ColorCompaction colorCompaction = ColorCompaction.auto;
+
+    /**
+     * The number of threads filtering an image. With 1 the image is filtered
+     * by the calling thread.
+     */
+    private volatile int parallelism;
+
+    /**
+     * The pool filtering bands of rows in parallel. Created when first needed.
+     * Guarded by this.
+     */
+    private ForkJoinPool pool = null;
+
+    /**
+     * Creates a new instance of Simulator. The number of threads used for
+     * filtering is read from the colororacle.parallelism system property and
+     * defaults to the number of available processors.
      */
     protected Simulator() {
+        this(Integer.getInteger("colororacle.parallelism",
+                Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Creates a new instance of Simulator.
+     *
+     * @param parallelism The number of threads filtering an image.
+     */
+    protected Simulator(int parallelism) {
+        setParallelism(parallelism);
+        final Simulation[] simulationTypes = Simulation.values();
+        filters = new SimulationFilter[simulationTypes.length];
+        for (Simulation simulationType : simulationTypes) {
+            filters[simulationType.ordinal()] = createFilter(simulationType);
+        }
+        customFilters = new SimulationFilter[simulationTypes.length];
+    }
+
+    /**
+     * Loads the SIMD kernels, which are built on the incubating Vector API of
+     * Java 16 and newer. They are only compiled if the JDK building Color
+     * Oracle provides the Vector API, and only load if the JVM is started with
+     * --add-modules jdk.incubator.vector and the processor has vector
+     * registers of at least 256 bits. Setting the colororacle.kernel system
+     * property to "scalar" disables them.
+     *
+     * @return The SIMD kernels, or null if they are not available.
+     */
+    private static Kernels loadVectorKernels() {
+        if ("scalar".equals(System.getProperty("colororacle.kernel"))) {
+            return null;
+        }
+        try {
+            Class<?> c = Class.forName("ika.colororacle.VectorKernels");
+            return (Kernels) c.getDeclaredConstructor().newInstance();
+        } catch (Exception | LinkageError ex) {
+            // the kernels were not compiled, the JVM is older than Java 16,
+            // the Vector API module was not added, or the processor has no
+            // suitable vector registers. Use the scalar kernels.
+            return null;
+        }
+    }
+
+    /**
+     * Returns the number of threads filtering an image.
+     *
+     * @return The number of threads.
+     */
+    protected int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of threads filtering an image. The output is identical
+     * for any number of threads.
+     *
+     * @param parallelism The number of threads. 1 filters on the calling
+     * thread.
+     */
+    protected synchronized void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        if (parallelism != this.parallelism) {
+            // the old pool is not shut down, as other threads may still
+            // submit images to it. Its threads end when they are idle.
+            pool = null;
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Returns the pool filtering bands of rows, and creates it if needed.
+     */
+    private synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(parallelism);
+        }
+        return pool;
     }
 
     /**
@@ -81,111 +315,869 @@ public class Simulator {
         return op.filter(normal, null);
     }
 
+    /**
+     * Filter an image into a destination image. The destination can be the
+     * source image, which is then filtered in place.
+     *
+     * @param normal The image with normal vision.
+     * @param dst The image receiving the simulated color vision impairment.
+     * Must have the same size as the source image. If null, a new image is
+     * created.
+     * @return The destination image.
+     */
+    protected BufferedImage filter(BufferedImage normal, BufferedImage dst) {
+        return op.filter(normal, dst);
+    }
+
+    /**
+     * Filter rows of pixels, for example a strip of an image that is being
+     * decoded or generated. The rows are filtered like an image with packed
+     * int pixels, and the alpha of the source pixels is kept. Source and
+     * destination rows may be in the same array and may overlap; if they are
+     * not at the same position, the source rows are first copied to the
+     * destination and then filtered in place.
+     *
+     * @param src The source pixels, sRGB ints in 0xAARRGGBB order, stored row
+     * after row without gaps.
+     * @param srcOff The index of the first source pixel.
+     * @param dst The destination pixels.
+     * @param dstOff The index of the first destination pixel.
+     * @param width The number of pixels in a row.
+     * @param rows The number of rows.
+     */
+    protected void filterRows(int[] src, int srcOff, int[] dst, int dstOff,
+            int width, int rows) {
+        if (width < 0 || rows < 0 || (long) width * rows > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid number of pixels");
+        }
+        final int length = width * rows;
+        if (srcOff < 0 || dstOff < 0 || srcOff > src.length - length
+                || dstOff > dst.length - length) {
+            throw new ArrayIndexOutOfBoundsException("Rows outside of array");
+        }
+        if (src != dst || srcOff != dstOff) {
+            System.arraycopy(src, srcOff, dst, dstOff, length);
+        }
+        filterBands(op.alphaFilter, dst, dst, dstOff, dstOff + length, width);
+    }
+
+    /**
+     * Filter rows of pixels with a simulation, like filterRows() with the
+     * current simulation. Unlike that method, this can be called by multiple
+     * threads at the same time.
+     *
+     * @param simulationType The type of impairment to simulate.
+     * @param src The source pixels, sRGB ints in 0xAARRGGBB order, stored row
+     * after row without gaps.
+     * @param srcOff The index of the first source pixel.
+     * @param dst The destination pixels.
+     * @param dstOff The index of the first destination pixel.
+     * @param width The number of pixels in a row.
+     * @param rows The number of rows.
+     */
+    protected void filterRows(Simulation simulationType, int[] src, int srcOff,
+            int[] dst, int dstOff, int width, int rows) {
+        if (width < 0 || rows < 0 || (long) width * rows > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid number of pixels");
+        }
+        final int length = width * rows;
+        if (srcOff < 0 || dstOff < 0 || srcOff > src.length - length
+                || dstOff > dst.length - length) {
+            throw new ArrayIndexOutOfBoundsException("Rows outside of array");
+        }
+        if (src != dst || srcOff != dstOff) {
+            System.arraycopy(src, srcOff, dst, dstOff, length);
+        }
+        filterBands(getFilter(simulationType).alphaFilter, dst, dst,
+                dstOff, dstOff + length, width);
+    }
+
+    /**
+     * Filter an image strip by strip. The strips are pulled from a source and
+     * pushed to a sink, so that only one strip is held in memory, however
+     * large the image is.
+     *
+     * @param source The source of the rows with normal vision.
+     * @param sink Receives the rows with simulated color vision impairment.
+     * The array passed to the sink is reused for the next strip.
+     * @param stripHeight The maximum number of rows in a strip.
+     * @throws IOException If the source or the sink throws an IOException.
+     */
+    protected void filter(RowSource source, RowSink sink, int stripHeight)
+            throws IOException {
+        final int width = source.getWidth();
+        if (stripHeight < 1 || (long) width * stripHeight > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid strip height");
+        }
+        final int[] strip = new int[width * stripHeight];
+        int rows;
+        while ((rows = source.readRows(strip, stripHeight)) > 0) {
+            filterRows(strip, 0, strip, 0, width, rows);
+            sink.writeRows(strip, rows);
+        }
+    }
+
+    /**
+     * Filter pixels stored as bytes in buffers, for example memory-mapped
+     * files, without copying them to an image or an array. The alpha of the
+     * source pixels is kept. Can be called by multiple threads at the same
+     * time.
+     *
+     * @param simulationType The type of impairment to simulate.
+     * @param src The source pixels between the position and the limit. The
+     * position is not changed.
+     * @param dst Receives the simulated pixels from its position on. Can be
+     * the source buffer. The position is not changed.
+     * @param channels 3 for RGB bytes, 4 for RGBA bytes.
+     */
+    protected void filter(Simulation simulationType, ByteBuffer src,
+            ByteBuffer dst, int channels) {
+        if (channels != 3 && channels != 4) {
+            throw new IllegalArgumentException("Pixels must have 3 or 4 channels");
+        }
+        if (src.remaining() % channels != 0 || dst.remaining() < src.remaining()) {
+            throw new IllegalArgumentException("Invalid number of bytes");
+        }
+        final int pixels = src.remaining() / channels;
+        filterBands(new BufferFilter(getFilter(simulationType), src, dst, channels),
+                null, null, 0, pixels, 1);
+    }
+
+    /**
+     * Filter an image with a simulation. Unlike simulate() followed by
+     * filter(), this can be called by multiple threads at the same time.
+     *
+     * @param simulationType The type of impairment to simulate.
+     * @param normal The image with normal vision.
+     * @param dst The image receiving the simulated color vision impairment.
+     * Must have the same size as the source image, and can be the source
+     * image. If null, a new image is created.
+     * @return The destination image.
+     */
+    protected BufferedImage filter(Simulation simulationType,
+            BufferedImage normal, BufferedImage dst) {
+        return getFilter(simulationType).filter(normal, dst);
+    }
+
+    /**
+     * Filter an image with several simulations in a single pass over the
+     * pixels. This is faster than filtering the image once per simulation,
+     * and gives the same colors.
+     *
+     * @param normal The image with normal vision.
+     * @param simulationTypes The simulations. Normal creates a copy of the
+     * image.
+     * @return For each simulation a new image. The images are of TYPE_INT_ARGB
+     * if the source image has alpha, and of TYPE_INT_RGB otherwise.
+     */
+    protected Map<Simulation, BufferedImage> filter(BufferedImage normal,
+            Set<Simulation> simulationTypes) {
+        final Map<Simulation, BufferedImage> images = new EnumMap<>(Simulation.class);
+        if (simulationTypes.isEmpty()) {
+            return images;
+        }
+        final int width = normal.getWidth();
+        final int height = normal.getHeight();
+        final int length = width * height;
+
+        // read images other than packed ints once into an int array
+        final PixelLayout layout = PixelLayout.of(normal);
+        final boolean alpha = layout.hasAlpha;
+        int[] inData = layout.getPackedData();
+        if (inData == null) {
+            inData = new int[length];
+            final int[] row = new int[width];
+            for (int y = 0; y < height; y++) {
+                layout.readRow(y, row);
+                System.arraycopy(row, 0, inData, y * width, width);
+            }
+        }
+
+        final int type = alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        final SimulationFilter[] filters = new SimulationFilter[simulationTypes.size()];
+        final int[][] outData = new int[filters.length][];
+        int k = 0;
+        for (Simulation simulationType : simulationTypes) {
+            final BufferedImage image = new BufferedImage(width, height, type);
+            images.put(simulationType, image);
+            outData[k] = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            filters[k++] = getFilter(simulationType);
+        }
+        filterBands(new FusedFilter(filters, outData, alpha), inData, null,
+                0, length, width);
+        return images;
+    }
+
+    /**
+     * Filter rows of pixels with several simulations in a single pass over
+     * the pixels, like filter(BufferedImage, Set). The alpha of the source
+     * pixels is kept.
+     *
+     * @param src The source pixels, sRGB ints in 0xAARRGGBB order, stored row
+     * after row without gaps from index 0.
+     * @param dst For each simulation the array receiving the simulated pixels
+     * at the indices of the source pixels.
+     * @param width The number of pixels in a row.
+     * @param rows The number of rows.
+     */
+    protected void filterRows(int[] src, Map<Simulation, int[]> dst,
+            int width, int rows) {
+        if (width < 0 || rows < 0 || (long) width * rows > src.length) {
+            throw new IllegalArgumentException("Invalid number of pixels");
+        }
+        if (dst.isEmpty()) {
+            return;
+        }
+        final int length = width * rows;
+        final SimulationFilter[] filters = new SimulationFilter[dst.size()];
+        final int[][] outData = new int[filters.length][];
+        int k = 0;
+        for (Map.Entry<Simulation, int[]> entry : dst.entrySet()) {
+            if (entry.getValue().length < length) {
+                throw new ArrayIndexOutOfBoundsException("Rows outside of array");
+            }
+            outData[k] = entry.getValue();
+            filters[k++] = getFilter(entry.getKey());
+        }
+        filterBands(new FusedFilter(filters, outData, true), src, null,
+                0, length, width);
+    }
+
+    /**
+     * Filters the pixels of an image, either serially or in bands of rows on
+     * the pool.
+     *
+     * @param filter The filter converting the pixels.
+     * @param inData The source pixels.
+     * @param outData The destination pixels.
+     * @param from The index of the first pixel.
+     * @param to The index after the last pixel.
+     * @param width The number of pixels in a row.
+     */
+    private void filterBands(PixelFilter filter, int[] inData,
+            int[] outData, int from, int to, int width) {
+        if (from >= to) {
+            return;
+        }
+        if (parallelism == 1 || to - from < 2 * MIN_PIXELS_PER_BAND) {
+            filter.filter(inData, outData, from, to);
+            return;
+        }
+        // bands consist of entire rows
+        width = Math.max(1, width);
+        final int rowsPerBand = Math.max(1, MIN_PIXELS_PER_BAND / width);
+        final int bandLength = rowsPerBand * width;
+        getPool().invoke(new BandTask(filter, inData, outData, from, to, bandLength));
+    }
+
+    /**
+     * A task filtering a range of pixels. The range is split recursively until
+     * it is not longer than two bands.
+     */
+    private static final class BandTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final PixelFilter filter;
+        private final int[] inData;
+        private final int[] outData;
+        private final int from;
+        private final int to;
+        private final int bandLength;
+
+        BandTask(PixelFilter filter, int[] inData, int[] outData,
+                int from, int to, int bandLength) {
+            this.filter = filter;
+            this.inData = inData;
+            this.outData = outData;
+            this.from = from;
+            this.to = to;
+            this.bandLength = bandLength;
+        }
+
+        @Override
+        protected void compute() {
+            final int bands = (to - from) / bandLength;
+            if (bands < 2) {
+                filter.filter(inData, outData, from, to);
+            } else {
+                final int mid = from + bands / 2 * bandLength;
+                invokeAll(new BandTask(filter, inData, outData, from, mid, bandLength),
+                        new BandTask(filter, inData, outData, mid, to, bandLength));
+            }
+        }
+    }
+
+    /**
+     * Filters the pixels of an image by converting each unique color once,
+     * if the image has few colors. Each band of rows collects and converts
+     * its own colors on the pool, so that no serial pass over the image is
+     * needed. A band with too many colors is filtered directly.
+     *
+     * @param filter The filter converting the colors.
+     * @param inData The source pixels.
+     * @param outData The destination pixels.
+     * @param length The number of pixels.
+     * @param width The number of pixels in a row.
+     * @return True if the image was filtered, false if a sample of the pixels
+     * has too many colors.
+     */
+    private boolean filterUniqueColors(PixelFilter filter, int[] inData,
+            int[] outData, int length, int width) {
+        if (colorCompaction == ColorCompaction.never
+                || length < MIN_PIXELS_PER_BAND) {
+            return false;
+        }
+
+        // count the colors of a sample of pixels spread over the image
+        if (colorCompaction == ColorCompaction.auto) {
+            final int step = Math.max(1, length / COMPACTION_SAMPLE_SIZE);
+            if (ColorTable.collect(inData, 0, length, step, COMPACTION_SAMPLE_COLORS) == null) {
+                return false;
+            }
+        }
+        filterBands(new UniqueColorFilter(filter), inData, outData, 0, length, width);
+        return true;
+    }
+
+    /**
+     * Filters a range of pixels by converting each unique color of the range
+     * once. Each range has its own ColorTable. If the range has too many
+     * colors, collecting them stops and the range is filtered directly.
+     */
+    private static final class UniqueColorFilter implements PixelFilter {
+
+        private final PixelFilter filter;
+
+        UniqueColorFilter(PixelFilter filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        public void filter(int[] inData, int[] outData, int from, int to) {
+            final int maxColors = Math.min(MAX_COMPACTION_COLORS,
+                    Math.max(1, (to - from) / 4));
+
+            // store the index of the color of each pixel in the destination,
+            // then replace the indices with the converted colors. When
+            // filtering in place, look up the colors a second time instead.
+            final boolean inPlace = inData == outData;
+            final ColorTable table = inPlace
+                    ? ColorTable.collect(inData, from, to, 1, maxColors)
+                    : ColorTable.index(inData, outData, from, to, maxColors);
+            if (table == null) {
+                filter.filter(inData, outData, from, to);
+                return;
+            }
+            table.convert(filter);
+            if (inPlace) {
+                table.filter(inData, outData, from, to);
+            } else {
+                table.indexFilter().filter(outData, outData, from, to);
+            }
+        }
+    }
+
+    /**
+     * Filters the rows of an image, either serially or in bands of rows on
+     * the pool.
+     *
+     * @param filter The filter converting the pixels.
+     * @param src The source image.
+     * @param dst The destination image of the same size.
+     */
+    private void filterRowBands(SimulationFilter filter, PixelLayout src,
+            PixelLayout dst) {
+        if (src.width == 0 || src.height == 0) {
+            return;
+        }
+        final int rowsPerBand = Math.max(1, MIN_PIXELS_PER_BAND / src.width);
+        if (parallelism == 1 || src.height < 2 * rowsPerBand
+                || !src.isConcurrent() || !dst.isConcurrent()) {
+            filter.filterRows(src, dst, 0, src.height);
+            return;
+        }
+        getPool().invoke(new RowBandTask(filter, src, dst, 0, src.height, rowsPerBand));
+    }
+
+    /**
+     * A task filtering a range of rows. The range is split recursively until
+     * it is not longer than two bands.
+     */
+    private static final class RowBandTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final SimulationFilter filter;
+        private final PixelLayout src;
+        private final PixelLayout dst;
+        private final int fromRow;
+        private final int toRow;
+        private final int rowsPerBand;
+
+        RowBandTask(SimulationFilter filter, PixelLayout src, PixelLayout dst,
+                int fromRow, int toRow, int rowsPerBand) {
+            this.filter = filter;
+            this.src = src;
+            this.dst = dst;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.rowsPerBand = rowsPerBand;
+        }
+
+        @Override
+        protected void compute() {
+            final int bands = (toRow - fromRow) / rowsPerBand;
+            if (bands < 2) {
+                filter.filterRows(src, dst, fromRow, toRow);
+            } else {
+                final int mid = fromRow + bands / 2 * rowsPerBand;
+                invokeAll(new RowBandTask(filter, src, dst, fromRow, mid, rowsPerBand),
+                        new RowBandTask(filter, src, dst, mid, toRow, rowsPerBand));
+            }
+        }
+    }
+
     /**
      * Simulate color impaired vision.
      *
      * @param simulationType The type of impairment to simulate.
      */
     protected void simulate(Simulation simulationType) {
+        op = getFilter(simulationType);
+    }
+
+    /**
+     * Replaces a simulation with a 3D lookup table, for example a calibrated
+     * table read from a .cube file, or a table sampled from the simulation
+     * with createLut. The table is used by all methods
+     * filtering with the simulation, until it is removed.
+     *
+     * @param simulationType The simulation to replace.
+     * @param lut The lookup table, or null to use the simulation again.
+     */
+    protected synchronized void setLut(Simulation simulationType, ColorLut lut) {
+        final SimulationFilter[] filters = customFilters.clone();
+        filters[simulationType.ordinal()] = lut == null ? null : new LutFilter(lut);
+        customFilters = filters;
+    }
+
+    /**
+     * Returns the filter for a simulation. This is the filter with a lookup
+     * table set with setLut, or the exact filter.
+     *
+     * @param simulationType The type of impairment to simulate.
+     * @return The filter.
+     */
+    private SimulationFilter getFilter(Simulation simulationType) {
+        final SimulationFilter custom = customFilters[simulationType.ordinal()];
+        return custom != null ? custom : filters[simulationType.ordinal()];
+    }
+
+    /**
+     * Creates the exact filter for a simulation.
+     *
+     * @param simulationType The type of impairment to simulate.
+     * @return The new filter.
+     */
+    private SimulationFilter createFilter(Simulation simulationType) {
         switch (simulationType) {
             case deutan:
-                op = new RedGreenFilter(9591, 23173, -730);
-                break;
+                return new RedGreenFilter(9591, 23173, -730);
             case protan:
-                op = new RedGreenFilter(3683, 29084, 131);
-                break;
+                return new RedGreenFilter(3683, 29084, 131);
             case tritan:
-                op = new TritanFilter();
-                break;
+                return new TritanFilter();
             case grayscale:
-                op = new GrayscaleFilter();
-                break;
+                return new GrayscaleFilter();
+            case normal:
+                return new NormalFilter();
+            default:
+                throw new IllegalArgumentException("Cannot simulate " + simulationType);
         }
     }
 
     /**
-     * A red-green blindness filter (deuteranopia and protanopia).
+     * Returns when the unique colors of an image are converted once.
+     *
+     * @return The color compaction mode.
+     */
+    protected ColorCompaction getColorCompaction() {
+        return colorCompaction;
+    }
+
+    /**
+     * Sets when the unique colors of an image are converted once. The output
+     * is identical in all modes.
+     *
+     * @param colorCompaction The color compaction mode.
+     */
+    protected void setColorCompaction(ColorCompaction colorCompaction) {
+        if (colorCompaction == null) {
+            throw new IllegalArgumentException("color compaction mode is null");
+        }
+        this.colorCompaction = colorCompaction;
+    }
+
+    /**
+     * Returns the hit and miss counts of the color caches of the scalar
+     * kernels, accumulated over all filtered images until reset.
+     *
+     * @return The statistics.
+     */
+    protected ColorCache.Statistics getCacheStatistics() {
+        return cacheStatistics;
+    }
+
+    /**
+     * Creates a 3D lookup table for a simulation by sampling the exact
+     * simulation. Use measureLutError to find the error of a size, and
+     * setLut to filter with the table.
+     *
+     * @param simulationType The type of impairment to simulate.
+     * @param size The number of grid nodes along each axis, for example 33
+     * or 65.
+     * @param interpolation The interpolation between the grid nodes.
+     * @return The new lookup table.
+     */
+    protected ColorLut createLut(Simulation simulationType, int size,
+            ColorLut.Interpolation interpolation) {
+        return ColorLut.sample(size, filters[simulationType.ordinal()],
+                simulationType.name(), interpolation);
+    }
+
+    /**
+     * Compares a lookup table to the exact simulation for all sRGB colors.
+     *
+     * @param simulationType The simulation approximated by the table.
+     * @param lut The lookup table.
+     * @return The accuracy of the table.
      */
-    private class RedGreenFilter implements BufferedImageOp {
+    protected ColorLut.Accuracy measureLutError(Simulation simulationType,
+            ColorLut lut) {
+        return lut.measureError(filters[simulationType.ordinal()]);
+    }
+
+    /**
+     * Converts ranges of pixels.
+     */
+    interface PixelFilter {
+
+        /**
+         * Filters a range of pixels.
+         *
+         * @param inData The source pixels.
+         * @param outData The destination pixels.
+         * @param from The index of the first pixel.
+         * @param to The index after the last pixel.
+         */
+        void filter(int[] inData, int[] outData, int from, int to);
+    }
+
+    /**
+     * SIMD implementations of the simulation kernels. Each method filters the
+     * pixels from the index from on in chunks of the vector length and
+     * returns the index after the last filtered pixel. The remaining pixels
+     * are filtered by the scalar kernels. The results are identical to the
+     * scalar kernels.
+     */
+    interface Kernels {
+
+        int filterRedGreen(int[] inData, int[] outData, int from, int to,
+                int k1, int k2, int k3);
+
+        int filterTritan(int[] inData, int[] outData, int from, int to,
+                int[] inflection, int[] set1, int[] set2);
+
+        int filterGrayscale(int[] inData, int[] outData, int from, int to);
+    }
+
+    /**
+     * Base class for the simulation filters. Extracts the pixel arrays from
+     * the images and passes them to filterBands, which calls back with ranges
+     * of pixels. Images that do not store packed int pixels are passed to
+     * filterRowBands, which calls back with ranges of rows.
+     */
+    private abstract class SimulationFilter
+            implements BufferedImageOp, PixelFilter, ColorCache.Converter {
+
+        /**
+         * Filters ranges of pixels and keeps the alpha of the source pixels.
+         */
+        private final PixelFilter alphaFilter = new PixelFilter() {
+
+            @Override
+            public void filter(int[] inData, int[] outData, int from, int to) {
+                SimulationFilter.this.filter(inData, outData, from, to, true);
+            }
+        };
+
+        @Override
+        public BufferedImage filter(BufferedImage src, BufferedImage dst) {
+            if (dst == null) {
+                dst = createCompatibleDestImage(src, null);
+            }
+            if (src.getWidth() != dst.getWidth()
+                    || src.getHeight() != dst.getHeight()) {
+                throw new IllegalArgumentException(
+                        "Source and destination images must have the same size");
+            }
+
+            // filter packed int pixels in place, read and write rows of all
+            // other image types
+            final PixelLayout in = PixelLayout.of(src);
+            final PixelLayout out = PixelLayout.of(dst);
+            final int[] inData = in.getPackedData();
+            final int[] outData = out.getPackedData();
+            if (inData != null && outData != null) {
+                final int width = src.getWidth();
+                final int length = width * src.getHeight();
+                final PixelFilter filter = in.hasAlpha && out.hasAlpha ? alphaFilter : this;
+                if (!filterUniqueColors(filter, inData, outData, length, width)) {
+                    filterBands(filter, inData, outData, 0, length, width);
+                }
+            } else {
+                filterRowBands(this, in, out);
+            }
+            return dst;
+        }
+
+        /**
+         * Filters a range of pixels. Each range has its own color cache, so
+         * that ranges can be filtered concurrently. The result does not depend
+         * on how the pixels are split into ranges.
+         */
+        @Override
+        public void filter(int[] inData, int[] outData, int from, int to) {
+            filter(inData, outData, from, to, false);
+        }
+
+        /**
+         * Filters a range of pixels.
+         *
+         * @param alpha If true, the alpha of the source pixels is kept,
+         * otherwise the destination pixels are opaque.
+         */
+        void filter(int[] inData, int[] outData, int from, int to,
+                boolean alpha) {
+            final ColorCache cache = new ColorCache(this);
+            filter(inData, outData, from, to, cache, alpha);
+            cache.flush(cacheStatistics);
+        }
 
-        private final int k1;
-        private final int k2;
-        private final int k3;
+        /**
+         * Filters a range of pixels with a color cache that is shared with
+         * other ranges filtered by the same thread. The kernels ignore alpha
+         * and return opaque colors. To keep alpha, the range is filtered in
+         * chunks small enough to stay in the processor cache, and the alpha
+         * of each chunk is copied after filtering it.
+         */
+        void filter(int[] inData, int[] outData, int from, int to,
+                ColorCache cache, boolean alpha) {
+            if (!alpha) {
+                filterOpaque(inData, outData, from, to, cache);
+                return;
+            }
 
-        public RedGreenFilter(int k1, int k2, int k3) {
-            this.k1 = k1;
-            this.k2 = k2;
-            this.k3 = k3;
+            // when filtering in place, the alpha of the source pixels is
+            // overwritten and has to be saved first
+            final int[] saved = inData == outData
+                    ? new int[Math.min(CHUNK_LENGTH, to - from)] : null;
+            for (int start = from; start < to; start += CHUNK_LENGTH) {
+                final int end = Math.min(to, start + CHUNK_LENGTH);
+                final int[] alphaData = saved == null ? inData : saved;
+                final int alphaOffset = saved == null ? 0 : start;
+                if (saved != null) {
+                    System.arraycopy(inData, start, saved, 0, end - start);
+                }
+                filterOpaque(inData, outData, start, end, cache);
+                for (int i = start; i < end; i++) {
+                    outData[i] = (outData[i] & 0xffffff)
+                            | (alphaData[i - alphaOffset] & 0xff000000);
+                }
+            }
         }
 
-        @Override
-        public BufferedImage filter(BufferedImage src, BufferedImage dst) {
-            if (dst == null) {
-                dst = createCompatibleDestImage(src, null);
+        /**
+         * Filters a range of pixels to opaque colors. The first pixels filtered
+         * with a cache probe whether colors repeat; if they do not, the
+         * cache is bypassed.
+         */
+        private void filterOpaque(int[] inData, int[] outData, int from, int to,
+                ColorCache cache) {
+            if (VECTOR_KERNELS != null && from < to) {
+                from = filterVector(inData, outData, from, to);
+            }
+            final int probeLength = cache.getProbeLength();
+            if (probeLength > 0 && from < to) {
+                final int end = Math.min(to, from + probeLength);
+                filterScalar(inData, outData, from, end, cache);
+                cache.probed(end - from);
+                from = end;
             }
+            if (from >= to) {
+                return;
+            }
+            if (!cache.isBypassed()) {
+                filterScalar(inData, outData, from, to, cache);
+                return;
+            }
+            cache.uncached += to - from;
+            filterUncached(inData, outData, from, to);
+        }
+
+        /**
+         * Filters a range of rows. The rows are read into and written from a
+         * buffer of one row, which is filtered like a range of pixels.
+         *
+         * @param src The source image.
+         * @param dst The destination image, which may be the source image.
+         * @param fromRow The first row.
+         * @param toRow The row after the last row.
+         */
+        void filterRows(PixelLayout src, PixelLayout dst, int fromRow, int toRow) {
+            if (src.is16Bit() && dst.is16Bit()) {
+                filterRows16(src, dst, fromRow, toRow);
+                return;
+            }
+            final int[] inRow = new int[src.width];
+            final int[] outRow = new int[src.width];
+            final ColorCache cache = new ColorCache(this);
+            final boolean alpha = src.hasAlpha && dst.hasAlpha;
+            for (int y = fromRow; y < toRow; y++) {
+                src.readRow(y, inRow);
+                filter(inRow, outRow, 0, inRow.length, cache, alpha);
+                dst.writeRow(y, outRow);
+            }
+            cache.flush(cacheStatistics);
+        }
 
-            // make sure the two images have the same size, color space, etc.
-            // MISSING !!! ???
-            DataBufferInt inBuffer = (DataBufferInt) src.getRaster().getDataBuffer();
-            DataBufferInt outBuffer = (DataBufferInt) dst.getRaster().getDataBuffer();
-            int[] inData = inBuffer.getData();
-            int[] outData = outBuffer.getData();
+        /**
+         * Filters a range of rows of images with 16 bits per channel without
+         * reducing them to 8 bits. A pixel identical to its predecessor gets
+         * the same color, other pixels are converted. There is no color
+         * cache, because colors with 48 bits rarely repeat.
+         */
+        void filterRows16(PixelLayout src, PixelLayout dst, int fromRow, int toRow) {
+            final long[] inRow = new long[src.width];
+            final long[] outRow = new long[src.width];
+            final boolean alpha = src.hasAlpha && dst.hasAlpha;
+            for (int y = fromRow; y < toRow; y++) {
+                src.readRow16(y, inRow);
+                long prevIn = inRow.length > 0 ? ~inRow[0] : 0;
+                long prevOut = 0;
+                for (int x = 0; x < inRow.length; x++) {
+                    final long in = inRow[x];
+                    if (in != prevIn) {
+                        prevIn = in;
+                        prevOut = convert16(in & RGB16_MASK)
+                                | (alpha ? in & ~RGB16_MASK : ~RGB16_MASK);
+                    }
+                    outRow[x] = prevOut;
+                }
+                dst.writeRow16(y, outRow);
+            }
+        }
 
-            int prevIn = 0;
+        /**
+         * Filters a range of pixels one pixel after the other. A pixel
+         * identical to its predecessor gets the same color. Other pixels are
+         * looked up in a ColorCache, and converted if not found.
+         */
+        void filterScalar(int[] inData, int[] outData, int from, int to,
+                ColorCache cache) {
+            int prevIn = ~inData[from];
             int prevOut = 0;
-            final int length = inData.length;
-            for (int i = 0; i < length; i++) {
+            int runHits = 0;
+            for (int i = from; i < to; i++) {
                 final int in = inData[i];
                 if (in == prevIn) {
                     outData[i] = prevOut;
+                    runHits++;
                 } else {
-
-                    final int r = (0xff0000 & in) >> 16;
-                    final int g = (0xff00 & in) >> 8;
-                    final int b = 0xff & in;
-
-                    // get linear rgb values in the range 0..2^15-1
-                    final int r_lin = SRGB_TO_LINRGB[r];
-                    final int g_lin = SRGB_TO_LINRGB[g];
-                    final int b_lin = SRGB_TO_LINRGB[b];
-
-                    // simulated red and green are identical
-                    // scale the matrix values to 0..2^15 for integer computations 
-                    // of the simulated protan values.
-                    // divide after the computation by 2^15 to rescale.
-                    // also divide by 2^15 and multiply by 2^8 to scale the linear rgb to 0..255
-                    // total division is by 2^15 * 2^15 / 2^8 = 2^22
-                    // shift the bits by 22 places instead of dividing
-                    int r_blind = (int) (k1 * r_lin + k2 * g_lin) >> 22;
-                    int b_blind = (int) (k3 * r_lin - k3 * g_lin + 32768 * b_lin) >> 22;
-
-                    if (r_blind < 0) {
-                        r_blind = 0;
-                    } else if (r_blind > 255) {
-                        r_blind = 255;
-                    }
-
-                    if (b_blind < 0) {
-                        b_blind = 0;
-                    } else if (b_blind > 255) {
-                        b_blind = 255;
-                    }
-
-                    // convert reduced linear rgb to gamma corrected rgb
-                    int red = LINRGB_TO_SRGB[r_blind];
-                    red = red >= 0 ? red : 256 + red; // from unsigned to signed
-                    int blue = LINRGB_TO_SRGB[b_blind];
-                    blue = blue >= 0 ? blue : 256 + blue; // from unsigned to signed
-
-                    final int out = 0xff000000 | red << 16 | red << 8 | blue;
-
+                    final int out = cache.get(in);
                     outData[i] = out;
                     prevIn = in;
                     prevOut = out;
                 }
             }
+            cache.runHits += runHits;
+        }
 
-            return dst;
+        /**
+         * Filters a range of pixels one pixel after the other without a
+         * cache. A pixel identical to its predecessor gets the same color,
+         * other pixels are converted.
+         */
+        void filterUncached(int[] inData, int[] outData, int from, int to) {
+            int prevIn = ~inData[from];
+            int prevOut = 0;
+            for (int i = from; i < to; i++) {
+                final int in = inData[i];
+                if (in != prevIn) {
+                    prevIn = in;
+                    prevOut = convert(in);
+                }
+                outData[i] = prevOut;
+            }
+        }
+
+        /**
+         * Converts a single color.
+         *
+         * @param rgb The sRGB color to convert.
+         * @return The converted, opaque sRGB color.
+         */
+        @Override
+        public abstract int convert(int rgb);
+
+        /**
+         * Converts a single color with its linear rgb values already looked
+         * up. Filters that do not use linear rgb ignore them.
+         *
+         * @param rgb The sRGB color to convert.
+         * @param r_lin Linear red in 0..2^15-1.
+         * @param g_lin Linear green in 0..2^15-1.
+         * @param b_lin Linear blue in 0..2^15-1.
+         * @return The converted, opaque sRGB color.
+         */
+        int convert(int rgb, int r_lin, int g_lin, int b_lin) {
+            return convert(rgb);
+        }
+
+        /**
+         * Converts a single color with 16 bits per channel. Filters that do
+         * not override this method convert the color reduced to 8 bits per
+         * channel.
+         *
+         * @param rgb The sRGB color to convert, 0x0000RRRRGGGGBBBB.
+         * @return The converted sRGB color, 0x0000RRRRGGGGBBBB.
+         */
+        long convert16(long rgb) {
+            final int r = (((int) (rgb >> 32) & 0xffff) * 255 + 32767) / 65535;
+            final int g = (((int) (rgb >> 16) & 0xffff) * 255 + 32767) / 65535;
+            final int b = (((int) rgb & 0xffff) * 255 + 32767) / 65535;
+            final int c = convert(r << 16 | g << 8 | b);
+            return ((c >> 16) & 0xffL) * 257 << 32 | ((c >> 8) & 0xffL) * 257 << 16
+                    | (c & 0xffL) * 257;
+        }
+
+        /**
+         * Filters a range of pixels with VECTOR_KERNELS, which must not be
+         * null. Filters without SIMD kernel filter no pixels.
+         *
+         * @return The index after the last filtered pixel.
+         */
+        int filterVector(int[] inData, int[] outData, int from, int to) {
+            return from;
+        }
+
+        /**
+         * Returns whether filterVector filters pixels if VECTOR_KERNELS is
+         * not null.
+         */
+        boolean hasVectorKernel() {
+            return false;
         }
 
         @Override
@@ -196,11 +1188,20 @@ public class Simulator {
         @Override
         public BufferedImage createCompatibleDestImage(BufferedImage src,
                 ColorModel destCM) {
+            int width = src.getWidth();
+            int height = src.getHeight();
             if (destCM == null) {
                 destCM = src.getColorModel();
+
+                // a palette cannot store the simulated colors
+                if (destCM instanceof IndexColorModel) {
+                    return new BufferedImage(width, height, destCM.hasAlpha()
+                            ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+                }
+                if (src.getType() != BufferedImage.TYPE_CUSTOM) {
+                    return new BufferedImage(width, height, src.getType());
+                }
             }
-            int width = src.getWidth();
-            int height = src.getHeight();
             BufferedImage image = new BufferedImage(destCM,
                     destCM.createCompatibleWritableRaster(width, height),
                     destCM.isAlphaPremultiplied(), null);
@@ -223,156 +1224,271 @@ public class Simulator {
     }
 
     /**
-     * A filter for simulated Tritanopia.
+     * A red-green blindness filter (deuteranopia and protanopia).
      */
-    private class TritanFilter implements BufferedImageOp {
+    private class RedGreenFilter extends SimulationFilter {
+
+        private final int k1;
+        private final int k2;
+        private final int k3;
+
+        public RedGreenFilter(int k1, int k2, int k3) {
+            this.k1 = k1;
+            this.k2 = k2;
+            this.k3 = k3;
+        }
 
         @Override
-        public BufferedImage filter(BufferedImage src, BufferedImage dst) {
+        boolean hasVectorKernel() {
+            return true;
+        }
 
-            /* Code for tritan simulation from GIMP 2.2
-             *  This could be optimised for speed.
-             *  Performs tritan color image simulation based on
-             *  Brettel, Vienot and Mollon JOSA 14/10 1997
-             *  L,M,S for lambda=475,485,575,660
-             *
-             * Load the LMS anchor-point values for lambda = 475 & 485 nm (for
-             * protans & deutans) and the LMS values for lambda = 575 & 660 nm
-             * (for tritans)
-             */
-            final float anchor_e0 = 0.05059983f + 0.08585369f + 0.00952420f;
-            final float anchor_e1 = 0.01893033f + 0.08925308f + 0.01370054f;
-            final float anchor_e2 = 0.00292202f + 0.00975732f + 0.07145979f;
-            final float inflection = anchor_e1 / anchor_e0;
-
-            /* Set 1: regions where lambda_a=575, set 2: lambda_a=475 */
-            final float a1 = -anchor_e2 * 0.007009f;
-            final float b1 = anchor_e2 * 0.0914f;
-            final float c1 = anchor_e0 * 0.007009f - anchor_e1 * 0.0914f;
-            final float a2 = anchor_e1 * 0.3636f - anchor_e2 * 0.2237f;
-            final float b2 = anchor_e2 * 0.1284f - anchor_e0 * 0.3636f;
-            final float c2 = anchor_e0 * 0.2237f - anchor_e1 * 0.1284f;
+        @Override
+        int filterVector(int[] inData, int[] outData, int from, int to) {
+            return VECTOR_KERNELS.filterRedGreen(inData, outData, from, to, k1, k2, k3);
+        }
 
-            if (dst == null) {
-                dst = createCompatibleDestImage(src, null);
+        @Override
+        public int convert(int in) {
+            final int r = (0xff0000 & in) >> 16;
+            final int g = (0xff00 & in) >> 8;
+            final int b = 0xff & in;
+
+            // get linear rgb values in the range 0..2^15-1
+            return convert(in, SRGB_TO_LINRGB[r], SRGB_TO_LINRGB[g], SRGB_TO_LINRGB[b]);
+        }
+
+        @Override
+        int convert(int in, int r_lin, int g_lin, int b_lin) {
+            // simulated red and green are identical
+            // scale the matrix values to 0..2^15 for integer computations 
+            // of the simulated protan values.
+            // divide after the computation by 2^15 to rescale.
+            // also divide by 2^15 and multiply by 2^8 to scale the linear rgb to 0..255
+            // total division is by 2^15 * 2^15 / 2^8 = 2^22
+            // shift the bits by 22 places instead of dividing
+            int r_blind = (int) (k1 * r_lin + k2 * g_lin) >> 22;
+            int b_blind = (int) (k3 * r_lin - k3 * g_lin + 32768 * b_lin) >> 22;
+
+            if (r_blind < 0) {
+                r_blind = 0;
+            } else if (r_blind > 255) {
+                r_blind = 255;
             }
 
-            // make sure the two images have the same size, color space, etc.
-            // MISSING FIXME
-            DataBufferInt inBuffer = (DataBufferInt) src.getRaster().getDataBuffer();
-            DataBufferInt outBuffer = (DataBufferInt) dst.getRaster().getDataBuffer();
-            int[] inData = inBuffer.getData();
-            int[] outData = outBuffer.getData();
+            if (b_blind < 0) {
+                b_blind = 0;
+            } else if (b_blind > 255) {
+                b_blind = 255;
+            }
 
-            int prevIn = 0;
-            int prevOut = 0;
-            final int length = inData.length;
-            for (int i = 0; i < length; i++) {
-                final int in = inData[i];
-                if (in == prevIn) {
-                    outData[i] = prevOut;
-                } else {
-                    final int rgb = inData[i];
+            // convert reduced linear rgb to gamma corrected rgb
+            int red = LINRGB_TO_SRGB[r_blind];
+            red = red >= 0 ? red : 256 + red; // from unsigned to signed
+            int blue = LINRGB_TO_SRGB[b_blind];
+            blue = blue >= 0 ? blue : 256 + blue; // from unsigned to signed
+
+            return 0xff000000 | red << 16 | red << 8 | blue;
+        }
+
+        @Override
+        long convert16(long rgb) {
+            // linear rgb in 0..2^20-1
+            final long r_lin = Transfer16.SRGB_TO_LINRGB[(int) (rgb >> 32) & 0xffff];
+            final long g_lin = Transfer16.SRGB_TO_LINRGB[(int) (rgb >> 16) & 0xffff];
+            final long b_lin = Transfer16.SRGB_TO_LINRGB[(int) rgb & 0xffff];
+
+            // the matrix is scaled by 2^15 and linear rgb by 2^20. Divide by
+            // 2^19 to scale the simulated linear rgb to 0..65535.
+            final long red = Transfer16.toSRGB((k1 * r_lin + k2 * g_lin) >> 19);
+            final long blue = Transfer16.toSRGB((k3 * r_lin - k3 * g_lin + 32768 * b_lin) >> 19);
+            return red << 32 | red << 16 | blue;
+        }
+    }
+
+    /**
+     * A filter for simulated Tritanopia.
+     *
+     * The simulation of GIMP 2.2 converts linear rgb to LMS, replaces S by a
+     * projection onto one of two half-planes, and converts back to rgb. For
+     * each half-plane these three steps form a single 3x3 matrix, which is
+     * scaled to integers like the matrix of RedGreenFilter. The half-plane
+     * is selected by comparing M/L to the inflection ratio. The comparison is
+     * done without division as the sign of a dot product of linear rgb.
+     *
+     * Compared to the float computation of GIMP, 0.28% of the 2^24 sRGB
+     * colors differ, each channel by at most one step of linear rgb in
+     * 0..255. For dark colors one step changes gamma-corrected sRGB by up to
+     * 20, which is the largest difference; 74% of the differing colors differ
+     * by 1.
+     */
+    private class TritanFilter extends SimulationFilter {
 
-                    int r = (0xff0000 & rgb) >> 16;
-                    int g = (0xff00 & rgb) >> 8;
-                    int b = 0xff & rgb;
+        /* Code for tritan simulation from GIMP 2.2
+         *  Performs tritan color image simulation based on
+         *  Brettel, Vienot and Mollon JOSA 14/10 1997
+         *  L,M,S for lambda=475,485,575,660
+         *
+         * Load the LMS anchor-point values for lambda = 475 & 485 nm (for
+         * protans & deutans) and the LMS values for lambda = 575 & 660 nm
+         * (for tritans)
+         */
+        private final float anchor_e0 = 0.05059983f + 0.08585369f + 0.00952420f;
+        private final float anchor_e1 = 0.01893033f + 0.08925308f + 0.01370054f;
+        private final float anchor_e2 = 0.00292202f + 0.00975732f + 0.07145979f;
 
-                    // get linear rgb values in the range 0..2^15-1
-                    r = SRGB_TO_LINRGB[r];
-                    g = SRGB_TO_LINRGB[g];
-                    b = SRGB_TO_LINRGB[b];
+        /* Set 1: regions where lambda_a=575, set 2: lambda_a=475 */
+        private final float a1 = -anchor_e2 * 0.007009f;
+        private final float b1 = anchor_e2 * 0.0914f;
+        private final float c1 = anchor_e0 * 0.007009f - anchor_e1 * 0.0914f;
+        private final float a2 = anchor_e1 * 0.3636f - anchor_e2 * 0.2237f;
+        private final float b2 = anchor_e2 * 0.1284f - anchor_e0 * 0.3636f;
+        private final float c2 = anchor_e0 * 0.2237f - anchor_e1 * 0.1284f;
 
-                    /* Convert to LMS (dot product with transform matrix) */
-                    final float L = (r * 0.05059983f + g * 0.08585369f + b * 0.00952420f) / 32767.f;
-                    final float M = (r * 0.01893033f + g * 0.08925308f + b * 0.01370054f) / 32767.f;
-                    float S; // = (r * 0.00292202f + g * 0.00975732f + b * 0.07145979f) / 32767.f;
+        /**
+         * Linear rgb to LMS.
+         */
+        private final double[][] rgbToLms = {
+            {0.05059983, 0.08585369, 0.00952420},
+            {0.01893033, 0.08925308, 0.01370054}
+        };
 
-                    final float tmp = M / L;
+        /**
+         * LMS to linear rgb.
+         */
+        private final double[][] lmsToRgb = {
+            {30.830854, -29.832659, 1.610474},
+            {-6.481468, 17.715578, -2.532642},
+            {-0.375690, -1.199062, 14.273846}
+        };
 
-                    /* See which side of the inflection line we fall... */
-                    if (tmp < inflection) {
-                        S = -(a1 * L + b1 * M) / c1;
-                    } else {
-                        S = -(a2 * L + b2 * M) / c2;
-                    }
+        /**
+         * Dot product with linear rgb in 0..2^15-1 that is negative if M/L is
+         * smaller than the inflection ratio anchor_e1 / anchor_e0, that is,
+         * if M * anchor_e0 - L * anchor_e1 is negative.
+         */
+        private final int[] inflection = new int[3];
 
-                    /* Convert back to RGB (cross product with transform matrix) */
-                    int ired = (int) (255.f * (L * 30.830854f
-                            - M * 29.832659f + S * 1.610474f));
-                    int igreen = (int) (255.f * (-L * 6.481468f
-                            + M * 17.715578f - S * 2.532642f));
-                    int iblue = (int) (255.f * (-L * 0.375690f
-                            - M * 1.199062f + S * 14.273846f));
-
-                    // convert reduced linear rgb to gamma corrected rgb
-                    if (ired < 0) {
-                        ired = 0;
-                    } else if (ired > 255) {
-                        ired = 255;
-                    } else {
-                        ired = LINRGB_TO_SRGB[ired];
-                        ired = ired >= 0 ? ired : 256 + ired; // from unsigned to signed
-                    }
-                    if (igreen < 0) {
-                        igreen = 0;
-                    } else if (igreen > 255) {
-                        igreen = 255;
-                    } else {
-                        igreen = LINRGB_TO_SRGB[igreen];
-                        igreen = igreen >= 0 ? igreen : 256 + igreen; // from unsigned to signed
-                    }
-                    if (iblue < 0) {
-                        iblue = 0;
-                    } else if (iblue > 255) {
-                        iblue = 255;
-                    } else {
-                        iblue = LINRGB_TO_SRGB[iblue];
-                        iblue = iblue >= 0 ? iblue : 256 + iblue; // from unsigned to signed
-                    }
+        /**
+         * Matrices converting linear rgb in 0..2^15-1 to simulated linear rgb
+         * in 0..255 scaled by 2^22, for set 1 and set 2. Row after row.
+         */
+        private final int[] set1 = createMatrix(a1, b1, c1, 255, 32767, 22);
+        private final int[] set2 = createMatrix(a2, b2, c2, 255, 32767, 22);
 
-                    final int out = (int) (ired << 16 | igreen << 8 | iblue | 0xff000000);
+        /**
+         * Matrices converting linear rgb in 0..2^20-1 to simulated linear rgb
+         * in 0..65535 scaled by 2^19, for 16 bits per channel.
+         */
+        private final int[] set1_16 = createMatrix(a1, b1, c1, 65535, (1 << 20) - 1, 19);
+        private final int[] set2_16 = createMatrix(a2, b2, c2, 65535, (1 << 20) - 1, 19);
 
-                    outData[i] = out;
-                    prevIn = in;
-                    prevOut = out;
+        public TritanFilter() {
+            // the largest coefficient is scaled to 2^14, so that the dot
+            // product cannot overflow
+            final double[] d = new double[3];
+            double max = 0;
+            for (int c = 0; c < 3; c++) {
+                d[c] = rgbToLms[1][c] * anchor_e0 - rgbToLms[0][c] * anchor_e1;
+                max = Math.max(max, Math.abs(d[c]));
+            }
+            for (int c = 0; c < 3; c++) {
+                inflection[c] = (int) Math.round(d[c] / max * (1 << 14));
+            }
+        }
+
+        /**
+         * Combines the conversion to LMS, the projection of S, and the
+         * conversion back to rgb into a fixed-point matrix.
+         *
+         * @param outMax The largest simulated linear rgb value.
+         * @param linMax The largest linear rgb value.
+         * @param shift The matrix is scaled by 2^shift.
+         */
+        private int[] createMatrix(float a, float b, float c, double outMax,
+                double linMax, int shift) {
+            final int[] m = new int[9];
+            for (int k = 0; k < 3; k++) {
+                final double L = rgbToLms[0][k];
+                final double M = rgbToLms[1][k];
+                final double S = -(a * L + b * M) / c;
+                for (int row = 0; row < 3; row++) {
+                    final double v = lmsToRgb[row][0] * L + lmsToRgb[row][1] * M
+                            + lmsToRgb[row][2] * S;
+                    // scale from 0..linMax to 0..outMax, and by 2^shift
+                    m[row * 3 + k] = (int) Math.round(v * outMax / linMax * (1 << shift));
                 }
             }
+            return m;
+        }
 
-            return dst;
+        @Override
+        boolean hasVectorKernel() {
+            return true;
         }
 
         @Override
-        public Rectangle2D getBounds2D(BufferedImage src) {
-            return src.getRaster().getBounds();
+        int filterVector(int[] inData, int[] outData, int from, int to) {
+            return VECTOR_KERNELS.filterTritan(inData, outData, from, to,
+                    inflection, set1, set2);
         }
 
         @Override
-        public BufferedImage createCompatibleDestImage(BufferedImage src,
-                ColorModel destCM) {
-            if (destCM == null) {
-                destCM = src.getColorModel();
-            }
-            int width = src.getWidth();
-            int height = src.getHeight();
-            BufferedImage image = new BufferedImage(destCM,
-                    destCM.createCompatibleWritableRaster(width, height),
-                    destCM.isAlphaPremultiplied(), null);
-            return image;
+        public int convert(int rgb) {
+            // get linear rgb values in the range 0..2^15-1
+            return convert(rgb, SRGB_TO_LINRGB[(0xff0000 & rgb) >> 16],
+                    SRGB_TO_LINRGB[(0xff00 & rgb) >> 8], SRGB_TO_LINRGB[0xff & rgb]);
         }
 
         @Override
-        public Point2D getPoint2D(Point2D srcPt, Point2D dstPt) {
-            if (dstPt == null) {
-                dstPt = new Point2D.Float();
+        int convert(int rgb, int r, int g, int b) {
+            /* See which side of the inflection line we fall... */
+            final int[] m = (inflection[0] * r + inflection[1] * g
+                    + inflection[2] * b < 0) ? set1 : set2;
+
+            // the products are smaller than 2^31 for all colors
+            int ired = (m[0] * r + m[1] * g + m[2] * b) >> 22;
+            int igreen = (m[3] * r + m[4] * g + m[5] * b) >> 22;
+            int iblue = (m[6] * r + m[7] * g + m[8] * b) >> 22;
+
+            // convert reduced linear rgb to gamma corrected rgb
+            if (ired < 0) {
+                ired = 0;
+            } else if (ired > 255) {
+                ired = 255;
+            } else {
+                ired = LINRGB_TO_SRGB[ired] & 0xff;
             }
-            dstPt.setLocation(srcPt.getX(), srcPt.getY());
-            return dstPt;
+            if (igreen < 0) {
+                igreen = 0;
+            } else if (igreen > 255) {
+                igreen = 255;
+            } else {
+                igreen = LINRGB_TO_SRGB[igreen] & 0xff;
+            }
+            if (iblue < 0) {
+                iblue = 0;
+            } else if (iblue > 255) {
+                iblue = 255;
+            } else {
+                iblue = LINRGB_TO_SRGB[iblue] & 0xff;
+            }
+
+            return ired << 16 | igreen << 8 | iblue | 0xff000000;
         }
 
         @Override
-        public RenderingHints getRenderingHints() {
-            return null;
+        long convert16(long rgb) {
+            // linear rgb in 0..2^20-1
+            final long r = Transfer16.SRGB_TO_LINRGB[(int) (rgb >> 32) & 0xffff];
+            final long g = Transfer16.SRGB_TO_LINRGB[(int) (rgb >> 16) & 0xffff];
+            final long b = Transfer16.SRGB_TO_LINRGB[(int) rgb & 0xffff];
+            final int[] m = (inflection[0] * r + inflection[1] * g
+                    + inflection[2] * b < 0) ? set1_16 : set2_16;
+            final long red = Transfer16.toSRGB((m[0] * r + m[1] * g + m[2] * b) >> 19);
+            final long green = Transfer16.toSRGB((m[3] * r + m[4] * g + m[5] * b) >> 19);
+            final long blue = Transfer16.toSRGB((m[6] * r + m[7] * g + m[8] * b) >> 19);
+            return red << 32 | green << 16 | blue;
         }
     }
 
@@ -380,98 +1496,328 @@ public class Simulator {
      * A filter for grayscale conversion: perceptual luminance-preserving
      * conversion to grayscale.
      * https://en.wikipedia.org/wiki/Grayscale#Colorimetric_(perceptual_luminance-preserving)_conversion_to_grayscale
+     *
+     * The luminance is computed with integers, so that the SIMD kernel gives
+     * the same colors. Computed with doubles, the luminance of 14 of the 2^24
+     * sRGB colors is rounded down to the next lower step of linear rgb,
+     * because it lies exactly on a step.
      */
-    private class GrayscaleFilter implements BufferedImageOp {
+    private class GrayscaleFilter extends SimulationFilter {
 
         @Override
-        public BufferedImage filter(BufferedImage src, BufferedImage dst) {
-            if (dst == null) {
-                dst = createCompatibleDestImage(src, null);
-            }
+        boolean hasVectorKernel() {
+            return true;
+        }
 
-            // make sure the two images have the same size, color space, etc.
-            // MISSING FIXME
-            DataBufferInt inBuffer = (DataBufferInt) src.getRaster().getDataBuffer();
-            DataBufferInt outBuffer = (DataBufferInt) dst.getRaster().getDataBuffer();
-            int[] inData = inBuffer.getData();
-            int[] outData = outBuffer.getData();
+        @Override
+        int filterVector(int[] inData, int[] outData, int from, int to) {
+            return VECTOR_KERNELS.filterGrayscale(inData, outData, from, to);
+        }
 
-            int prevIn = 0;
-            int prevOut = 0;
-            final int length = inData.length;
-            for (int i = 0; i < length; i++) {
-                final int in = inData[i];
-                if (in == prevIn) {
-                    outData[i] = prevOut;
-                } else {
-                    final int rgb = inData[i];
-
-                    final int r = (0xff0000 & rgb) >> 16;
-                    final int g = (0xff00 & rgb) >> 8;
-                    final int b = 0xff & rgb;
-
-                    // get linear rgb values in the range 0..2^15-1
-                    final int r_lin = SRGB_TO_LINRGB[r];
-                    final int g_lin = SRGB_TO_LINRGB[g];
-                    final int b_lin = SRGB_TO_LINRGB[b];
-
-                    // perceptual luminance-preserving conversion to grayscale
-                    // https://en.wikipedia.org/wiki/Grayscale#Colorimetric_(perceptual_luminance-preserving)_conversion_to_grayscale
-                    double luminance = 0.2126 * r_lin + 0.7152 * g_lin + 0.0722 * b_lin;
-                    int linRGB = ((int) (luminance)) >> 8; // divide by 2^8 to rescale
-                    
-                    // convert linear rgb to gamma corrected sRGB
-                    if (linRGB < 0) {
-                        linRGB = 0;
-                    } else if (linRGB > 255) {
-                        linRGB = 255;
-                    } else {
-                        linRGB = LINRGB_TO_SRGB[linRGB];
-                        linRGB = linRGB >= 0 ? linRGB : 256 + linRGB; // from unsigned to signed
-                    }
+        @Override
+        public int convert(int rgb) {
+            final int r = (0xff0000 & rgb) >> 16;
+            final int g = (0xff00 & rgb) >> 8;
+            final int b = 0xff & rgb;
 
-                    final int out = (int) (linRGB << 16 | linRGB << 8 | linRGB | 0xff000000);
+            // get linear rgb values in the range 0..2^15-1
+            return convert(rgb, SRGB_TO_LINRGB[r], SRGB_TO_LINRGB[g], SRGB_TO_LINRGB[b]);
+        }
 
-                    outData[i] = out;
-                    prevIn = in;
-                    prevOut = out;
-                }
-            }
+        @Override
+        int convert(int rgb, int r_lin, int g_lin, int b_lin) {
+            // perceptual luminance-preserving conversion to grayscale
+            // https://en.wikipedia.org/wiki/Grayscale#Colorimetric_(perceptual_luminance-preserving)_conversion_to_grayscale
+            // The weights 0.2126, 0.7152 and 0.0722 are scaled by 10^4, so
+            // that the luminance is exact; the sum is smaller than 2^29.
+            // Divide by 10^4 and by 2^8 to rescale to linear rgb in 0..127.
+            final int luminance = 2126 * r_lin + 7152 * g_lin + 722 * b_lin;
+            final int linRGB = LINRGB_TO_SRGB[luminance / 2560000] & 0xff;
+            return linRGB << 16 | linRGB << 8 | linRGB | 0xff000000;
+        }
 
-            return dst;
+        @Override
+        long convert16(long rgb) {
+            final double luminance = 0.2126 * Transfer16.SRGB_TO_LINRGB[(int) (rgb >> 32) & 0xffff]
+                    + 0.7152 * Transfer16.SRGB_TO_LINRGB[(int) (rgb >> 16) & 0xffff]
+                    + 0.0722 * Transfer16.SRGB_TO_LINRGB[(int) rgb & 0xffff];
+            // divide by 2^5 like the 8 bit conversion divides by 2^8, which
+            // gives linear rgb in 0..127
+            final long gray = Transfer16.toSRGB(((long) luminance) >> 5);
+            return gray << 32 | gray << 16 | gray;
         }
+    }
+
+    /**
+     * A filter for normal vision, which copies the colors.
+     */
+    private class NormalFilter extends SimulationFilter {
 
         @Override
-        public Rectangle2D getBounds2D(BufferedImage src) {
-            return src.getRaster().getBounds();
+        public int convert(int rgb) {
+            return rgb | 0xff000000;
         }
 
         @Override
-        public BufferedImage createCompatibleDestImage(BufferedImage src,
-                ColorModel destCM) {
-            if (destCM == null) {
-                destCM = src.getColorModel();
+        long convert16(long rgb) {
+            return rgb;
+        }
+    }
+
+    /**
+     * Filters ranges of pixels stored as RGB or RGBA bytes in buffers. The
+     * pixels are read from and written to the buffers one at a time, without
+     * copying them to arrays, and are converted by the scalar kernel with a
+     * color cache. The SIMD kernels are not used, because they work on int
+     * arrays. The arrays passed to filter() are ignored.
+     */
+    private final class BufferFilter implements PixelFilter {
+
+        private final SimulationFilter filter;
+        private final ByteBuffer src;
+        private final ByteBuffer dst;
+        private final int channels;
+
+        BufferFilter(SimulationFilter filter, ByteBuffer src, ByteBuffer dst,
+                int channels) {
+            this.filter = filter;
+            this.src = src;
+            this.dst = dst;
+            this.channels = channels;
+        }
+
+        @Override
+        public void filter(int[] inData, int[] outData, int from, int to) {
+            if (from >= to) {
+                return;
+            }
+            // duplicates are big-endian, whatever the order of the buffers
+            final ByteBuffer in = src.duplicate();
+            final ByteBuffer out = dst.duplicate();
+            final ColorCache cache = new ColorCache(filter);
+            final int end = Math.min(to, from + cache.getProbeLength());
+            filter(in, out, from, end, cache);
+            cache.probed(end - from);
+            if (end < to) {
+                if (cache.isBypassed()) {
+                    cache.uncached += to - end;
+                    filter(in, out, end, to, null);
+                } else {
+                    filter(in, out, end, to, cache);
+                }
+            }
+            cache.flush(cacheStatistics);
+        }
+
+        /**
+         * Filters a range of pixels. A pixel identical to its predecessor
+         * gets the same color. Other pixels are looked up in the cache, and
+         * converted if not found or if there is no cache.
+         */
+        private void filter(ByteBuffer in, ByteBuffer out, int from, int to,
+                ColorCache cache) {
+            final int inStart = src.position();
+            final int outStart = dst.position();
+            int prevIn = ~read(in, inStart + from * channels);
+            int prevOut = 0;
+            int runHits = 0;
+            for (int i = from; i < to; i++) {
+                final int rgb = read(in, inStart + i * channels);
+                if (rgb == prevIn) {
+                    runHits++;
+                } else {
+                    prevIn = rgb;
+                    prevOut = cache == null ? filter.convert(rgb) : cache.get(rgb);
+                }
+                final int p = outStart + i * channels;
+                if (channels == 4) {
+                    // 0xRRGGBBAA with the alpha of the source pixel
+                    out.putInt(p, prevOut << 8 | rgb >>> 24);
+                } else {
+                    out.put(p, (byte) (prevOut >> 16));
+                    out.put(p + 1, (byte) (prevOut >> 8));
+                    out.put(p + 2, (byte) prevOut);
+                }
+            }
+            if (cache != null) {
+                cache.runHits += runHits;
+            }
+        }
+
+        /**
+         * Reads the pixel at a byte index as 0xAARRGGBB.
+         */
+        private int read(ByteBuffer in, int p) {
+            if (channels == 4) {
+                return Integer.rotateRight(in.getInt(p), 8);
+            }
+            return 0xff000000 | (in.get(p) & 0xff) << 16
+                    | (in.get(p + 1) & 0xff) << 8 | (in.get(p + 2) & 0xff);
+        }
+    }
+
+    /**
+     * Filters with several simulations in one pass over the pixels. The
+     * linear rgb values of a color are looked up once for all simulations,
+     * and the converted colors of all simulations are stored together in one
+     * direct mapped cache. The destination pixels of all simulations are
+     * written while the source pixel is in the processor cache.
+     *
+     * Simulations with SIMD kernels are not fused, because the SIMD kernels
+     * are faster. Instead, the pixels are filtered in chunks small enough to
+     * stay in the processor cache, and each chunk is filtered by the SIMD
+     * kernels and the fused scalar kernel one after the other.
+     */
+    private final class FusedFilter implements PixelFilter {
+
+        /**
+         * The number of cache entries, a power of 2.
+         */
+        private static final int CACHE_BITS = 12;
+
+        /**
+         * The filters converted by the fused scalar kernel, and their
+         * destination pixels.
+         */
+        private final SimulationFilter[] filters;
+        private final int[][] outData;
+
+        /**
+         * The filters with SIMD kernels, and their destination pixels.
+         */
+        private final SimulationFilter[] vectorFilters;
+        private final int[][] vectorOutData;
+
+        /**
+         * If true, the alpha of the source pixels is kept.
+         */
+        private final boolean alpha;
+
+        /**
+         * Creates a new filter. The destination passed to filter() is
+         * ignored.
+         *
+         * @param filters The filters.
+         * @param outData The destination pixels for each filter.
+         * @param alpha If true, the alpha of the source pixels is kept.
+         */
+        FusedFilter(SimulationFilter[] filters, int[][] outData, boolean alpha) {
+            int vectorCount = 0;
+            for (SimulationFilter filter : filters) {
+                if (VECTOR_KERNELS != null && filter.hasVectorKernel()) {
+                    vectorCount++;
+                }
+            }
+            this.filters = new SimulationFilter[filters.length - vectorCount];
+            this.outData = new int[filters.length - vectorCount][];
+            vectorFilters = new SimulationFilter[vectorCount];
+            vectorOutData = new int[vectorCount][];
+            int scalar = 0;
+            int vector = 0;
+            for (int k = 0; k < filters.length; k++) {
+                if (VECTOR_KERNELS != null && filters[k].hasVectorKernel()) {
+                    vectorFilters[vector] = filters[k];
+                    vectorOutData[vector++] = outData[k];
+                } else {
+                    this.filters[scalar] = filters[k];
+                    this.outData[scalar++] = outData[k];
+                }
+            }
+            this.alpha = alpha;
+        }
+
+        /**
+         * Converts a color with all filters of the fused scalar kernel.
+         *
+         * @param rgb The color.
+         * @param values Receives the converted colors.
+         * @param offset The index in values of the first converted color.
+         */
+        private void convert(int rgb, int[] values, int offset) {
+            final int r_lin = SRGB_TO_LINRGB[(rgb >> 16) & 0xff];
+            final int g_lin = SRGB_TO_LINRGB[(rgb >> 8) & 0xff];
+            final int b_lin = SRGB_TO_LINRGB[rgb & 0xff];
+            for (int k = 0; k < filters.length; k++) {
+                final int out = filters[k].convert(rgb, r_lin, g_lin, b_lin);
+                values[offset + k] = alpha ? (out & 0xffffff) | (rgb & 0xff000000) : out;
             }
-            int width = src.getWidth();
-            int height = src.getHeight();
-            BufferedImage image = new BufferedImage(destCM,
-                    destCM.createCompatibleWritableRaster(width, height),
-                    destCM.isAlphaPremultiplied(), null);
-            return image;
         }
 
         @Override
-        public Point2D getPoint2D(Point2D srcPt, Point2D dstPt) {
-            if (dstPt == null) {
-                dstPt = new Point2D.Float();
+        public void filter(int[] inData, int[] ignored, int from, int to) {
+            if (from >= to) {
+                return;
             }
-            dstPt.setLocation(srcPt.getX(), srcPt.getY());
-            return dstPt;
+            final ColorCache[] caches = new ColorCache[vectorFilters.length];
+            for (int k = 0; k < caches.length; k++) {
+                caches[k] = new ColorCache(vectorFilters[k]);
+            }
+            final int n = filters.length;
+            final int[] keys = new int[1 << CACHE_BITS];
+            final int[] values = new int[n << CACHE_BITS];
+
+            // fill all entries with the converted colors of color 0
+            convert(0, values, 0);
+            for (int slot = 1; slot < keys.length; slot++) {
+                System.arraycopy(values, 0, values, slot * n, n);
+            }
+
+            int prevIn = ~inData[from];
+            int prevOffset = 0;
+            int runHits = 0;
+            int hits = 0;
+            int misses = 0;
+            for (int start = from; start < to; start += CHUNK_LENGTH) {
+                final int end = Math.min(to, start + CHUNK_LENGTH);
+                for (int k = 0; k < vectorFilters.length; k++) {
+                    vectorFilters[k].filter(inData, vectorOutData[k], start, end,
+                            caches[k], alpha);
+                }
+                if (n == 0) {
+                    continue;
+                }
+                for (int i = start; i < end; i++) {
+                    final int in = inData[i];
+                    if (in == prevIn) {
+                        runHits++;
+                    } else {
+                        final int slot = (in * 0x9E3779B1) >>> (32 - CACHE_BITS);
+                        prevOffset = slot * n;
+                        if (keys[slot] == in) {
+                            hits++;
+                        } else {
+                            misses++;
+                            convert(in, values, prevOffset);
+                            keys[slot] = in;
+                        }
+                        prevIn = in;
+                    }
+                    for (int k = 0; k < n; k++) {
+                        outData[k][i] = values[prevOffset + k];
+                    }
+                }
+            }
+            for (ColorCache cache : caches) {
+                cache.flush(cacheStatistics);
+            }
+            cacheStatistics.add(runHits, hits, misses, 0);
+        }
+    }
+
+    /**
+     * A filter converting colors with a 3D lookup table.
+     */
+    private class LutFilter extends SimulationFilter {
+
+        private final ColorLut lut;
+
+        public LutFilter(ColorLut lut) {
+            this.lut = lut;
         }
 
         @Override
-        public RenderingHints getRenderingHints() {
-            return null;
+        public int convert(int rgb) {
+            return lut.apply(rgb);
         }
     }
 }
@@ -0,0 +1,451 @@
+/*
+ * TiledProcessor.java
+ *
+ */
+package ika.colororacle;
+
+import ika.colororacle.engine.Simulation;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Simulates images that are too large to be held in memory, such as map
+ * mosaics of 40000 x 40000 pixels, and writes them to tiled TIFF files.
+ *
+ * The image is processed in rows of tiles. Each row is read with
+ * ImageReadParam.setSourceRegion and simulated while the TIFF writer encodes
+ * the rows above it. Several rows are read and simulated at the same time
+ * on the executor, but never more than fit into the memory budget; at least
+ * one row is held in memory. The rows are read one after the other, because
+ * image readers are not thread-safe.
+ *
+ * Only TIFF files, whose tiles or strips can be read independently, are read
+ * row by row. Other formats, such as PNG and JPEG, can only be decoded from
+ * the start, and reading each row would decode the image again. They are
+ * decoded once into memory if the decoded image fits into the memory budget
+ * with a row of tiles, and are rejected with an IOException otherwise.
+ *
+ * The output has 8 bits per channel and is Deflate compressed. Writing TIFF
+ * files needs the TIFF plug-in of Java 9 or newer.
+ */
+final class TiledProcessor {
+
+    private final Simulator simulator;
+    private final int tileSize;
+    private final long memoryBudget;
+    private final ExecutorService executor;
+
+    /**
+     * Creates a new processor.
+     *
+     * @param simulator The simulator.
+     * @param tileSize The width and height of the tiles in pixels.
+     * @param memoryBudget The maximum number of bytes for rows of tiles.
+     * @param executor Reads and simulates the rows of tiles.
+     */
+    TiledProcessor(Simulator simulator, int tileSize, long memoryBudget,
+            ExecutorService executor) {
+        if (tileSize < 16 || tileSize % 16 != 0) {
+            throw new IllegalArgumentException("The tile size must be a multiple of 16");
+        }
+        this.simulator = simulator;
+        this.tileSize = tileSize;
+        this.memoryBudget = memoryBudget;
+        this.executor = executor;
+    }
+
+    /**
+     * Simulates an image file and writes a tiled TIFF file.
+     *
+     * @param input The image file.
+     * @param output The TIFF file to write.
+     * @param simulation The simulation.
+     * @return The number of pixels in the image.
+     * @throws IOException If the image cannot be read or written.
+     */
+    long process(File input, File output, Simulation simulation)
+            throws IOException {
+        final Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("tiff");
+        if (!writers.hasNext()) {
+            throw new IOException("Tiled output needs a TIFF writer (Java 9 or newer)");
+        }
+        final ImageWriter writer = writers.next();
+        ImageReader reader = null;
+        TileRows image = null;
+        try (ImageInputStream in = ImageIO.createImageInputStream(input)) {
+            if (in == null) {
+                throw new IOException("Cannot open file");
+            }
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format");
+            }
+            reader = readers.next();
+            reader.setInput(in, false, true);
+            image = new TileRows(reader, simulation);
+
+            final ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setTiling(tileSize, tileSize, 0, 0);
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionType("Deflate");
+            output.delete();
+            try (ImageOutputStream out = ImageIO.createImageOutputStream(output)) {
+                if (out == null) {
+                    throw new IOException("Cannot create " + output);
+                }
+                writer.setOutput(out);
+                writer.write(null, new IIOImage(image, null, null), param);
+            } catch (TileException ex) {
+                throw ex.getCause();
+            }
+            return (long) image.width * image.height;
+        } finally {
+            if (image != null) {
+                image.cancel();
+            }
+            if (reader != null) {
+                reader.dispose();
+            }
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Thrown by TileRows when a row cannot be read, to pass the IOException
+     * through the TIFF writer.
+     */
+    private static final class TileException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        TileException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    /**
+     * A simulated image whose rows of tiles are read and simulated when the
+     * TIFF writer asks for them. The rows are requested from top to bottom;
+     * rows above the requested row are dropped, and the following rows are
+     * read ahead.
+     */
+    private final class TileRows implements RenderedImage {
+
+        private final ImageReader reader;
+        private final Simulation simulation;
+        private final int width;
+        private final int height;
+        private final ColorModel colorModel;
+        private final SampleModel sampleModel;
+
+        /**
+         * The rows of tiles that are read or simulated, or null.
+         */
+        private final List<Future<WritableRaster>> rows;
+
+        /**
+         * The maximum number of rows held in memory.
+         */
+        private final int maxRows;
+
+        /**
+         * True if the rows are read with setSourceRegion, false if the image
+         * is decoded once.
+         */
+        private final boolean readRows;
+
+        /**
+         * The decoded image if readRows is false, or null until it is
+         * decoded. Guarded by reader.
+         */
+        private BufferedImage decoded = null;
+
+        TileRows(ImageReader reader, Simulation simulation) throws IOException {
+            this.reader = reader;
+            this.simulation = simulation;
+            width = reader.getWidth(0);
+            height = reader.getHeight(0);
+            final ImageTypeSpecifier type = reader.getRawImageType(0);
+            final boolean alpha = type != null && type.getColorModel().hasAlpha();
+            colorModel = new ComponentColorModel(
+                    ColorSpace.getInstance(ColorSpace.CS_sRGB), alpha, false,
+                    alpha ? Transparency.TRANSLUCENT : Transparency.OPAQUE,
+                    DataBuffer.TYPE_BYTE);
+            sampleModel = colorModel.createCompatibleSampleModel(tileSize, tileSize);
+            final int numRows = getNumYTiles();
+            rows = new ArrayList<>(Collections.<Future<WritableRaster>>nCopies(numRows, null));
+
+            // a row of the source image with up to 4 bytes per pixel and a
+            // simulated row with up to 4 bytes per pixel
+            final long rowBytes = 8L * width * tileSize;
+            readRows = numRows == 1 || isRandomAccess(reader);
+            long budget = memoryBudget;
+            if (!readRows) {
+                // the decoded image with up to 4 bytes per pixel
+                final long imageBytes = 4L * width * height;
+                if (imageBytes + rowBytes > memoryBudget
+                        || (long) width * height > Integer.MAX_VALUE) {
+                    throw new IOException(String.format(Locale.US,
+                            "%s images of %d x %d pixels can only be decoded as a whole and "
+                            + "need %d MB, more than the memory budget of %d MB. Convert "
+                            + "the image to a tiled TIFF file or increase the memory budget.",
+                            reader.getFormatName().toUpperCase(Locale.US), width, height,
+                            (imageBytes + rowBytes) >> 20, memoryBudget >> 20));
+                }
+                budget -= imageBytes;
+            }
+            maxRows = (int) Math.max(1, Math.min(numRows, budget / rowBytes));
+        }
+
+        /**
+         * Returns whether regions of an image can be read without decoding
+         * the image from the start. This is the case for tiled images, and
+         * for TIFF files, which are read by strips.
+         */
+        private boolean isRandomAccess(ImageReader reader) throws IOException {
+            return reader.isImageTiled(0)
+                    || reader.getFormatName().toLowerCase(Locale.US).startsWith("tif");
+        }
+
+        /**
+         * Returns a row of tiles, and reads and simulates the following
+         * rows.
+         */
+        private WritableRaster row(int ty) {
+            final Future<WritableRaster> future;
+            synchronized (this) {
+                for (int i = 0; i < ty; i++) {
+                    rows.set(i, null);
+                }
+                for (int i = ty; i < Math.min(rows.size(), ty + maxRows); i++) {
+                    if (rows.get(i) == null) {
+                        rows.set(i, submit(i));
+                    }
+                }
+                future = rows.get(ty);
+            }
+            try {
+                return future.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new TileException(new IOException("Interrupted", ex));
+            } catch (ExecutionException ex) {
+                final Throwable cause = ex.getCause();
+                if (cause instanceof IOException) {
+                    throw new TileException((IOException) cause);
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new TileException(new IOException(cause));
+            }
+        }
+
+        private Future<WritableRaster> submit(final int ty) {
+            return executor.submit(new Callable<WritableRaster>() {
+
+                @Override
+                public WritableRaster call() throws IOException {
+                    final int y = ty * tileSize;
+                    final Rectangle region = new Rectangle(0, y, width,
+                            Math.min(tileSize, height - y));
+                    final BufferedImage src;
+                    synchronized (reader) {
+                        if (readRows) {
+                            final ImageReadParam param = reader.getDefaultReadParam();
+                            param.setSourceRegion(region);
+                            src = reader.read(0, param);
+                        } else {
+                            if (decoded == null) {
+                                decoded = reader.read(0);
+                            }
+                            src = decoded.getSubimage(region.x, region.y,
+                                    region.width, region.height);
+                        }
+                    }
+                    final WritableRaster raster = colorModel
+                            .createCompatibleWritableRaster(width, region.height);
+                    simulator.filter(simulation, src,
+                            new BufferedImage(colorModel, raster, false, null));
+                    return raster.createWritableTranslatedChild(0, y);
+                }
+            });
+        }
+
+        /**
+         * Cancels the rows that are read ahead.
+         */
+        synchronized void cancel() {
+            for (int i = 0; i < rows.size(); i++) {
+                if (rows.get(i) != null) {
+                    rows.get(i).cancel(false);
+                    rows.set(i, null);
+                }
+            }
+        }
+
+        @Override
+        public Raster getData(Rectangle rect) {
+            // a copy without gaps between rows, which the TIFF writer
+            // expects
+            rect = rect.intersection(new Rectangle(width, height));
+            final WritableRaster raster = colorModel
+                    .createCompatibleWritableRaster(rect.width, rect.height)
+                    .createWritableTranslatedChild(rect.x, rect.y);
+            copyData(raster);
+            return raster;
+        }
+
+        @Override
+        public WritableRaster copyData(WritableRaster raster) {
+            if (raster == null) {
+                raster = colorModel.createCompatibleWritableRaster(width, height);
+            }
+            final Rectangle rect = raster.getBounds().intersection(
+                    new Rectangle(width, height));
+            if (rect.isEmpty()) {
+                return raster;
+            }
+            for (int ty = rect.y / tileSize; ty <= (rect.y + rect.height - 1) / tileSize; ty++) {
+                final WritableRaster row = row(ty);
+                final Rectangle r = row.getBounds().intersection(rect);
+                raster.setRect(row.createChild(r.x, r.y, r.width, r.height,
+                        r.x, r.y, null));
+            }
+            return raster;
+        }
+
+        @Override
+        public Raster getData() {
+            return getData(new Rectangle(width, height));
+        }
+
+        @Override
+        public Raster getTile(int tileX, int tileY) {
+            return getData(new Rectangle(tileX * tileSize, tileY * tileSize,
+                    tileSize, tileSize));
+        }
+
+        @Override
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            return Image.UndefinedProperty;
+        }
+
+        @Override
+        public String[] getPropertyNames() {
+            return null;
+        }
+
+        @Override
+        public ColorModel getColorModel() {
+            return colorModel;
+        }
+
+        @Override
+        public SampleModel getSampleModel() {
+            return sampleModel;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public int getMinX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinY() {
+            return 0;
+        }
+
+        @Override
+        public int getNumXTiles() {
+            return (width + tileSize - 1) / tileSize;
+        }
+
+        @Override
+        public int getNumYTiles() {
+            return (height + tileSize - 1) / tileSize;
+        }
+
+        @Override
+        public int getMinTileX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinTileY() {
+            return 0;
+        }
+
+        @Override
+        public int getTileWidth() {
+            return tileSize;
+        }
+
+        @Override
+        public int getTileHeight() {
+            return tileSize;
+        }
+
+        @Override
+        public int getTileGridXOffset() {
+            return 0;
+        }
+
+        @Override
+        public int getTileGridYOffset() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * PixelFormat.java
+ *
+ */
+package ika.colororacle.engine;
+
+/**
+ * The order of the 8 bit color components of a pixel. In byte buffers the
+ * components are stored in this order; in int buffers a pixel is one int
+ * and the components are in this order from the most significant byte. For
+ * example, argb is 0xAARRGGBB in an int buffer, and abgr is the int read
+ * from rgba bytes in little-endian order.
+ *
+ * The formats with 3 components have no alpha and are opaque; they can only
+ * be used with byte buffers.
+ */
+public enum PixelFormat {
+
+    rgba(0, 1, 2, 3),
+    bgra(2, 1, 0, 3),
+    argb(1, 2, 3, 0),
+    abgr(3, 2, 1, 0),
+    rgb(0, 1, 2, -1),
+    bgr(2, 1, 0, -1);
+
+    /**
+     * The position of each component, or -1 for no alpha.
+     */
+    final int red;
+    final int green;
+    final int blue;
+    final int alpha;
+
+    private PixelFormat(int red, int green, int blue, int alpha) {
+        this.red = red;
+        this.green = green;
+        this.blue = blue;
+        this.alpha = alpha;
+    }
+
+    /**
+     * Returns the number of bytes of a pixel: 3 or 4.
+     *
+     * @return The number of bytes of a pixel.
+     */
+    public int getBytesPerPixel() {
+        return alpha < 0 ? 3 : 4;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Simulation.java
+ *
+ */
+package ika.colororacle.engine;
+
+/**
+ * The types of color vision simulated by Color Oracle and SimulationEngine.
+ */
+public enum Simulation {
+
+    /**
+     * Normal vision, the pixels are copied.
+     */
+    normal,
+    /**
+     * Deuteranopia, missing green cones.
+     */
+    deutan,
+    /**
+     * Protanopia, missing red cones.
+     */
+    protan,
+    /**
+     * Tritanopia, missing blue cones.
+     */
+    tritan,
+    /**
+     * Grayscale, no color vision.
+     */
+    grayscale
+}
@@ -0,0 +1,240 @@
+/*
+ * SimulationEngine.java
+ *
+ */
+package ika.colororacle.engine;
+
+import ika.colororacle.Simulator;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ReadOnlyBufferException;
+
+/**
+ * Simulates color-impaired vision for pixels in buffers, for programs that
+ * embed Color Oracle. The engine has no user interface and does not use
+ * images; it reads heap or direct buffers and writes the simulated pixels
+ * into buffers owned by the caller.
+ *
+ * Pixels are stored row after row. The stride is the distance between the
+ * first pixels of two consecutive rows, so that rows of larger buffers can
+ * be filtered. The alpha of the source pixels is kept. Buffer positions are
+ * not changed.
+ *
+ * An engine can be used by multiple threads at the same time. Large
+ * buffers are filtered in parallel on a pool of threads shared by all calls
+ * to the engine.
+ */
+public final class SimulationEngine {
+
+    /**
+     * Pixels are converted in chunks of at least this many pixels.
+     */
+    private static final int CHUNK_PIXELS = 1 << 18;
+
+    private final Kernel kernel;
+
+    /**
+     * Creates an engine using as many threads as there are processors.
+     */
+    public SimulationEngine() {
+        kernel = new Kernel(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates an engine.
+     *
+     * @param parallelism The number of threads filtering a buffer. 1 filters
+     * on the calling thread.
+     */
+    public SimulationEngine(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        kernel = new Kernel(parallelism);
+    }
+
+    /**
+     * Simulates pixels stored as ints.
+     *
+     * @param simulation The type of vision to simulate.
+     * @param src The source pixels from the position on.
+     * @param dst Receives the simulated pixels from the position on. Can be
+     * the source buffer if the strides are equal, otherwise the buffers must
+     * not overlap.
+     * @param width The number of pixels in a row.
+     * @param height The number of rows.
+     * @param srcStride The number of ints from a row to the next row of the
+     * source.
+     * @param dstStride The number of ints from a row to the next row of the
+     * destination.
+     * @param format The order of the components. Must have 4 components.
+     */
+    public void filter(Simulation simulation, IntBuffer src, IntBuffer dst,
+            int width, int height, int srcStride, int dstStride,
+            PixelFormat format) {
+        if (format.getBytesPerPixel() != 4) {
+            throw new IllegalArgumentException("Int pixels must have 4 components");
+        }
+        checkArguments(src, dst, width, height, srcStride, dstStride, 1);
+
+        // packed pixels in arrays are filtered without copying
+        if (format == PixelFormat.argb && src.hasArray() && dst.hasArray()
+                && srcStride == width && dstStride == width) {
+            kernel.filter(simulation, src.array(), src.arrayOffset() + src.position(),
+                    dst.array(), dst.arrayOffset() + dst.position(), width, height);
+            return;
+        }
+
+        final IntBuffer in = src.duplicate();
+        final IntBuffer out = dst.duplicate();
+        final int rowsPerChunk = rowsPerChunk(width, height);
+        final int[] pixels = new int[rowsPerChunk * width];
+        for (int y = 0; y < height; y += rowsPerChunk) {
+            final int rows = Math.min(rowsPerChunk, height - y);
+            for (int r = 0; r < rows; r++) {
+                in.position(src.position() + (y + r) * srcStride);
+                in.get(pixels, r * width, width);
+            }
+            if (format != PixelFormat.argb) {
+                toARGB(pixels, rows * width, format);
+            }
+            kernel.filter(simulation, pixels, 0, pixels, 0, width, rows);
+            if (format != PixelFormat.argb) {
+                fromARGB(pixels, rows * width, format);
+            }
+            for (int r = 0; r < rows; r++) {
+                out.position(dst.position() + (y + r) * dstStride);
+                out.put(pixels, r * width, width);
+            }
+        }
+    }
+
+    /**
+     * Simulates pixels stored as bytes.
+     *
+     * @param simulation The type of vision to simulate.
+     * @param src The source pixels from the position on.
+     * @param dst Receives the simulated pixels from the position on. Can be
+     * the source buffer if the strides are equal, otherwise the buffers must
+     * not overlap.
+     * @param width The number of pixels in a row.
+     * @param height The number of rows.
+     * @param srcStride The number of bytes from a row to the next row of the
+     * source.
+     * @param dstStride The number of bytes from a row to the next row of the
+     * destination.
+     * @param format The order of the components.
+     */
+    public void filter(Simulation simulation, ByteBuffer src, ByteBuffer dst,
+            int width, int height, int srcStride, int dstStride,
+            PixelFormat format) {
+        final int bytesPerPixel = format.getBytesPerPixel();
+        checkArguments(src, dst, width, height, srcStride, dstStride, bytesPerPixel);
+
+        final ByteBuffer in = src.duplicate();
+        final ByteBuffer out = dst.duplicate();
+        final int rowBytes = width * bytesPerPixel;
+        final int rowsPerChunk = rowsPerChunk(rowBytes, height);
+        final byte[] bytes = new byte[rowsPerChunk * rowBytes];
+        final int[] pixels = new int[rowsPerChunk * width];
+        final int red = format.red;
+        final int green = format.green;
+        final int blue = format.blue;
+        final int alpha = format.alpha;
+        for (int y = 0; y < height; y += rowsPerChunk) {
+            final int rows = Math.min(rowsPerChunk, height - y);
+            for (int r = 0; r < rows; r++) {
+                in.position(src.position() + (y + r) * srcStride);
+                in.get(bytes, r * rowBytes, rowBytes);
+            }
+            final int length = rows * width;
+            for (int i = 0, j = 0; i < length; i++, j += bytesPerPixel) {
+                final int a = alpha < 0 ? 0xff000000 : bytes[j + alpha] << 24;
+                pixels[i] = a | (bytes[j + red] & 0xff) << 16
+                        | (bytes[j + green] & 0xff) << 8 | (bytes[j + blue] & 0xff);
+            }
+            kernel.filter(simulation, pixels, 0, pixels, 0, width, rows);
+            for (int i = 0, j = 0; i < length; i++, j += bytesPerPixel) {
+                final int c = pixels[i];
+                bytes[j + red] = (byte) (c >> 16);
+                bytes[j + green] = (byte) (c >> 8);
+                bytes[j + blue] = (byte) c;
+                if (alpha >= 0) {
+                    bytes[j + alpha] = (byte) (c >>> 24);
+                }
+            }
+            for (int r = 0; r < rows; r++) {
+                out.position(dst.position() + (y + r) * dstStride);
+                out.put(bytes, r * rowBytes, rowBytes);
+            }
+        }
+    }
+
+    /**
+     * Throws an exception if the buffers are too small for the pixels.
+     */
+    private static void checkArguments(Buffer src, Buffer dst, int width,
+            int height, int srcStride, int dstStride, int elementsPerPixel) {
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException("Invalid size");
+        }
+        final long rowLength = (long) width * elementsPerPixel;
+        if (srcStride < rowLength || dstStride < rowLength) {
+            throw new IllegalArgumentException("The stride is smaller than a row");
+        }
+        if (dst.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+        if (height > 0 && ((long) (height - 1) * srcStride + rowLength > src.remaining()
+                || (long) (height - 1) * dstStride + rowLength > dst.remaining())) {
+            throw new IndexOutOfBoundsException("The buffer is too small");
+        }
+    }
+
+    /**
+     * Returns the number of rows converted at once.
+     */
+    private static int rowsPerChunk(int rowLength, int height) {
+        return Math.max(1, Math.min(height, CHUNK_PIXELS / Math.max(1, rowLength)));
+    }
+
+    private static void toARGB(int[] pixels, int length, PixelFormat format) {
+        final int red = 24 - 8 * format.red;
+        final int green = 24 - 8 * format.green;
+        final int blue = 24 - 8 * format.blue;
+        final int alpha = 24 - 8 * format.alpha;
+        for (int i = 0; i < length; i++) {
+            final int c = pixels[i];
+            pixels[i] = (c >>> alpha & 0xff) << 24 | (c >>> red & 0xff) << 16
+                    | (c >>> green & 0xff) << 8 | (c >>> blue & 0xff);
+        }
+    }
+
+    private static void fromARGB(int[] pixels, int length, PixelFormat format) {
+        final int red = 24 - 8 * format.red;
+        final int green = 24 - 8 * format.green;
+        final int blue = 24 - 8 * format.blue;
+        final int alpha = 24 - 8 * format.alpha;
+        for (int i = 0; i < length; i++) {
+            final int c = pixels[i];
+            pixels[i] = (c >>> 24) << alpha | (c >> 16 & 0xff) << red
+                    | (c >> 8 & 0xff) << green | (c & 0xff) << blue;
+        }
+    }
+
+    /**
+     * Gives access to the kernels of the simulator.
+     */
+    private static final class Kernel extends Simulator {
+
+        Kernel(int parallelism) {
+            super(parallelism);
+        }
+
+        void filter(Simulation type, int[] src, int srcOff,
+                int[] dst, int dstOff, int width, int rows) {
+            filterRows(type, src, srcOff, dst, dstOff, width, rows);
+        }
+    }
+}
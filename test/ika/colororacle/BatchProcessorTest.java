@@ -0,0 +1,197 @@
+/*
+ * BatchProcessorTest.java
+ *
+ */
+package ika.colororacle;
+
+import ika.colororacle.engine.Simulation;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import javax.imageio.ImageIO;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the names of the output files of the batch mode, its summary, and
+ * that the manifest skips inputs whose output files are current.
+ */
+public class BatchProcessorTest {
+
+    /**
+     * The modification time set on output files to find out whether they
+     * are written again.
+     */
+    private static final long OLD_TIME = 1000000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File output;
+
+    @Before
+    public void createOutputDirectory() throws IOException {
+        output = folder.newFolder("output");
+    }
+
+    private static void writeImage(File file, int width, int height, long seed)
+            throws IOException {
+        final BufferedImage image = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, width, height,
+                SimulatorTest.testPixels(width, height, seed), 0, width);
+        file.getParentFile().mkdirs();
+        final String name = file.getName();
+        assertTrue(ImageIO.write(image, name.substring(name.lastIndexOf('.') + 1), file));
+    }
+
+    private static void writeImage(File file, long seed) throws IOException {
+        writeImage(file, 40, 30, seed);
+    }
+
+    /**
+     * Runs the batch mode with the output directory and the options.
+     */
+    private int run(String... options) {
+        final String[] args = new String[options.length + 3];
+        args[0] = BatchProcessor.OPTION;
+        args[1] = "-o";
+        args[2] = output.getPath();
+        System.arraycopy(options, 0, args, 3, options.length);
+        return BatchProcessor.run(args);
+    }
+
+    /**
+     * Runs the batch mode with the deutan simulation.
+     */
+    private int batch(String... inputs) {
+        final String[] options = new String[inputs.length + 2];
+        options[0] = "-s";
+        options[1] = "deutan";
+        System.arraycopy(inputs, 0, options, 2, inputs.length);
+        return run(options);
+    }
+
+    @Test
+    public void outputIsSimulated() throws IOException {
+        final File input = new File(folder.getRoot(), "map.png");
+        writeImage(input, 1);
+        assertEquals(0, batch(input.getPath()));
+        final BufferedImage normal = ImageIO.read(input);
+        final BufferedImage expected = new Simulator(1).filter(Simulation.deutan, normal, null);
+        final BufferedImage simulated = ImageIO.read(new File(output, "map-deutan.png"));
+        for (int y = 0; y < normal.getHeight(); y++) {
+            for (int x = 0; x < normal.getWidth(); x++) {
+                assertEquals(expected.getRGB(x, y), simulated.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void equalBaseNamesKeepTheExtension() throws IOException {
+        final File input = new File(folder.getRoot(), "maps");
+        writeImage(new File(input, "a.png"), 1);
+        writeImage(new File(input, "a.jpg"), 2);
+        writeImage(new File(input, "b.png"), 3);
+        assertEquals(0, batch(input.getPath()));
+        assertTrue(new File(output, "maps/a.png-deutan.png").isFile());
+        assertTrue(new File(output, "maps/a.jpg-deutan.png").isFile());
+        assertTrue(new File(output, "maps/b-deutan.png").isFile());
+        assertFalse(new File(output, "maps/a-deutan.png").exists());
+    }
+
+    @Test
+    public void directoriesAreRootedUnderTheirNames() throws IOException {
+        final File first = new File(folder.getRoot(), "first");
+        final File second = new File(folder.getRoot(), "second");
+        writeImage(new File(first, "a.png"), 1);
+        writeImage(new File(second, "a.png"), 2);
+        assertEquals(0, batch(first.getPath(), second.getPath()));
+        assertTrue(new File(output, "first/a-deutan.png").isFile());
+        assertTrue(new File(output, "second/a-deutan.png").isFile());
+    }
+
+    @Test
+    public void collisionsAreRejected() throws IOException {
+        final File first = new File(folder.getRoot(), "x/maps");
+        final File second = new File(folder.getRoot(), "y/maps");
+        writeImage(new File(first, "a.png"), 1);
+        writeImage(new File(second, "a.png"), 2);
+        assertEquals(2, batch(first.getPath(), second.getPath()));
+        assertFalse(new File(output, "maps").exists());
+    }
+
+    @Test
+    public void pixelsOfEveryTiledSimulationAreCounted() throws IOException {
+        // tiled images are read once per simulation
+        final File input = new File(folder.getRoot(), "map.png");
+        writeImage(input, 1000, 500, 4);
+        final PrintStream out = System.out;
+        final ByteArrayOutputStream summary = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(summary, true, "UTF-8"));
+        try {
+            assertEquals(0, run("-s", "deutan,protan,tritan", "-tile", "256",
+                    input.getPath()));
+        } finally {
+            System.setOut(out);
+        }
+        assertTrue(summary.toString("UTF-8"),
+                summary.toString("UTF-8").contains("1.5 megapixels"));
+        assertTrue(new File(output, "map-tritan.tif").isFile());
+    }
+
+    @Test
+    public void currentOutputsAreSkipped() throws IOException {
+        final File input = new File(folder.getRoot(), "map.png");
+        final File simulated = new File(output, "map-deutan.png");
+        writeImage(input, 1);
+        assertEquals(0, batch(input.getPath()));
+        assertTrue(simulated.setLastModified(OLD_TIME));
+
+        // unchanged input
+        assertEquals(0, batch(input.getPath()));
+        assertEquals(OLD_TIME, simulated.lastModified());
+
+        // forced
+        assertEquals(0, batch("-force", input.getPath()));
+        assertNotEquals(OLD_TIME, simulated.lastModified());
+        assertTrue(simulated.setLastModified(OLD_TIME));
+
+        // changed input
+        writeImage(input, 2);
+        assertEquals(0, batch(input.getPath()));
+        assertNotEquals(OLD_TIME, simulated.lastModified());
+
+        // deleted output
+        assertTrue(simulated.delete());
+        assertEquals(0, batch(input.getPath()));
+        assertTrue(simulated.isFile());
+    }
+
+    @Test
+    public void outputsOfOtherInputsAreNotCurrent() throws IOException {
+        // two inputs with the same content are written to the same output
+        final File first = new File(folder.getRoot(), "first/map.png");
+        final File second = new File(folder.getRoot(), "second/map.png");
+        final File simulated = new File(output, "map-deutan.png");
+        writeImage(first, 1);
+        writeImage(second, 1);
+        assertEquals(0, batch(first.getPath()));
+        assertTrue(simulated.setLastModified(OLD_TIME));
+        assertEquals(0, batch(second.getPath()));
+        assertNotEquals(OLD_TIME, simulated.lastModified());
+
+        // the entry of the second input replaced the entry of the first
+        assertTrue(simulated.setLastModified(OLD_TIME));
+        assertEquals(0, batch(second.getPath()));
+        assertEquals(OLD_TIME, simulated.lastModified());
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * ColorCacheTest.java
+ *
+ */
+package ika.colororacle;
+
+import ika.colororacle.engine.Simulation;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests that the color cache replaces the oldest color of a full set, and
+ * that it is bypassed for pixels with few repeated colors.
+ */
+public class ColorCacheTest {
+
+    /**
+     * Counts the converted colors.
+     */
+    private static final class CountingConverter implements ColorCache.Converter {
+
+        int conversions = 0;
+
+        @Override
+        public int convert(int rgb) {
+            conversions++;
+            return ~rgb;
+        }
+    }
+
+    /**
+     * Returns colors that are all stored in the same set of the cache.
+     */
+    private static int[] colorsOfOneSet(int count) {
+        final List<Integer> colors = new ArrayList<>();
+        final int set = (0x123456 * 0x9E3779B1) >>> 22;
+        for (int rgb = 0x123456; colors.size() < count; rgb++) {
+            if ((rgb * 0x9E3779B1) >>> 22 == set) {
+                colors.add(rgb);
+            }
+        }
+        final int[] array = new int[count];
+        for (int i = 0; i < count; i++) {
+            array[i] = colors.get(i);
+        }
+        return array;
+    }
+
+    @Test
+    public void oldestColorOfFullSetIsReplaced() {
+        final CountingConverter converter = new CountingConverter();
+        final ColorCache cache = new ColorCache(converter);
+        final int[] colors = colorsOfOneSet(5);
+        converter.conversions = 0;
+        for (int i = 0; i < 4; i++) {
+            assertEquals(~colors[i], cache.get(colors[i]));
+        }
+        for (int i = 0; i < 4; i++) {
+            assertEquals(~colors[i], cache.get(colors[i]));
+        }
+        assertEquals(4, converter.conversions);
+        assertEquals(4, cache.hits);
+        assertEquals(4, cache.misses);
+
+        // the fifth color replaces the first, which then replaces the second
+        assertEquals(~colors[4], cache.get(colors[4]));
+        assertEquals(~colors[0], cache.get(colors[0]));
+        assertEquals(6, converter.conversions);
+        assertEquals(~colors[2], cache.get(colors[2]));
+        assertEquals(~colors[3], cache.get(colors[3]));
+        assertEquals(~colors[4], cache.get(colors[4]));
+        assertEquals(6, converter.conversions);
+        assertEquals(~colors[1], cache.get(colors[1]));
+        assertEquals(7, converter.conversions);
+
+        final ColorCache.Statistics statistics = new ColorCache.Statistics();
+        cache.flush(statistics);
+        assertEquals(7, statistics.getHits());
+        assertEquals(7, statistics.getMisses());
+        assertEquals(0, cache.hits);
+    }
+
+    @Test
+    public void cacheIsBypassedIfFewColorsRepeat() {
+        final ColorCache noise = new ColorCache(new CountingConverter());
+        final Random random = new Random(1);
+        for (int i = 0; i < ColorCache.PROBE_LENGTH; i++) {
+            noise.get(random.nextInt());
+        }
+        noise.probed(ColorCache.PROBE_LENGTH - 1);
+        assertFalse(noise.isBypassed());
+        noise.probed(1);
+        assertTrue(noise.isBypassed());
+        assertEquals(0, noise.getProbeLength());
+
+        final ColorCache palette = new ColorCache(new CountingConverter());
+        for (int i = 0; i < ColorCache.PROBE_LENGTH; i++) {
+            palette.get(random.nextInt(100));
+        }
+        palette.probed(ColorCache.PROBE_LENGTH);
+        assertFalse(palette.isBypassed());
+    }
+
+    @Test
+    public void filteringNoiseBypassesCache() {
+        // the normal simulation has no SIMD kernel, so that all pixels are
+        // filtered by the scalar kernel
+        final Simulator simulator = new Simulator(1);
+        simulator.setColorCompaction(Simulator.ColorCompaction.never);
+        final ColorCache.Statistics statistics = simulator.getCacheStatistics();
+        final Random random = new Random(2);
+        final int[] noise = new int[5 * ColorCache.PROBE_LENGTH];
+        for (int i = 0; i < noise.length; i++) {
+            noise[i] = random.nextInt();
+        }
+        final int[] simulated = new int[noise.length];
+        simulator.filterRows(Simulation.normal, noise, 0, simulated, 0, noise.length, 1);
+        assertEquals(noise.length - ColorCache.PROBE_LENGTH, statistics.getUncached());
+        for (int i = 0; i < noise.length; i++) {
+            assertEquals(noise[i], simulated[i]);
+        }
+
+        statistics.reset();
+        final int[] map = SimulatorTest.testPixels(noise.length, 1, 3);
+        for (int i = 0; i < map.length; i++) {
+            map[i] = map[i % 100];
+        }
+        simulator.filterRows(Simulation.normal, map, 0, simulated, 0, map.length, 1);
+        assertEquals(0, statistics.getUncached());
+        assertTrue(statistics.getHitRate() > 0.9);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * ColorLutTest.java
+ *
+ */
+package ika.colororacle;
+
+import ika.colororacle.engine.Simulation;
+import java.io.File;
+import java.io.IOException;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that lookup tables survive a round trip through a .cube file, and
+ * that tables sampled from the simulations approximate them closely.
+ */
+public class ColorLutTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void cubeFileRoundTrip() throws IOException {
+        final Simulator simulator = new Simulator(1);
+        for (ColorLut.Interpolation interpolation : ColorLut.Interpolation.values()) {
+            final ColorLut lut = simulator.createLut(Simulation.tritan, 17, interpolation);
+            final File file = folder.newFile("tritan-" + interpolation + ".cube");
+            lut.write(file);
+            final ColorLut read = ColorLut.read(file, interpolation);
+            assertEquals(17, read.getSize());
+            assertEquals("tritan", read.getTitle());
+            for (int rgb = 0; rgb < 1 << 24; rgb += 61) {
+                assertEquals(Integer.toHexString(rgb), lut.apply(rgb), read.apply(rgb));
+            }
+        }
+    }
+
+    @Test
+    public void tablesOf33NodesApproximateTheSimulations() {
+        final Simulator simulator = new Simulator(1);
+        for (Simulation simulation : Simulation.values()) {
+            for (ColorLut.Interpolation interpolation : ColorLut.Interpolation.values()) {
+                final ColorLut lut = simulator.createLut(simulation, 33, interpolation);
+                final ColorLut.Accuracy accuracy = simulator.measureLutError(simulation, lut);
+                if (simulation == Simulation.normal) {
+                    assertEquals(accuracy.toString(), 0, accuracy.maxError);
+                } else {
+                    // the largest errors are in dark colors, where sRGB
+                    // changes fastest with linear rgb
+                    assertTrue(accuracy.toString(), accuracy.maxError <= 24);
+                    assertTrue(accuracy.toString(), accuracy.meanError < 0.55);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void lookupTableReplacesSimulation() {
+        final Simulator simulator = new Simulator(1);
+        final ColorLut lut = simulator.createLut(Simulation.deutan, 33,
+                ColorLut.Interpolation.tetrahedral);
+        final int[] pixels = SimulatorTest.testPixels(100, 60, 1);
+        final int[] simulated = new int[pixels.length];
+        simulator.setLut(Simulation.deutan, lut);
+        simulator.filterRows(Simulation.deutan, pixels, 0, simulated, 0, 100, 60);
+        for (int i = 0; i < pixels.length; i++) {
+            assertEquals((pixels[i] & 0xff000000) | (lut.apply(pixels[i]) & 0xffffff),
+                    simulated[i]);
+        }
+        simulator.setLut(Simulation.deutan, null);
+        final int[] exact = new int[pixels.length];
+        simulator.filterRows(Simulation.deutan, pixels, 0, exact, 0, 100, 60);
+        final int[] expected = SimulatorTest.data(new Simulator(1).filter(
+                Simulation.deutan, SimulatorTest.testImage(100, 60, 1), null));
+        assertArrayEquals(expected, exact);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * PipeProcessorTest.java
+ *
+ */
+package ika.colororacle;
+
+import ika.colororacle.engine.Simulation;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests that streamed frames of every byte order are simulated like packed
+ * int pixels, independent of the byte order of the platform.
+ */
+public class PipeProcessorTest {
+
+    private static final int WIDTH = 123;
+    private static final int HEIGHT = 45;
+    private static final int FRAMES = 5;
+
+    /**
+     * Returns pixels as bytes in the order of a format.
+     */
+    private static byte[] bytes(int[] pixels, String format) {
+        final byte[] bytes = new byte[pixels.length * format.length()];
+        for (int i = 0, j = 0; i < pixels.length; i++, j += format.length()) {
+            final int c = pixels[i];
+            bytes[j + format.indexOf('r')] = (byte) (c >> 16);
+            bytes[j + format.indexOf('g')] = (byte) (c >> 8);
+            bytes[j + format.indexOf('b')] = (byte) c;
+            if (format.indexOf('a') >= 0) {
+                bytes[j + format.indexOf('a')] = (byte) (c >>> 24);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Streams frames through a processor and returns the written bytes.
+     */
+    private static byte[] process(Simulation simulation, String format,
+            byte[] input) throws IOException, InterruptedException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final PipeProcessor processor = new PipeProcessor(simulation, WIDTH, HEIGHT, format);
+        assertEquals(input.length / (WIDTH * HEIGHT * format.length()),
+                processor.process(Channels.newChannel(new ByteArrayInputStream(input)),
+                        Channels.newChannel(output)));
+        return output.toByteArray();
+    }
+
+    @Test
+    public void framesOfEveryFormatAreSimulated() throws Exception {
+        final Simulator simulator = new Simulator(1);
+        for (String format : new String[]{"rgba", "bgra", "argb", "abgr", "rgb", "bgr"}) {
+            final ByteArrayOutputStream input = new ByteArrayOutputStream();
+            final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            for (int i = 0; i < FRAMES; i++) {
+                final int[] pixels = SimulatorTest.testPixels(WIDTH, HEIGHT, i);
+                if (format.length() == 3) {
+                    for (int j = 0; j < pixels.length; j++) {
+                        pixels[j] |= 0xff000000;
+                    }
+                }
+                input.write(bytes(pixels, format));
+                simulator.filterRows(Simulation.tritan, pixels, 0, pixels, 0, WIDTH, HEIGHT);
+                expected.write(bytes(pixels, format));
+            }
+            assertArrayEquals(format, expected.toByteArray(),
+                    process(Simulation.tritan, format, input.toByteArray()));
+        }
+    }
+
+    @Test
+    public void emptyStreamsHaveNoFrames() throws Exception {
+        assertEquals(0, process(Simulation.deutan, "rgba", new byte[0]).length);
+    }
+
+    @Test
+    public void incompleteFramesAreRejected() throws Exception {
+        final byte[] input = bytes(SimulatorTest.testPixels(WIDTH, HEIGHT, 1), "rgba");
+        try {
+            process(Simulation.deutan, "rgba", Arrays.copyOf(input, input.length * 2 - 1));
+            fail("The last frame is incomplete");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * PixelLayoutTest.java
+ *
+ */
+package ika.colororacle;
+
+import ika.colororacle.engine.Simulation;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests that images of any type are filtered in their own layout, and give
+ * the same colors as filtering packed int pixels.
+ */
+public class PixelLayoutTest {
+
+    private static final int WIDTH = 301;
+    private static final int HEIGHT = 203;
+
+    private static BufferedImage image(int type, long seed) {
+        final BufferedImage image = new BufferedImage(WIDTH, HEIGHT, type);
+        image.setRGB(0, 0, WIDTH, HEIGHT,
+                SimulatorTest.testPixels(WIDTH, HEIGHT, seed), 0, WIDTH);
+        return image;
+    }
+
+    private static int[] rgb(BufferedImage image) {
+        final int w = image.getWidth();
+        return image.getRGB(0, 0, w, image.getHeight(), null, 0, w);
+    }
+
+    /**
+     * Filters the colors of an image as packed int pixels and stores them in
+     * a new image of the same type.
+     */
+    private static BufferedImage expected(Simulator simulator,
+            Simulation simulation, BufferedImage image, int type) {
+        final int w = image.getWidth();
+        final int h = image.getHeight();
+        final int[] pixels = rgb(image);
+        simulator.filterRows(simulation, pixels, 0, pixels, 0, w, h);
+        final BufferedImage expected = new BufferedImage(w, h, type);
+        expected.setRGB(0, 0, w, h, pixels, 0, w);
+        return expected;
+    }
+
+    @Test
+    public void rowsAreReadLikeGetRGB() {
+        final int[] types = {
+            BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB,
+            BufferedImage.TYPE_INT_BGR, BufferedImage.TYPE_3BYTE_BGR,
+            BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_USHORT_565_RGB,
+            BufferedImage.TYPE_USHORT_555_RGB, BufferedImage.TYPE_BYTE_INDEXED
+        };
+        final int[] row = new int[WIDTH];
+        for (int type : types) {
+            final BufferedImage image = image(type, type);
+            final PixelLayout layout = PixelLayout.of(image);
+            final int[] expected = rgb(image);
+            for (int y = 0; y < HEIGHT; y++) {
+                layout.readRow(y, row);
+                for (int x = 0; x < WIDTH; x++) {
+                    assertEquals("type " + type + " at " + x + ", " + y,
+                            expected[y * WIDTH + x], row[x]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void bytesAndShortsAreFilteredInTheirLayout() {
+        final int[] types = {
+            BufferedImage.TYPE_INT_BGR, BufferedImage.TYPE_3BYTE_BGR,
+            BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_USHORT_565_RGB,
+            BufferedImage.TYPE_USHORT_555_RGB
+        };
+        final Simulator simulator = new Simulator(4);
+        for (int type : types) {
+            final BufferedImage image = image(type, 2);
+            for (Simulation simulation : Simulation.values()) {
+                final BufferedImage simulated = simulator.filter(simulation, image, null);
+                assertEquals(type, simulated.getType());
+                assertArrayEquals("type " + type + ", " + simulation,
+                        rgb(expected(simulator, simulation, image, type)),
+                        rgb(simulated));
+            }
+        }
+    }
+
+    @Test
+    public void subimagesAreFilteredInPlace() {
+        final BufferedImage image = image(BufferedImage.TYPE_3BYTE_BGR, 3);
+        final BufferedImage copy = image(BufferedImage.TYPE_3BYTE_BGR, 3);
+        final BufferedImage sub = image.getSubimage(17, 23, 100, 80);
+        final Simulator simulator = new Simulator(1);
+        final BufferedImage expected = expected(simulator, Simulation.tritan,
+                copy.getSubimage(17, 23, 100, 80), BufferedImage.TYPE_INT_RGB);
+        simulator.filter(Simulation.tritan, sub, sub);
+        assertArrayEquals(rgb(expected), rgb(sub));
+
+        // the pixels around the subimage are unchanged
+        final int[] pixels = rgb(image);
+        final int[] unchanged = rgb(copy);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                if (x < 17 || x >= 117 || y < 23 || y >= 103) {
+                    assertEquals(unchanged[y * WIDTH + x], pixels[y * WIDTH + x]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void grayValuesAreFilteredAsSRGB() {
+        final BufferedImage image = new BufferedImage(256, 4,
+                BufferedImage.TYPE_BYTE_GRAY);
+        final WritableRaster raster = image.getRaster();
+        for (int x = 0; x < 256; x++) {
+            for (int y = 0; y < 4; y++) {
+                raster.setSample(x, y, 0, x);
+            }
+        }
+        final Simulator simulator = new Simulator(1);
+        final Raster normal = simulator.filter(Simulation.normal, image, null).getRaster();
+        final Raster deutan = simulator.filter(Simulation.deutan, image, null).getRaster();
+        final int[] gray = new int[256];
+        for (int x = 0; x < 256; x++) {
+            gray[x] = 0xff000000 | x * 0x10101;
+        }
+        simulator.filterRows(Simulation.deutan, gray, 0, gray, 0, 256, 1);
+        for (int x = 0; x < 256; x++) {
+            assertEquals(x, normal.getSample(x, 3, 0));
+            final double luma = 0.299 * ((gray[x] >> 16) & 0xff)
+                    + 0.587 * ((gray[x] >> 8) & 0xff) + 0.114 * (gray[x] & 0xff);
+            assertTrue(x + ": " + deutan.getSample(x, 3, 0),
+                    Math.abs(deutan.getSample(x, 3, 0) - luma) <= 1);
+        }
+    }
+
+    @Test
+    public void ushortGrayIsWrittenWith16Bits() {
+        final BufferedImage image = new BufferedImage(WIDTH, 2,
+                BufferedImage.TYPE_USHORT_GRAY);
+        final WritableRaster raster = image.getRaster();
+        final Random random = new Random(4);
+        for (int x = 0; x < WIDTH; x++) {
+            raster.setSample(x, 0, 0, random.nextInt(65536));
+            raster.setSample(x, 1, 0, x * 217);
+        }
+        final Raster normal = new Simulator(1).filter(Simulation.normal, image, null)
+                .getRaster();
+        for (int y = 0; y < 2; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(raster.getSample(x, y, 0), normal.getSample(x, y, 0));
+            }
+        }
+    }
+
+    private static WritableRaster bandedRaster() {
+        return Raster.createWritableRaster(
+                new BandedSampleModel(DataBuffer.TYPE_BYTE, WIDTH, HEIGHT, 3), null);
+    }
+
+    @Test
+    public void otherImagesAreFilteredWithGetRGB() {
+        // an indexed image and an image with one bank per channel
+        final BufferedImage indexed = image(BufferedImage.TYPE_BYTE_INDEXED, 5);
+        final ComponentColorModel cm = new ComponentColorModel(
+                ColorSpace.getInstance(ColorSpace.CS_sRGB), false, false,
+                Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+        final BufferedImage banded = new BufferedImage(cm, bandedRaster(), false, null);
+        banded.setRGB(0, 0, WIDTH, HEIGHT,
+                SimulatorTest.testPixels(WIDTH, HEIGHT, 6), 0, WIDTH);
+
+        final Simulator simulator = new Simulator(4);
+        for (Simulation simulation : Simulation.values()) {
+            final BufferedImage simulatedIndexed = simulator.filter(simulation, indexed, null);
+            assertEquals(BufferedImage.TYPE_INT_RGB, simulatedIndexed.getType());
+            assertArrayEquals(rgb(expected(simulator, simulation, indexed,
+                    BufferedImage.TYPE_INT_RGB)), rgb(simulatedIndexed));
+
+            final BufferedImage simulatedBanded = simulator.filter(simulation, banded,
+                    new BufferedImage(cm, bandedRaster(), false, null));
+            assertArrayEquals(rgb(expected(simulator, simulation, banded,
+                    BufferedImage.TYPE_INT_RGB)), rgb(simulatedBanded));
+        }
+    }
+}
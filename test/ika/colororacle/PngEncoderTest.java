@@ -0,0 +1,116 @@
+/*
+ * PngEncoderTest.java
+ *
+ */
+package ika.colororacle;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.imageio.ImageIO;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests that images written by PngEncoder are decoded by ImageIO to the same
+ * pixels, for all row filters and for images written as one or many IDAT
+ * chunks.
+ */
+public class PngEncoderTest {
+
+    private static ExecutorService executor;
+
+    @BeforeClass
+    public static void createExecutor() {
+        executor = Executors.newFixedThreadPool(3);
+    }
+
+    @AfterClass
+    public static void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns an image with smooth gradients, which the row filters predict
+     * well, and noise, which they do not.
+     */
+    private static BufferedImage testImage(int width, int height, int type) {
+        final BufferedImage image = new BufferedImage(width, height, type);
+        final Random random = new Random(width * 31L + height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int argb = y % 3 == 0 ? random.nextInt()
+                        : (x * 7 + y) << 24 | x << 16 | y << 8 | (x ^ y);
+                image.setRGB(x, y, argb);
+            }
+        }
+        return image;
+    }
+
+    private static void assertRoundTrip(BufferedImage image, PngEncoder encoder)
+            throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.write(image, out);
+        final BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+        assertNotNull(decoded);
+        assertEquals(image.getWidth(), decoded.getWidth());
+        assertEquals(image.getHeight(), decoded.getHeight());
+        assertEquals(image.getColorModel().hasAlpha(), decoded.getColorModel().hasAlpha());
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                assertEquals(x + ", " + y, image.getRGB(x, y), decoded.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void allFiltersRoundTrip() throws IOException {
+        for (PngEncoder.Filter filter : PngEncoder.Filter.values()) {
+            for (int type : new int[]{BufferedImage.TYPE_INT_ARGB,
+                BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR}) {
+                final BufferedImage image = testImage(157, 61, type);
+                assertRoundTrip(image, new PngEncoder(4, filter, null));
+            }
+        }
+    }
+
+    @Test
+    public void multipleChunksRoundTrip() throws IOException {
+        // rows of 2801 bytes, about 94 rows per chunk
+        final BufferedImage image = testImage(700, 431, BufferedImage.TYPE_INT_ARGB);
+        for (PngEncoder.Filter filter : PngEncoder.Filter.values()) {
+            assertRoundTrip(image, new PngEncoder(4, filter, null));
+            assertRoundTrip(image, new PngEncoder(4, filter, executor));
+        }
+    }
+
+    @Test
+    public void compressionLevelsRoundTrip() throws IOException {
+        final BufferedImage image = testImage(1200, 250, BufferedImage.TYPE_INT_RGB);
+        for (int level = 0; level <= 9; level++) {
+            assertRoundTrip(image, new PngEncoder(level, PngEncoder.Filter.adaptive, executor));
+        }
+    }
+
+    @Test
+    public void smallImagesRoundTrip() throws IOException {
+        for (PngEncoder.Filter filter : PngEncoder.Filter.values()) {
+            final PngEncoder encoder = new PngEncoder(6, filter, executor);
+            assertRoundTrip(testImage(1, 1, BufferedImage.TYPE_INT_ARGB), encoder);
+            assertRoundTrip(testImage(1, 500, BufferedImage.TYPE_INT_RGB), encoder);
+            assertRoundTrip(testImage(500, 1, BufferedImage.TYPE_INT_ARGB), encoder);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidLevelIsRejected() {
+        new PngEncoder(10, PngEncoder.Filter.none, null);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * PyramidProcessorTest.java
+ *
+ */
+package ika.colororacle;
+
+import ika.colororacle.engine.Simulation;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+import javax.imageio.ImageIO;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that identical tiles of a pyramid are simulated once and linked,
+ * and that all tiles are simulated like single images.
+ */
+public class PyramidProcessorTest {
+
+    private static final int SIZE = 64;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static BufferedImage tile(long seed) {
+        final BufferedImage image = new BufferedImage(SIZE, SIZE,
+                BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, SIZE, SIZE, SimulatorTest.testPixels(SIZE, SIZE, seed), 0, SIZE);
+        return image;
+    }
+
+    private static void write(BufferedImage image, File file) throws IOException {
+        file.getParentFile().mkdirs();
+        assertTrue(ImageIO.write(image, "png", file));
+    }
+
+    private static int[] rgb(BufferedImage image) {
+        return image.getRGB(0, 0, SIZE, SIZE, null, 0, SIZE);
+    }
+
+    @Test
+    public void identicalTilesAreSimulatedOnceAndLinked() throws Exception {
+        // tiles 0 to 3 are unique, the ocean tiles are identical
+        final File root = folder.newFolder("tiles");
+        final String[] unique = {"0/0/0.png", "1/0/0.png", "1/1/1.png", "2/3/1.png"};
+        final String[] ocean = {"1/0/1.png", "1/1/0.png", "2/0/0.png", "2/0/1.png",
+            "2/2/3.png", "2/3/3.png"};
+        for (int i = 0; i < unique.length; i++) {
+            write(tile(i), new File(root, unique[i]));
+        }
+        for (String path : ocean) {
+            write(tile(99), new File(root, path));
+        }
+        // files and directories that are not tiles
+        assertTrue(new File(root, "2/3/readme.txt").createNewFile());
+        assertTrue(new File(root, "2/tmp").mkdir());
+
+        final File output = folder.newFolder("output");
+        final Set<Simulation> simulations = EnumSet.of(Simulation.deutan, Simulation.tritan);
+        final Simulator simulator = new Simulator(2);
+        final PyramidProcessor processor = new PyramidProcessor(simulator, simulations,
+                output, 3, new PngEncoder(4, PngEncoder.Filter.adaptive, null));
+        assertEquals(0, processor.process(root));
+
+        for (Simulation simulation : simulations) {
+            final File pyramid = new File(output, simulation.toString());
+            final Set<Object> files = new HashSet<>();
+            for (int i = 0; i < unique.length; i++) {
+                final File file = new File(pyramid, unique[i]);
+                assertArrayEquals(simulation + " " + unique[i],
+                        rgb(simulator.filter(simulation, tile(i), null)),
+                        rgb(ImageIO.read(file)));
+                files.add(fileKey(file));
+            }
+            final int[] expected = rgb(simulator.filter(simulation, tile(99), null));
+            final Path first = new File(pyramid, ocean[0]).toPath();
+            for (String path : ocean) {
+                final File file = new File(pyramid, path);
+                assertArrayEquals(simulation + " " + path, expected, rgb(ImageIO.read(file)));
+                assertTrue(path, Files.isSameFile(first, file.toPath()));
+                files.add(fileKey(file));
+            }
+            assertEquals(unique.length + 1, files.size());
+            assertFalse(new File(pyramid, "2/3/readme.txt").exists());
+            assertFalse(new File(pyramid, "2/tmp").exists());
+        }
+    }
+
+    /**
+     * Returns the key identifying the file, which is the same for hard
+     * links, or the path where file keys are not supported.
+     */
+    private static Object fileKey(File file) throws IOException {
+        final Object key = Files.readAttributes(file.toPath(),
+                BasicFileAttributes.class).fileKey();
+        return key == null ? file.getCanonicalPath() : key;
+    }
+
+    @Test
+    public void unreadableTilesAreCounted() throws Exception {
+        final File root = folder.newFolder("tiles");
+        write(tile(1), new File(root, "0/0/0.png"));
+        write(tile(2), new File(root, "1/0/0.png"));
+        Files.write(new File(root, "1/0/1.png").toPath(), new byte[]{1, 2, 3});
+        final File output = folder.newFolder("output");
+        final PyramidProcessor processor = new PyramidProcessor(new Simulator(1),
+                EnumSet.of(Simulation.protan), output, 2,
+                new PngEncoder(4, PngEncoder.Filter.adaptive, null));
+        assertEquals(1, processor.process(root));
+        assertTrue(new File(output, "protan/1/0/0.png").isFile());
+        assertFalse(new File(output, "protan/1/0/1.png").exists());
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * RawFileTest.java
+ *
+ */
+package ika.colororacle;
+
+import ika.colororacle.engine.Simulation;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that raw RGBA, PPM and PAM files are simulated like packed int
+ * pixels, also when they span many mapped windows.
+ */
+public class RawFileTest {
+
+    private static final int WIDTH = 613;
+    private static final int HEIGHT = 407;
+
+    /**
+     * Windows of 10000 pixels, so that the files span many windows and the
+     * last window is not full.
+     */
+    private static final int WINDOW_SIZE = 12 * 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Returns pixels as RGB or RGBA bytes.
+     */
+    private static byte[] bytes(int[] pixels, int channels) {
+        final ByteBuffer buffer = ByteBuffer.allocate(pixels.length * channels);
+        for (int pixel : pixels) {
+            buffer.put((byte) (pixel >> 16)).put((byte) (pixel >> 8)).put((byte) pixel);
+            if (channels == 4) {
+                buffer.put((byte) (pixel >>> 24));
+            }
+        }
+        return buffer.array();
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        final byte[] c = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+
+    /**
+     * Writes a file, simulates it into another file or in place, and
+     * compares the output with the header and the simulated pixels.
+     */
+    private void assertSimulated(String name, String header, int channels,
+            boolean inPlace) throws IOException {
+        final int[] pixels = SimulatorTest.testPixels(WIDTH, HEIGHT, 1);
+        if (channels == 3) {
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] |= 0xff000000;
+            }
+        }
+        final byte[] headerBytes = header.getBytes(StandardCharsets.US_ASCII);
+        final Simulator simulator = new Simulator(3);
+        for (Simulation simulation : Simulation.values()) {
+            final File input = new File(folder.getRoot(), name);
+            Files.write(input.toPath(), concat(headerBytes, bytes(pixels, channels)));
+            final File output = inPlace ? input : new File(folder.getRoot(), "out-" + name);
+            assertEquals(pixels.length, RawFile.process(simulator, simulation,
+                    input, output, WINDOW_SIZE));
+            final int[] expected = new int[pixels.length];
+            simulator.filterRows(simulation, pixels, 0, expected, 0, WIDTH, HEIGHT);
+            assertArrayEquals(simulation + " " + name,
+                    concat(headerBytes, bytes(expected, channels)),
+                    Files.readAllBytes(output.toPath()));
+        }
+    }
+
+    @Test
+    public void rgbaFilesAreSimulated() throws IOException {
+        assertSimulated("frames.rgba", "", 4, false);
+    }
+
+    @Test
+    public void ppmFilesAreSimulated() throws IOException {
+        assertSimulated("map.ppm", "P6\n# a comment\n" + WIDTH + " " + HEIGHT + "\n255\n",
+                3, false);
+    }
+
+    @Test
+    public void pamFilesAreSimulatedInPlace() throws IOException {
+        assertSimulated("map.pam", "P7\nWIDTH " + WIDTH + "\nHEIGHT " + HEIGHT
+                + "\nDEPTH 4\nMAXVAL 255\nTUPLTYPE RGB_ALPHA\nENDHDR\n", 4, true);
+    }
+
+    @Test
+    public void windowsAreUnmapped() throws IOException {
+        final File maps = new File("/proc/self/maps");
+        Assume.assumeTrue("The mapped files are not listed", maps.canRead());
+        final File input = new File(folder.getRoot(), "frames.rgba");
+        final File output = new File(folder.getRoot(), "out.rgba");
+        Files.write(input.toPath(), bytes(SimulatorTest.testPixels(WIDTH, HEIGHT, 2), 4));
+        RawFile.process(new Simulator(1), Simulation.deutan, input, output, WINDOW_SIZE);
+        final String mapped = new String(Files.readAllBytes(maps.toPath()),
+                StandardCharsets.UTF_8);
+        assertFalse(mapped.contains(input.getCanonicalPath()));
+        assertFalse(mapped.contains(output.getCanonicalPath()));
+    }
+
+    @Test
+    public void truncatedFilesAreRejected() throws IOException {
+        final File input = new File(folder.getRoot(), "map.ppm");
+        Files.write(input.toPath(), concat("P6 100 100 255\n".getBytes(StandardCharsets.US_ASCII),
+                new byte[100 * 99 * 3]));
+        try {
+            RawFile.process(new Simulator(1), Simulation.deutan, input,
+                    new File(folder.getRoot(), "out.ppm"));
+            fail("The file is truncated");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+}
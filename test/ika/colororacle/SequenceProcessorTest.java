@@ -0,0 +1,118 @@
+/*
+ * SequenceProcessorTest.java
+ *
+ */
+package ika.colororacle;
+
+import ika.colororacle.engine.Simulation;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import javax.imageio.ImageIO;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that simulating only the tiles that change between frames gives the
+ * same frames as simulating every frame completely.
+ */
+public class SequenceProcessorTest {
+
+    private static final int WIDTH = 203;
+    private static final int HEIGHT = 150;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Set<Simulation> simulations = EnumSet.of(Simulation.deutan,
+            Simulation.tritan, Simulation.grayscale);
+
+    /**
+     * Writes frames that change in a part of a tile, in tiles at the edges,
+     * completely, and not at all.
+     */
+    private static void writeFrames(File directory) throws IOException {
+        final Random random = new Random(1);
+        final BufferedImage frame = SimulatorTest.testImage(WIDTH, HEIGHT, 1);
+        ImageIO.write(frame, "png", new File(directory, "f001.png"));
+        frame.setRGB(70, 10, 0xff123456);
+        ImageIO.write(frame, "png", new File(directory, "f002.png"));
+        for (int y = 130; y < HEIGHT; y++) {
+            for (int x = 192; x < WIDTH; x++) {
+                frame.setRGB(x, y, random.nextInt());
+            }
+        }
+        ImageIO.write(frame, "png", new File(directory, "f003.png"));
+        ImageIO.write(SimulatorTest.testImage(WIDTH, HEIGHT, 2), "png",
+                new File(directory, "f004.png"));
+        ImageIO.write(SimulatorTest.testImage(WIDTH, HEIGHT, 2), "png",
+                new File(directory, "f005.png"));
+    }
+
+    private Map<Simulation, File> outputDirectories() {
+        final Map<Simulation, File> outputs = new EnumMap<>(Simulation.class);
+        for (Simulation simulation : simulations) {
+            outputs.put(simulation, new File(folder.getRoot(), "out-" + simulation));
+        }
+        return outputs;
+    }
+
+    @Test
+    public void changedTilesEqualFullSimulation() throws IOException {
+        final File frames = folder.newFolder("frames");
+        writeFrames(frames);
+        final Simulator simulator = new Simulator(2);
+        final SequenceProcessor processor = new SequenceProcessor(simulator,
+                simulations, new PngEncoder(1, PngEncoder.Filter.adaptive, null));
+        final Map<Simulation, File> outputs = outputDirectories();
+        assertEquals(5L * WIDTH * HEIGHT, processor.processFrames(frames, outputs));
+
+        // 4 x 3 tiles per frame: all of the first and fourth frame, one of
+        // the second and third frame, none of the fifth frame
+        assertEquals(5 * 12, processor.getTiles());
+        assertEquals(12 + 1 + 1 + 12, processor.getSimulatedTiles());
+
+        for (int i = 1; i <= 5; i++) {
+            final String name = String.format("f%03d.png", i);
+            final BufferedImage normal = ImageIO.read(new File(frames, name));
+            for (Simulation simulation : simulations) {
+                final BufferedImage expected = simulator.filter(simulation, normal, null);
+                final BufferedImage actual = ImageIO.read(
+                        new File(outputs.get(simulation), name));
+                for (int y = 0; y < HEIGHT; y++) {
+                    for (int x = 0; x < WIDTH; x++) {
+                        assertEquals(name + " " + simulation + " " + x + ", " + y,
+                                expected.getRGB(x, y), actual.getRGB(x, y));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void equalFrameNamesAreRejected() throws IOException {
+        final File frames = folder.newFolder("frames");
+        writeFrames(frames);
+        assertTrue(ImageIO.write(new BufferedImage(WIDTH, HEIGHT,
+                BufferedImage.TYPE_INT_RGB), "bmp", new File(frames, "f002.bmp")));
+        final SequenceProcessor processor = new SequenceProcessor(new Simulator(1),
+                simulations, new PngEncoder(1, PngEncoder.Filter.adaptive, null));
+        final Map<Simulation, File> outputs = outputDirectories();
+        try {
+            processor.processFrames(frames, outputs);
+            fail("f002.bmp and f002.png were both written to f002.png");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("f002.png"));
+        }
+        assertEquals(0, outputs.get(Simulation.deutan).list().length);
+    }
+}
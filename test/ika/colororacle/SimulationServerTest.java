@@ -0,0 +1,180 @@
+/*
+ * SimulationServerTest.java
+ *
+ */
+package ika.colororacle;
+
+import ika.colororacle.engine.Simulation;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.imageio.ImageIO;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that the server simulates images, rejects requests that do not fit
+ * into its memory budget, and counts requests in its stats.
+ */
+public class SimulationServerTest {
+
+    /**
+     * The memory budget of the server in bytes.
+     */
+    private static final int BUDGET = 1 << 20;
+
+    private SimulationServer server;
+
+    @Before
+    public void startServer() throws IOException {
+        server = SimulationServer.start(0, 2, 4, BUDGET);
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    private URL url(String path) throws IOException {
+        return new URL("http", server.getAddress().getHostString(),
+                server.getAddress().getPort(), path);
+    }
+
+    /**
+     * Sends the header of a request with a body of a length without sending
+     * the body.
+     *
+     * @return The socket of the request, for reading the response.
+     */
+    private Socket sendHeader(long contentLength) throws IOException {
+        final Socket socket = new Socket(server.getAddress().getAddress(),
+                server.getAddress().getPort());
+        final OutputStream out = socket.getOutputStream();
+        out.write(("POST /simulate?type=deutan HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Content-Length: " + contentLength + "\r\n"
+                + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        return socket;
+    }
+
+    /**
+     * Returns the status code of a request with a body of a length, which
+     * is not sent.
+     */
+    private int status(long contentLength) throws IOException {
+        try (Socket socket = sendHeader(contentLength)) {
+            final BufferedReader in = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.US_ASCII));
+            return Integer.parseInt(in.readLine().split(" ")[1]);
+        }
+    }
+
+    /**
+     * Returns a value of GET /stats.
+     */
+    private double stat(String name) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) url("/stats").openConnection();
+        assertEquals(200, connection.getResponseCode());
+        final String json;
+        try (InputStream in = connection.getInputStream()) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            json = out.toString("UTF-8");
+        }
+        final Matcher matcher = Pattern.compile("\"" + name + "\": ([0-9.]+)").matcher(json);
+        assertTrue(json, matcher.find());
+        return Double.parseDouble(matcher.group(1));
+    }
+
+    /**
+     * Waits until a value of GET /stats is the expected value. Requests are
+     * counted after their response has been sent.
+     */
+    private void awaitStat(String name, double expected) throws Exception {
+        final long end = System.currentTimeMillis() + 10000;
+        double value;
+        while ((value = stat(name)) != expected) {
+            assertTrue(name + " is " + value + " instead of " + expected,
+                    System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void imagesAreSimulated() throws Exception {
+        final BufferedImage normal = SimulatorTest.testImage(64, 48, 1);
+        final ByteArrayOutputStream png = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(normal, "png", png));
+
+        final HttpURLConnection connection = (HttpURLConnection) url(
+                "/simulate?type=deutan").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(png.size());
+        try (OutputStream out = connection.getOutputStream()) {
+            png.writeTo(out);
+        }
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("image/png", connection.getContentType());
+        final BufferedImage simulated;
+        try (InputStream in = connection.getInputStream()) {
+            simulated = ImageIO.read(in);
+        }
+        final BufferedImage expected = new Simulator(1).filter(Simulation.deutan, normal, null);
+        assertArrayEquals(expected.getRGB(0, 0, 64, 48, null, 0, 64),
+                simulated.getRGB(0, 0, 64, 48, null, 0, 64));
+
+        awaitStat("completed", 1);
+        assertEquals(1, stat("batches"), 0);
+        assertEquals(1, stat("requestsPerBatch"), 0);
+        assertEquals(64 * 48 / 1e6, stat("megapixels"), 1e-3);
+        assertEquals(0, stat("reservedMegabytes"), 0);
+    }
+
+    @Test
+    public void requestsLargerThanTheBudgetAreRejected() throws Exception {
+        // the body and the response need twice the length of the body
+        assertEquals(413, status(BUDGET / 2 + 1024));
+        assertEquals(413, status(100L << 20));
+        awaitStat("failed", 2);
+        assertEquals(0, stat("rejected"), 0);
+    }
+
+    @Test
+    public void requestsAreRejectedWhenTheBudgetIsExhausted() throws Exception {
+        // the first request holds more than half of the budget while the
+        // server waits for its body
+        try (Socket first = sendHeader(BUDGET / 3)) {
+            final long end = System.currentTimeMillis() + 10000;
+            while (stat("reservedMegabytes") == 0) {
+                assertTrue("The memory of the first request is not reserved",
+                        System.currentTimeMillis() < end);
+                Thread.sleep(10);
+            }
+            assertEquals(503, status(BUDGET / 3));
+            assertEquals(1, stat("rejected"), 0);
+        }
+
+        // the memory is returned when the first request ends
+        awaitStat("reservedMegabytes", 0);
+    }
+}
@@ -0,0 +1,629 @@
+/*
+ * SimulatorTest.java
+ *
+ */
+package ika.colororacle;
+
+import ika.colororacle.engine.Simulation;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Tests that the scalar kernels, the SIMD kernels and the ways of filtering
+ * an image all produce the same pixels.
+ *
+ * The SIMD kernels are chosen when the Simulator class is loaded, so the
+ * scalar and the SIMD kernels are compared in two child virtual machines,
+ * which filter the same pixels with main().
+ */
+public class SimulatorTest {
+
+    private static final int WIDTH = 613;
+    private static final int HEIGHT = 407;
+
+    /**
+     * Returns pixels with few repeated colors, random colors and random
+     * alpha, so that the color cache, the color compaction and the kernels
+     * are all used.
+     */
+    static int[] testPixels(int width, int height, long seed) {
+        final Random random = new Random(seed);
+        final int[] palette = new int[50];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = random.nextInt() | 0xff000000;
+        }
+        final int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int i = y * width + x;
+                if (y < height / 3) {
+                    pixels[i] = palette[(x / 7 + y / 5) % palette.length];
+                } else if (y < 2 * height / 3) {
+                    pixels[i] = random.nextInt() | 0xff000000;
+                } else {
+                    pixels[i] = random.nextInt();
+                }
+            }
+        }
+        return pixels;
+    }
+
+    static BufferedImage testImage(int width, int height, long seed) {
+        final BufferedImage image = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_ARGB);
+        final int[] pixels = testPixels(width, height, seed);
+        System.arraycopy(pixels, 0, data(image), 0, pixels.length);
+        return image;
+    }
+
+    static int[] data(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    private static int[] filter(Simulator simulator, Simulation simulation,
+            BufferedImage image) {
+        return data(simulator.filter(simulation, image, null));
+    }
+
+    @Test
+    public void parallelFilteringEqualsSerialFiltering() {
+        final BufferedImage image = testImage(WIDTH, HEIGHT, 1);
+        final Simulator serial = new Simulator(1);
+        final Simulator parallel = new Simulator(4);
+        for (Simulation simulation : Simulation.values()) {
+            assertArrayEquals(simulation.toString(),
+                    filter(serial, simulation, image),
+                    filter(parallel, simulation, image));
+        }
+    }
+
+    @Test
+    public void colorCompactionDoesNotChangePixels() {
+        final BufferedImage image = testImage(WIDTH, HEIGHT, 2);
+        final Simulator simulator = new Simulator(4);
+        for (Simulation simulation : Simulation.values()) {
+            simulator.setColorCompaction(Simulator.ColorCompaction.never);
+            final int[] expected = filter(simulator, simulation, image);
+            simulator.setColorCompaction(Simulator.ColorCompaction.always);
+            assertArrayEquals(simulation.toString(), expected,
+                    filter(simulator, simulation, image));
+            simulator.setColorCompaction(Simulator.ColorCompaction.auto);
+            assertArrayEquals(simulation.toString(), expected,
+                    filter(simulator, simulation, image));
+
+            // in place, the colors are looked up a second time
+            simulator.setColorCompaction(Simulator.ColorCompaction.always);
+            final BufferedImage copy = testImage(WIDTH, HEIGHT, 2);
+            simulator.filter(simulation, copy, copy);
+            assertArrayEquals(simulation.toString(), expected, data(copy));
+        }
+    }
+
+    @Test
+    public void fusedFilteringEqualsSingleFiltering() {
+        final BufferedImage image = testImage(WIDTH, HEIGHT, 3);
+        final Simulator simulator = new Simulator(2);
+        final Map<Simulation, BufferedImage> images = simulator.filter(image,
+                EnumSet.allOf(Simulation.class));
+        for (Simulation simulation : Simulation.values()) {
+            assertArrayEquals(simulation.toString(),
+                    filter(simulator, simulation, image),
+                    data(images.get(simulation)));
+        }
+
+        // opaque images of other types
+        final BufferedImage opaque = new BufferedImage(WIDTH, HEIGHT,
+                BufferedImage.TYPE_3BYTE_BGR);
+        opaque.setRGB(0, 0, WIDTH, HEIGHT, data(image), 0, WIDTH);
+        final Set<Simulation> some = EnumSet.of(Simulation.protan, Simulation.grayscale);
+        final Map<Simulation, BufferedImage> opaqueImages = simulator.filter(opaque, some);
+        assertEquals(some, opaqueImages.keySet());
+        for (Simulation simulation : some) {
+            final BufferedImage fused = opaqueImages.get(simulation);
+            assertEquals(BufferedImage.TYPE_INT_RGB, fused.getType());
+            assertArrayEquals(simulation.toString(),
+                    simulator.filter(simulation, opaque, null)
+                            .getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH),
+                    fused.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH));
+        }
+    }
+
+    @Test
+    public void filteringRowsEqualsFilteringImages() {
+        final BufferedImage image = testImage(WIDTH, HEIGHT, 4);
+        final int[] pixels = data(image);
+        final Simulator simulator = new Simulator(3);
+        for (Simulation simulation : Simulation.values()) {
+            final int[] expected = filter(simulator, simulation, image);
+            final int[] rows = new int[pixels.length];
+            simulator.filterRows(simulation, pixels, 0, rows, 0, WIDTH, HEIGHT);
+            assertArrayEquals(simulation.toString(), expected, rows);
+
+            // overlapping source and destination rows in the same array
+            final int[] shifted = new int[pixels.length + 3 * WIDTH];
+            System.arraycopy(pixels, 0, shifted, 3 * WIDTH, pixels.length);
+            simulator.filterRows(simulation, shifted, 3 * WIDTH, shifted, WIDTH,
+                    WIDTH, HEIGHT);
+            assertArrayEquals(simulation.toString(), expected,
+                    Arrays.copyOfRange(shifted, WIDTH, WIDTH + pixels.length));
+        }
+    }
+
+    @Test
+    public void partialRowsAreFiltered() {
+        // ranges that are not multiples of the vector length
+        final int[] pixels = testPixels(1031, 1, 6);
+        final Simulator simulator = new Simulator(1);
+        for (Simulation simulation : Simulation.values()) {
+            final int[] all = new int[pixels.length];
+            simulator.filterRows(simulation, pixels, 0, all, 0, pixels.length, 1);
+            for (int length = 1; length < 40; length++) {
+                final int[] part = new int[length];
+                simulator.filterRows(simulation, pixels, 7, part, 0, length, 1);
+                assertArrayEquals(simulation + " " + length,
+                        Arrays.copyOfRange(all, 7, 7 + length), part);
+            }
+        }
+    }
+
+    @Test
+    public void filteringStripsEqualsFilteringImages() throws IOException {
+        final BufferedImage image = testImage(WIDTH, HEIGHT, 8);
+        final int[] pixels = data(image);
+        final Simulator simulator = new Simulator(2);
+        final Random random = new Random(9);
+        for (final Simulation simulation : Simulation.values()) {
+            final int stripHeight = 1 + random.nextInt(40);
+            final int[] filtered = new int[pixels.length];
+            simulator.simulate(simulation);
+            simulator.filter(new RowSource() {
+
+                private int y = 0;
+
+                @Override
+                public int getWidth() {
+                    return WIDTH;
+                }
+
+                @Override
+                public int readRows(int[] argb, int maxRows) {
+                    assertEquals(stripHeight, maxRows);
+                    assertTrue(argb.length <= WIDTH * stripHeight);
+                    // sources may return fewer rows than asked for
+                    final int rows = Math.min(HEIGHT - y, 1 + random.nextInt(maxRows));
+                    System.arraycopy(pixels, y * WIDTH, argb, 0, rows * WIDTH);
+                    y += rows;
+                    return rows;
+                }
+            }, new RowSink() {
+
+                private int y = 0;
+
+                @Override
+                public void writeRows(int[] argb, int rows) {
+                    System.arraycopy(argb, 0, filtered, y * WIDTH, rows * WIDTH);
+                    y += rows;
+                }
+            }, stripHeight);
+            assertArrayEquals(simulation + " in strips of " + stripHeight,
+                    filter(simulator, simulation, image), filtered);
+        }
+    }
+
+    @Test
+    public void blackIsConvertedWhereverItIs() {
+        // the original kernels started with black as the previous color and
+        // kept black pixels black until the first other color
+        final BufferedImage image = new BufferedImage(300, 2,
+                BufferedImage.TYPE_INT_RGB);
+        image.setRGB(150, 0, 0x336699);
+        final Simulator simulator = new Simulator(1);
+        for (Simulation simulation : Simulation.values()) {
+            final BufferedImage simulated = simulator.filter(simulation, image, null);
+            assertEquals(simulation.toString(), simulated.getRGB(299, 1),
+                    simulated.getRGB(0, 0));
+        }
+        assertEquals(0xff141414, simulator.filter(Simulation.deutan, image, null).getRGB(0, 0));
+        assertEquals(0xff000000, simulator.filter(Simulation.normal, image, null).getRGB(0, 0));
+    }
+
+    @Test
+    public void alphaIsKept() {
+        final BufferedImage image = testImage(WIDTH, HEIGHT, 2);
+        final int[] pixels = data(image);
+        final int[] opaque = new int[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            opaque[i] = pixels[i] | 0xff000000;
+        }
+        final Simulator simulator = new Simulator(4);
+        for (Simulation simulation : Simulation.values()) {
+            final int[] expected = new int[pixels.length];
+            simulator.filterRows(simulation, opaque, 0, expected, 0, WIDTH, HEIGHT);
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(0xff000000, expected[i] & 0xff000000);
+                expected[i] = (expected[i] & 0xffffff) | (pixels[i] & 0xff000000);
+            }
+            assertArrayEquals(simulation.toString(), expected,
+                    filter(simulator, simulation, image));
+
+            // in place, and as rows
+            final BufferedImage copy = testImage(WIDTH, HEIGHT, 2);
+            simulator.filter(simulation, copy, copy);
+            assertArrayEquals(simulation.toString(), expected, data(copy));
+            final int[] rows = pixels.clone();
+            simulator.filterRows(simulation, rows, 0, rows, 0, WIDTH, HEIGHT);
+            assertArrayEquals(simulation.toString(), expected, rows);
+        }
+    }
+
+    /**
+     * Returns the samples of an image with 8 bits per channel as packed
+     * 0xAARRGGBB ints, without dividing premultiplied colors by alpha.
+     */
+    private static int[] samples(BufferedImage image) {
+        final int[] rgba = image.getRaster().getPixels(0, 0, WIDTH, HEIGHT, (int[]) null);
+        final int[] argb = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < argb.length; i++) {
+            argb[i] = rgba[4 * i + 3] << 24 | rgba[4 * i] << 16
+                    | rgba[4 * i + 1] << 8 | rgba[4 * i + 2];
+        }
+        return argb;
+    }
+
+    @Test
+    public void alphaOfPremultipliedImagesIsKept() {
+        final int[] types = {
+            BufferedImage.TYPE_INT_ARGB_PRE, BufferedImage.TYPE_4BYTE_ABGR_PRE
+        };
+        final Simulator simulator = new Simulator(4);
+        for (int type : types) {
+            final BufferedImage image = new BufferedImage(WIDTH, HEIGHT, type);
+            image.setRGB(0, 0, WIDTH, HEIGHT, testPixels(WIDTH, HEIGHT, 3), 0, WIDTH);
+            final int[] premultiplied = samples(image);
+            final int[] colors = new int[premultiplied.length];
+            for (int i = 0; i < colors.length; i++) {
+                colors[i] = PixelLayout.unpremultiply(premultiplied[i]);
+            }
+            for (Simulation simulation : Simulation.values()) {
+                final BufferedImage simulated = simulator.filter(simulation, image, null);
+                assertEquals(type, simulated.getType());
+                final int[] expected = colors.clone();
+                simulator.filterRows(simulation, expected, 0, expected, 0, WIDTH, HEIGHT);
+                for (int i = 0; i < expected.length; i++) {
+                    assertEquals(colors[i] >>> 24, expected[i] >>> 24);
+                    expected[i] = PixelLayout.premultiply(expected[i]);
+                }
+                assertArrayEquals(simulation + " " + type, expected, samples(simulated));
+            }
+        }
+    }
+
+    @Test
+    public void grayscaleEqualsLuminanceOfDoubles() {
+        final Simulator simulator = new Simulator(1);
+        final int[] colors = new int[1 << 16];
+        final int[] gray = new int[colors.length];
+        int differences = 0;
+        for (int r = 0; r < 256; r++) {
+            for (int i = 0; i < colors.length; i++) {
+                colors[i] = 0xff000000 | r << 16 | i;
+            }
+            simulator.filterRows(Simulation.grayscale, colors, 0, gray, 0,
+                    colors.length, 1);
+            for (int i = 0; i < colors.length; i++) {
+                final int r_lin = Simulator.SRGB_TO_LINRGB[r];
+                final int g_lin = Simulator.SRGB_TO_LINRGB[i >> 8];
+                final int b_lin = Simulator.SRGB_TO_LINRGB[i & 0xff];
+                final double luminance = 0.2126 * r_lin + 0.7152 * g_lin + 0.0722 * b_lin;
+                final int linRGB = ((int) luminance) >> 8;
+                final int expected = Simulator.LINRGB_TO_SRGB[linRGB] & 0xff;
+                if ((gray[i] & 0xff) != expected) {
+                    // the double luminance is rounded down where it lies
+                    // exactly on a step of linear rgb
+                    final int exact = 2126 * r_lin + 7152 * g_lin + 722 * b_lin;
+                    assertEquals(Integer.toHexString(colors[i]), 0, exact % 2560000);
+                    assertEquals(Integer.toHexString(colors[i]),
+                            Simulator.LINRGB_TO_SRGB[linRGB + 1] & 0xff, gray[i] & 0xff);
+                    differences++;
+                }
+            }
+        }
+        assertTrue(differences <= 14);
+    }
+
+    /**
+     * Simulates tritanopia like the float computation of GIMP 2.2, which the
+     * integer kernel replaces.
+     *
+     * @return Simulated linear rgb in 0..255.
+     */
+    private static int[] tritanOfFloats(int rgb) {
+        final float anchor_e0 = 0.05059983f + 0.08585369f + 0.00952420f;
+        final float anchor_e1 = 0.01893033f + 0.08925308f + 0.01370054f;
+        final float anchor_e2 = 0.00292202f + 0.00975732f + 0.07145979f;
+        final float inflection = anchor_e1 / anchor_e0;
+        final float a1 = -anchor_e2 * 0.007009f;
+        final float b1 = anchor_e2 * 0.0914f;
+        final float c1 = anchor_e0 * 0.007009f - anchor_e1 * 0.0914f;
+        final float a2 = anchor_e1 * 0.3636f - anchor_e2 * 0.2237f;
+        final float b2 = anchor_e2 * 0.1284f - anchor_e0 * 0.3636f;
+        final float c2 = anchor_e0 * 0.2237f - anchor_e1 * 0.1284f;
+        final int r = Simulator.SRGB_TO_LINRGB[(rgb >> 16) & 0xff];
+        final int g = Simulator.SRGB_TO_LINRGB[(rgb >> 8) & 0xff];
+        final int b = Simulator.SRGB_TO_LINRGB[rgb & 0xff];
+        final float L = (r * 0.05059983f + g * 0.08585369f + b * 0.00952420f) / 32767.f;
+        final float M = (r * 0.01893033f + g * 0.08925308f + b * 0.01370054f) / 32767.f;
+        final float S = M / L < inflection
+                ? -(a1 * L + b1 * M) / c1 : -(a2 * L + b2 * M) / c2;
+        final int[] lin = {
+            (int) (255.f * (L * 30.830854f - M * 29.832659f + S * 1.610474f)),
+            (int) (255.f * (-L * 6.481468f + M * 17.715578f - S * 2.532642f)),
+            (int) (255.f * (-L * 0.375690f - M * 1.199062f + S * 14.273846f))
+        };
+        for (int c = 0; c < 3; c++) {
+            lin[c] = Math.max(0, Math.min(255, lin[c]));
+        }
+        return lin;
+    }
+
+    @Test
+    public void tritanDiffersFromFloatsByDocumentedError() {
+        final Simulator simulator = new Simulator(1);
+        final int[] colors = new int[1 << 16];
+        final int[] tritan = new int[colors.length];
+        int differences = 0;
+        int maxError = 0;
+        for (int r = 0; r < 256; r++) {
+            for (int i = 0; i < colors.length; i++) {
+                colors[i] = 0xff000000 | r << 16 | i;
+            }
+            simulator.filterRows(Simulation.tritan, colors, 0, tritan, 0,
+                    colors.length, 1);
+            for (int i = 0; i < colors.length; i++) {
+                final int[] lin = tritanOfFloats(colors[i]);
+                boolean differs = false;
+                for (int c = 0; c < 3; c++) {
+                    final int actual = (tritan[i] >> (16 - 8 * c)) & 0xff;
+                    final int expected = Simulator.LINRGB_TO_SRGB[lin[c]] & 0xff;
+                    if (actual != expected) {
+                        // at most one step of linear rgb
+                        final int below = Simulator.LINRGB_TO_SRGB[Math.max(0, lin[c] - 1)] & 0xff;
+                        final int above = Simulator.LINRGB_TO_SRGB[Math.min(255, lin[c] + 1)] & 0xff;
+                        assertTrue(Integer.toHexString(colors[i]),
+                                actual == below || actual == above);
+                        maxError = Math.max(maxError, Math.abs(actual - expected));
+                        differs = true;
+                    }
+                }
+                if (differs) {
+                    differences++;
+                }
+            }
+        }
+        assertTrue("max error " + maxError, maxError <= 20);
+        assertTrue("differences " + differences, differences < 0.00285 * (1 << 24));
+    }
+
+    /**
+     * Returns an image with 16 bit red, green, blue and alpha samples, like
+     * 16 bit RGBA PNG files read by ImageIO.
+     */
+    private static BufferedImage image16(int width, int height) {
+        final ComponentColorModel cm = new ComponentColorModel(
+                ColorSpace.getInstance(ColorSpace.CS_sRGB), true, false,
+                Transparency.TRANSLUCENT, DataBuffer.TYPE_USHORT);
+        return new BufferedImage(cm, cm.createCompatibleWritableRaster(width, height),
+                false, null);
+    }
+
+    /**
+     * Simulates deuteranopia of a 16 bit color with doubles.
+     *
+     * @return Simulated linear red and blue in 0..65535.
+     */
+    private static double[] deutanOfDoubles(int r, int g, int b) {
+        final double r_lin = 0.992052 * Math.pow(r / 65535., 2.2) + 0.003974;
+        final double g_lin = 0.992052 * Math.pow(g / 65535., 2.2) + 0.003974;
+        final double b_lin = 0.992052 * Math.pow(b / 65535., 2.2) + 0.003974;
+        final double red = (9591 * r_lin + 23173 * g_lin) / 32768;
+        final double blue = (-730 * r_lin + 730 * g_lin + 32768 * b_lin) / 32768;
+        return new double[]{
+            65535 * Math.max(0, Math.min(1, red)),
+            65535 * Math.max(0, Math.min(1, blue))
+        };
+    }
+
+    /**
+     * Converts linear rgb in 0..65535 to gamma-corrected sRGB in 0..65535.
+     */
+    private static double toSRGB16(double lin) {
+        return 65535 * Math.pow(Math.max(0, Math.min(65535, lin)) / 65535, 1 / 2.2);
+    }
+
+    @Test
+    public void sixteenBitImagesKeepTheirPrecision() {
+        final int width = 512;
+        final int height = 256;
+        final BufferedImage image = image16(width, height);
+        final WritableRaster raster = image.getRaster();
+        final Random random = new Random(7);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // a dark ramp in the first rows, random colors below
+                final int v = y * width + x;
+                if (y < 16) {
+                    raster.setPixel(x, y, new int[]{v, v / 2, v / 3, 65535 - v});
+                } else {
+                    raster.setPixel(x, y, new int[]{random.nextInt(65536),
+                        random.nextInt(65536), random.nextInt(65536),
+                        random.nextInt(65536)});
+                }
+            }
+        }
+        final Simulator simulator = new Simulator(2);
+
+        // samples are not reduced to 8 bits
+        final Raster normal = simulator.filter(Simulation.normal, image, null).getRaster();
+        assertArrayEquals(raster.getPixels(0, 0, width, height, (int[]) null),
+                normal.getPixels(0, 0, width, height, (int[]) null));
+
+        final Raster deutan = simulator.filter(Simulation.deutan, image, null).getRaster();
+        final int[] rgb8 = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int[] p = raster.getPixel(x, y, (int[]) null);
+                rgb8[y * width + x] = 0xff000000 | (p[0] >> 8) << 16 | (p[1] >> 8) << 8 | p[2] >> 8;
+            }
+        }
+        simulator.filterRows(Simulation.deutan, rgb8, 0, rgb8, 0, width, height);
+        double error16 = 0;
+        double error8 = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int[] p = raster.getPixel(x, y, (int[]) null);
+                final int[] d = deutan.getPixel(x, y, (int[]) null);
+                assertEquals(p[3], d[3]);
+                assertEquals(d[0], d[1]);
+                final double[] lin = deutanOfDoubles(p[0], p[1], p[2]);
+                final int c = rgb8[y * width + x];
+                final int[] simulated = {d[0], d[2]};
+                final int[] simulated8 = {(c >> 16) & 0xff, c & 0xff};
+                for (int k = 0; k < 2; k++) {
+                    // at most two steps of 16 bit linear rgb off. In the
+                    // darkest colors one step changes sRGB by up to 424.
+                    assertTrue(x + ", " + y, simulated[k] >= Math.floor(toSRGB16(lin[k] - 2))
+                            && simulated[k] <= Math.ceil(toSRGB16(lin[k] + 2)));
+                    error16 += Math.abs(simulated[k] - toSRGB16(lin[k]));
+                    error8 += Math.abs(simulated8[k] * 257 - toSRGB16(lin[k]));
+                }
+            }
+        }
+        // the mean error is about a 300th of the error of the 8 bit kernel
+        assertTrue(error16 + " " + error8, 100 * error16 < error8);
+    }
+
+    @Test
+    public void vectorKernelsEqualScalarKernels() throws Exception {
+        Assume.assumeTrue("The SIMD kernels were not compiled",
+                SimulatorTest.class.getResource("VectorKernels.class") != null);
+        final File scalar = File.createTempFile("scalar", ".bin");
+        final File vector = File.createTempFile("vector", ".bin");
+        try {
+            assertEquals(0, run(scalar, "-Dcolororacle.kernel=scalar"));
+            final int exitCode = run(vector, "--add-modules", "jdk.incubator.vector");
+            Assume.assumeTrue("The SIMD kernels are not available", exitCode == 0);
+            final int[][] scalarPixels = read(scalar);
+            final int[][] vectorPixels = read(vector);
+            for (int k = 0; k < scalarPixels.length; k++) {
+                assertArrayEquals(Simulation.values()[k % Simulation.values().length]
+                        .toString(), scalarPixels[k], vectorPixels[k]);
+            }
+        } finally {
+            scalar.delete();
+            vector.delete();
+        }
+    }
+
+    /**
+     * Runs main() in a child virtual machine.
+     *
+     * @return The exit code of the child, 0 if the pixels were written, 3
+     * if the SIMD kernels should be used but are not available.
+     */
+    private static int run(File file, String... options) throws Exception {
+        final String java = System.getProperty("java.home") + File.separator
+                + "bin" + File.separator + "java";
+        final String[] command = new String[options.length + 5];
+        command[0] = java;
+        System.arraycopy(options, 0, command, 1, options.length);
+        command[options.length + 1] = "-cp";
+        command[options.length + 2] = System.getProperty("java.class.path");
+        command[options.length + 3] = SimulatorTest.class.getName();
+        command[options.length + 4] = file.getPath();
+        final Process process = new ProcessBuilder(command).inheritIO().start();
+        return process.waitFor();
+    }
+
+    /**
+     * Reads the pixels written by main(): for each simulation the pixels of
+     * the test image, then for each simulation the hash codes of all sRGB
+     * colors.
+     */
+    private static int[][] read(File file) throws IOException {
+        final int n = Simulation.values().length;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            final int[][] pixels = new int[2 * n][];
+            for (int k = 0; k < pixels.length; k++) {
+                pixels[k] = new int[k < n ? WIDTH * HEIGHT : 256];
+                for (int i = 0; i < pixels[k].length; i++) {
+                    pixels[k][i] = in.readInt();
+                }
+            }
+            return pixels;
+        }
+    }
+
+    /**
+     * Filters the test image and all sRGB colors with all simulations and
+     * writes the pixels of the image and the hash codes of the colors to a
+     * file. Exits with 3 if the SIMD kernels should be used but did not load.
+     *
+     * @param args The file.
+     */
+    public static void main(String[] args) throws Exception {
+        if (!"scalar".equals(System.getProperty("colororacle.kernel"))) {
+            final Field field = Simulator.class.getDeclaredField("VECTOR_KERNELS");
+            field.setAccessible(true);
+            if (field.get(null) == null) {
+                System.exit(3);
+            }
+        }
+        final BufferedImage image = testImage(WIDTH, HEIGHT, 5);
+        final Simulator simulator = new Simulator(1);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(args[0])))) {
+            for (Simulation simulation : Simulation.values()) {
+                for (int pixel : filter(simulator, simulation, image)) {
+                    out.writeInt(pixel);
+                }
+            }
+            final int[] colors = new int[1 << 16];
+            final int[] simulated = new int[colors.length];
+            for (Simulation simulation : Simulation.values()) {
+                for (int r = 0; r < 256; r++) {
+                    for (int i = 0; i < colors.length; i++) {
+                        colors[i] = 0xff000000 | r << 16 | i;
+                    }
+                    simulator.filterRows(simulation, colors, 0, simulated, 0,
+                            colors.length, 1);
+                    out.writeInt(Arrays.hashCode(simulated));
+                }
+            }
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * TiledProcessorTest.java
+ *
+ */
+package ika.colororacle;
+
+import ika.colororacle.engine.Simulation;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that images processed in rows of tiles give the same colors as
+ * images simulated in memory.
+ */
+public class TiledProcessorTest {
+
+    // not multiples of the tile size
+    private static final int WIDTH = 500;
+    private static final int HEIGHT = 333;
+    private static final int TILE_SIZE = 64;
+
+    /**
+     * The bytes of a source row and a simulated row of tiles.
+     */
+    private static final long ROW = (long) WIDTH * TILE_SIZE * 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(3);
+
+    @After
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private File writeImage(String name) throws IOException {
+        final BufferedImage image = new BufferedImage(WIDTH, HEIGHT,
+                BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, WIDTH, HEIGHT,
+                SimulatorTest.testPixels(WIDTH, HEIGHT, 1), 0, WIDTH);
+        final File file = folder.newFile(name);
+        assertTrue(ImageIO.write(image, name.substring(name.indexOf('.') + 1), file));
+        return file;
+    }
+
+    /**
+     * Processes an image in tiles and compares the output with the image
+     * simulated in memory.
+     */
+    private void assertSimulated(File input, long memoryBudget) throws IOException {
+        final Simulator simulator = new Simulator(2);
+        final TiledProcessor processor = new TiledProcessor(simulator, TILE_SIZE,
+                memoryBudget, executor);
+        final BufferedImage normal = ImageIO.read(input);
+        for (Simulation simulation : Simulation.values()) {
+            final File output = new File(folder.getRoot(), simulation + ".tif");
+            assertEquals((long) WIDTH * HEIGHT, processor.process(input, output, simulation));
+            final BufferedImage expected = simulator.filter(simulation, normal, null);
+            try (ImageInputStream in = ImageIO.createImageInputStream(output)) {
+                final ImageReader reader = ImageIO.getImageReaders(in).next();
+                reader.setInput(in);
+                assertTrue(reader.isImageTiled(0));
+                assertEquals(TILE_SIZE, reader.getTileWidth(0));
+                final BufferedImage simulated = reader.read(0);
+                reader.dispose();
+                assertEquals(WIDTH, simulated.getWidth());
+                assertEquals(HEIGHT, simulated.getHeight());
+                for (int y = 0; y < HEIGHT; y++) {
+                    for (int x = 0; x < WIDTH; x++) {
+                        assertEquals(simulation + " at " + x + ", " + y,
+                                expected.getRGB(x, y), simulated.getRGB(x, y));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void tiffFilesAreReadRowByRow() throws IOException {
+        // room for two rows of tiles, but not for the image
+        assertSimulated(writeImage("map.tif"), 2 * ROW);
+    }
+
+    @Test
+    public void otherFilesAreDecodedOnce() throws IOException {
+        assertSimulated(writeImage("map.png"), (long) WIDTH * HEIGHT * 4 + ROW);
+    }
+
+    @Test
+    public void filesTooLargeToDecodeAreRejected() throws IOException {
+        final File input = writeImage("map.png");
+        final TiledProcessor processor = new TiledProcessor(new Simulator(1),
+                TILE_SIZE, 2 * ROW, executor);
+        try {
+            processor.process(input, new File(folder.getRoot(), "map.tif"),
+                    Simulation.deutan);
+            fail("The image does not fit into the memory budget");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * SimulationEngineTest.java
+ *
+ */
+package ika.colororacle.engine;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests that pixels of every format, with strides larger than a row and in
+ * heap and direct buffers, are simulated like packed ARGB pixels.
+ */
+public class SimulationEngineTest {
+
+    private static final int WIDTH = 301;
+    private static final int HEIGHT = 67;
+
+    /**
+     * Fills the padding at the end of the rows of the destination buffers,
+     * which must not change.
+     */
+    private static final byte PADDING = 0x5a;
+
+    private final SimulationEngine engine = new SimulationEngine(3);
+
+    /**
+     * Returns ARGB pixels with repeated colors and varying alpha.
+     */
+    private static int[] pixels(boolean opaque, long seed) {
+        final Random random = new Random(seed);
+        final int[] palette = new int[40];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = random.nextInt();
+        }
+        final int[] pixels = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = i % 3 == 0 ? random.nextInt() : palette[random.nextInt(palette.length)];
+            if (opaque) {
+                pixels[i] |= 0xff000000;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Simulates packed ARGB pixels in arrays without strides.
+     */
+    private int[] expected(Simulation simulation, int[] pixels) {
+        final int[] expected = new int[pixels.length];
+        engine.filter(simulation, IntBuffer.wrap(pixels), IntBuffer.wrap(expected),
+                WIDTH, HEIGHT, WIDTH, WIDTH, PixelFormat.argb);
+        return expected;
+    }
+
+    /**
+     * Returns the bytes of an ARGB pixel in the order of a format.
+     */
+    private static byte[] bytes(int argb, PixelFormat format) {
+        final byte[] bytes = new byte[format.getBytesPerPixel()];
+        bytes[format.red] = (byte) (argb >> 16);
+        bytes[format.green] = (byte) (argb >> 8);
+        bytes[format.blue] = (byte) argb;
+        if (format.alpha >= 0) {
+            bytes[format.alpha] = (byte) (argb >>> 24);
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns an ARGB pixel as an int with the components in the order of a
+     * format.
+     */
+    private static int toInt(int argb, PixelFormat format) {
+        int pixel = 0;
+        for (byte b : bytes(argb, format)) {
+            pixel = pixel << 8 | (b & 0xff);
+        }
+        return pixel;
+    }
+
+    private static IntBuffer intBuffer(int length, boolean direct) {
+        if (direct) {
+            return ByteBuffer.allocateDirect(length * 4).order(ByteOrder.nativeOrder())
+                    .asIntBuffer();
+        }
+        return IntBuffer.allocate(length);
+    }
+
+    private static ByteBuffer byteBuffer(int length, boolean direct) {
+        return direct ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+    }
+
+    @Test
+    public void intPixelsEqualPackedPixels() {
+        final int[] pixels = pixels(false, 1);
+        final int srcStride = WIDTH + 5;
+        final int dstStride = WIDTH + 3;
+        final int srcPosition = 7;
+        final int dstPosition = 11;
+        for (PixelFormat format : new PixelFormat[]{PixelFormat.rgba,
+            PixelFormat.bgra, PixelFormat.argb, PixelFormat.abgr}) {
+            for (boolean direct : new boolean[]{false, true}) {
+                final IntBuffer src = intBuffer(srcPosition + HEIGHT * srcStride, direct);
+                final IntBuffer dst = intBuffer(dstPosition + HEIGHT * dstStride, direct);
+                for (int i = 0; i < dst.capacity(); i++) {
+                    dst.put(i, PADDING * 0x1010101);
+                }
+                for (int y = 0; y < HEIGHT; y++) {
+                    for (int x = 0; x < WIDTH; x++) {
+                        src.put(srcPosition + y * srcStride + x,
+                                toInt(pixels[y * WIDTH + x], format));
+                    }
+                }
+                src.position(srcPosition);
+                dst.position(dstPosition);
+                for (Simulation simulation : Simulation.values()) {
+                    engine.filter(simulation, src, dst, WIDTH, HEIGHT, srcStride,
+                            dstStride, format);
+                    assertEquals(srcPosition, src.position());
+                    assertEquals(dstPosition, dst.position());
+                    final int[] expected = expected(simulation, pixels);
+                    for (int y = 0; y < HEIGHT; y++) {
+                        for (int x = 0; x < dstStride; x++) {
+                            final String message = format + " " + simulation
+                                    + (direct ? " direct" : " heap") + " at " + x + ", " + y;
+                            assertEquals(message, x < WIDTH
+                                    ? toInt(expected[y * WIDTH + x], format) : PADDING * 0x1010101,
+                                    dst.get(dstPosition + y * dstStride + x));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void bytePixelsEqualPackedPixels() {
+        final int srcPosition = 5;
+        final int dstPosition = 13;
+        for (PixelFormat format : PixelFormat.values()) {
+            final int bytesPerPixel = format.getBytesPerPixel();
+            final int[] pixels = pixels(bytesPerPixel == 3, 2);
+            // strides that are not multiples of the size of a pixel
+            final int srcStride = WIDTH * bytesPerPixel + 5;
+            final int dstStride = WIDTH * bytesPerPixel + 2;
+            for (boolean direct : new boolean[]{false, true}) {
+                final ByteBuffer src = byteBuffer(srcPosition + HEIGHT * srcStride, direct);
+                final ByteBuffer dst = byteBuffer(dstPosition + HEIGHT * dstStride, direct);
+                for (int i = 0; i < dst.capacity(); i++) {
+                    dst.put(i, PADDING);
+                }
+                for (int y = 0; y < HEIGHT; y++) {
+                    src.position(srcPosition + y * srcStride);
+                    for (int x = 0; x < WIDTH; x++) {
+                        src.put(bytes(pixels[y * WIDTH + x], format));
+                    }
+                }
+                src.position(srcPosition);
+                dst.position(dstPosition);
+                for (Simulation simulation : Simulation.values()) {
+                    engine.filter(simulation, src, dst, WIDTH, HEIGHT, srcStride,
+                            dstStride, format);
+                    assertEquals(srcPosition, src.position());
+                    assertEquals(dstPosition, dst.position());
+                    final int[] expected = expected(simulation, pixels);
+                    for (int y = 0; y < HEIGHT; y++) {
+                        for (int x = 0; x < dstStride; x++) {
+                            final int pixel = x / bytesPerPixel;
+                            final String message = format + " " + simulation
+                                    + (direct ? " direct" : " heap") + " at byte "
+                                    + x + ", " + y;
+                            assertEquals(message, pixel < WIDTH
+                                    ? bytes(expected[y * WIDTH + pixel], format)[x % bytesPerPixel]
+                                    : PADDING, dst.get(dstPosition + y * dstStride + x));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void pixelsAreSimulatedInPlace() {
+        final int[] pixels = pixels(false, 3);
+        final int stride = WIDTH * 4 + 8;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(HEIGHT * stride);
+        for (int y = 0; y < HEIGHT; y++) {
+            buffer.position(y * stride);
+            for (int x = 0; x < WIDTH; x++) {
+                buffer.put(bytes(pixels[y * WIDTH + x], PixelFormat.bgra));
+            }
+        }
+        buffer.rewind();
+        engine.filter(Simulation.protan, buffer, buffer, WIDTH, HEIGHT, stride, stride,
+                PixelFormat.bgra);
+        final int[] expected = expected(Simulation.protan, pixels);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH * 4; x++) {
+                assertEquals(bytes(expected[y * WIDTH + x / 4], PixelFormat.bgra)[x % 4],
+                        buffer.get(y * stride + x));
+            }
+        }
+    }
+
+    @Test
+    public void invalidArgumentsAreRejected() {
+        final ByteBuffer bytes = ByteBuffer.allocate(10 * 10 * 4);
+        final IntBuffer ints = IntBuffer.allocate(10 * 10);
+        try {
+            engine.filter(Simulation.deutan, bytes, bytes, 10, 10, 39, 40, PixelFormat.rgba);
+            fail("The stride is smaller than a row");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+        try {
+            engine.filter(Simulation.deutan, bytes, bytes, 10, 10, 41, 41, PixelFormat.rgba);
+            fail("The buffer is too small");
+        } catch (IndexOutOfBoundsException ex) {
+            // expected
+        }
+        try {
+            engine.filter(Simulation.deutan, ints, ints, 10, 10, 10, 10, PixelFormat.rgb);
+            fail("Int pixels must have 4 components");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+        try {
+            engine.filter(Simulation.deutan, bytes, bytes.asReadOnlyBuffer(), 10, 10, 40, 40,
+                    PixelFormat.rgba);
+            fail("The destination is read-only");
+        } catch (ReadOnlyBufferException ex) {
+            // expected
+        }
+    }
+}